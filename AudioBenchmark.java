@@ -0,0 +1,300 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Throughput benchmark of the audio path, fed with synthetic PCM instead of a microphone.
+ *
+ * The PCM has the format of audio-config.txt (AUDIO_SAMPLE_RATE, AUDIO_BITS, ...): a
+ * second of tone with vibrato, then a second and a half of faint noise, over and over,
+ * so the silence trimmer has pauses to cut. Like ChatBenchmark there is no JMH (no
+ * build system to bring it in), but the same principle: warm-up iterations, then
+ * measured ones, with results consumed so the JIT cannot drop the work.
+ *
+ * First the stages of a recording are measured on their own, in this thread: ADPCM
+ * encoding and decoding, silence trimming, the waveform summary, and WavWriter to a
+ * temporary file (what the server does with each upload). Each reports MB/s of PCM,
+ * how many times faster than real time that is, and KB allocated per MB of PCM.
+ *
+ * Then recordings go over loopback through AudioSession, as uploads (SEND_AUDIO) and
+ * as live streams in BUFFER_SIZE chunks (what AudioClient does while recording), from
+ * several clients at once. These report MB/s of PCM, the latency of each recording
+ * (upload or stream start to the server's OK) and the allocation rate of the process.
+ * By default the server runs in this process, so its allocations are counted too;
+ * server=remote uses the server already running at host:port instead. The recordings
+ * are deleted afterwards. Run it from the server's directory:
+ *   java AudioBenchmark [seconds=60] [recordings=16] [clients=4] [server=embedded|remote]
+ *                       [host=SERVER_ADDRESS] [port=PORT]
+ * seconds is the length of each synthetic recording.
+ */
+public class AudioBenchmark {
+    private static final String CONFIG_FILE = "audio-config.txt";
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final double MB = 1024 * 1024;
+    private static volatile long sink;
+
+    private static AudioFormat format;
+    private static int bufferSize;
+    private static String codec;
+    private static SilenceTrimmer.Settings silenceTrimming;
+
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length == 2) {
+                options.put(parts[0], parts[1]);
+            }
+        }
+        Properties config = new Properties();
+        try (InputStream input = new FileInputStream(CONFIG_FILE)) {
+            config.load(input);
+        }
+        format = new AudioFormat(Float.parseFloat(config.getProperty("AUDIO_SAMPLE_RATE", "44100")),
+            Integer.parseInt(config.getProperty("AUDIO_BITS", "16")),
+            Integer.parseInt(config.getProperty("AUDIO_CHANNELS", "1")),
+            Boolean.parseBoolean(config.getProperty("AUDIO_SIGNED", "true")),
+            Boolean.parseBoolean(config.getProperty("AUDIO_BIG_ENDIAN", "true")));
+        bufferSize = Integer.parseInt(config.getProperty("BUFFER_SIZE", "4096"));
+        codec = config.getProperty("AUDIO_CODEC", "wav");
+        silenceTrimming = new SilenceTrimmer.Settings(
+            Double.parseDouble(config.getProperty("SILENCE_THRESHOLD_DB", "-50")),
+            Integer.parseInt(config.getProperty("SILENCE_MIN_MS", "1000")),
+            Integer.parseInt(config.getProperty("SILENCE_KEEP_MS", "250")));
+
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "60"));
+        int recordings = Integer.parseInt(options.getOrDefault("recordings", "16"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "4"));
+        boolean embedded = !options.getOrDefault("server", "embedded").equals("remote");
+        String host = options.getOrDefault("host", config.getProperty("SERVER_ADDRESS", "localhost"));
+        int port = Integer.parseInt(options.getOrDefault("port", config.getProperty("PORT", "5000")));
+
+        byte[] pcm = synthesize(seconds, format.isBigEndian());
+        System.out.printf("Synthetic PCM: %s, %d s per recording (%.1f MB)%n", format, seconds, pcm.length / MB);
+        benchmarkStages(pcm, seconds);
+
+        if (embedded) {
+            Thread server = new Thread(() -> AudioServer.main(new String[0]), "embedded-server");
+            server.setDaemon(true);
+            server.start();
+            waitForServer(host, port);
+        }
+        benchmarkLoopback(host, port, pcm, seconds, recordings, clients);
+    }
+
+    /** Tone and pauses in the configured format, with the given byte order for 16-bit samples. */
+    private static byte[] synthesize(int seconds, boolean bigEndian) {
+        float rate = format.getSampleRate();
+        int channels = format.getChannels();
+        int frameSize = format.getSampleSizeInBits() / 8 * channels;
+        boolean signed = format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+        int frames = (int) (rate * seconds);
+        byte[] pcm = new byte[frames * frameSize];
+        Random random = new Random(42);
+        for (int frame = 0; frame < frames; frame++) {
+            double t = frame / rate;
+            boolean tone = t % 2.5 < 1;
+            double value = tone ? 0.3 * Math.sin(2 * Math.PI * (220 + 20 * Math.sin(2 * Math.PI * 5 * t)) * t)
+                : random.nextGaussian() * 0.0003;
+            for (int channel = 0; channel < channels; channel++) {
+                int position = frame * frameSize + channel * frameSize / channels;
+                if (format.getSampleSizeInBits() == 16) {
+                    short sample = (short) Math.max(-32768, Math.min(32767, Math.round(value * 32767)));
+                    pcm[position + (bigEndian ? 0 : 1)] = (byte) (sample >> 8);
+                    pcm[position + (bigEndian ? 1 : 0)] = (byte) sample;
+                } else {
+                    int sample = (int) Math.max(-128, Math.min(127, Math.round(value * 127)));
+                    pcm[position] = (byte) (signed ? sample : sample + 128);
+                }
+            }
+        }
+        return pcm;
+    }
+
+    private static void benchmarkStages(byte[] pcm, int seconds) throws Exception {
+        int bits = format.getSampleSizeInBits();
+        int channels = format.getChannels();
+        float rate = format.getSampleRate();
+        boolean signed = format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+        boolean bigEndian = format.isBigEndian();
+
+        if (bits == 16) {
+            ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder(channels, bigEndian);
+            byte[] blocks = encoder.encode(pcm, 0, pcm.length);
+            byte[] decoded = new byte[pcm.length + encoder.getBlockAlign() * 4];
+            measure("ADPCM encode", pcm.length, seconds, () -> {
+                ImaAdpcm.Encoder stage = new ImaAdpcm.Encoder(channels, bigEndian);
+                return stage.encode(pcm, 0, pcm.length).length + stage.finish().length;
+            });
+            measure("ADPCM decode", pcm.length, seconds,
+                () -> ImaAdpcm.decode(blocks, 0, blocks.length, channels, encoder.getBlockAlign(), decoded, 0));
+        }
+        measure("silence trimmer", pcm.length, seconds, () -> {
+            long[] kept = new long[1];
+            SilenceTrimmer trimmer = new SilenceTrimmer(silenceTrimming, rate, bits, channels, signed, bigEndian, 0,
+                (data, offset, length) -> kept[0] += length);
+            for (int offset = 0; offset < pcm.length; offset += bufferSize) {
+                trimmer.write(pcm, offset, Math.min(bufferSize, pcm.length - offset));
+            }
+            trimmer.finish();
+            return kept[0];
+        });
+        // The summary reads audio as stored in WAV files: little-endian, unsigned 8-bit
+        byte[] wavPcm = bits == 16 ? synthesize(seconds, false) : pcm.clone();
+        if (bits == 8 && signed) {
+            for (int i = 0; i < wavPcm.length; i++) {
+                wavPcm[i] ^= (byte) 0x80;
+            }
+        }
+        measure("waveform summary", pcm.length, seconds, () -> {
+            WaveformSummary summary = new WaveformSummary(rate, bits, channels, 0);
+            for (int offset = 0; offset < wavPcm.length; offset += bufferSize) {
+                summary.add(wavPcm, offset, Math.min(bufferSize, wavPcm.length - offset));
+            }
+            return summary.getFrames();
+        });
+        File file = File.createTempFile("benchmark", ".wav");
+        try {
+            measure("WavWriter to disk", pcm.length, seconds, () -> writeWav(file, pcm, false));
+            measure("WavWriter to disk, trimmed", pcm.length, seconds, () -> writeWav(file, pcm, true));
+        } finally {
+            file.delete();
+            WaveformSummary.fileFor(file).delete();
+        }
+    }
+
+    private static long writeWav(File file, byte[] pcm, boolean trimmed) throws IOException {
+        WavWriter writer = new WavWriter(file, format.getSampleRate(), format.getSampleSizeInBits(), format.getChannels(),
+            format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED, format.isBigEndian());
+        if (trimmed) {
+            writer.trimSilences(silenceTrimming);
+        }
+        try (writer) {
+            for (int offset = 0; offset < pcm.length; offset += bufferSize) {
+                writer.write(pcm, offset, Math.min(bufferSize, pcm.length - offset));
+            }
+            writer.finish();
+        }
+        return writer.getFileLength();
+    }
+
+    private static void measure(String name, long bytes, int seconds, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += operation.run();
+        }
+        long[] durations = new long[MEASURED_ITERATIONS];
+        long allocatedBefore = allocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += operation.run();
+            durations[i] = System.nanoTime() - start;
+        }
+        long allocated = allocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+        Arrays.sort(durations);
+        double median = durations[durations.length / 2] / 1e9;
+        System.out.printf("%-28s %9.1f MB/s %9.0fx real time %10.1f KB allocated/MB%n", name, bytes / MB / median,
+            seconds / median, allocated / 1024.0 / (bytes / MB * MEASURED_ITERATIONS));
+    }
+
+    private static void benchmarkLoopback(String host, int port, byte[] pcm, int seconds, int recordings, int clients)
+            throws Exception {
+        System.out.printf("Loopback to %s:%d, codec %s, %d clients%n", host, port, codec, clients);
+        List<String> saved = Collections.synchronizedList(new ArrayList<>());
+        try {
+            // One round of each to warm up both sides
+            loopback(host, port, pcm, Math.min(clients, recordings), clients, false, saved, new LatencyHistogram());
+            loopback(host, port, pcm, Math.min(clients, recordings), clients, true, saved, new LatencyHistogram());
+            for (boolean streamed : new boolean[] {false, true}) {
+                LatencyHistogram latency = new LatencyHistogram();
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                loopback(host, port, pcm, recordings, clients, streamed, saved, latency);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                double megabytes = pcm.length / MB * recordings;
+                System.out.printf("%-28s %9.1f MB/s %9.0fx real time %10.1f MB/s allocated%n",
+                    streamed ? "live streams" : "uploads", megabytes / elapsed, seconds * recordings / elapsed,
+                    (allocatedBytes() - allocatedBefore) / MB / elapsed);
+                System.out.printf("%-28s p50 %.1f ms, p99 %.1f ms, max %.1f ms over %d recordings%n", "  latency",
+                    latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getMax() / 1e6,
+                    latency.getCount());
+            }
+        } finally {
+            try (AudioSession session = new AudioSession(host, port)) {
+                session.login("benchmark");
+                for (String name : saved) {
+                    session.delete(name);
+                }
+            }
+        }
+    }
+
+    /** recordings spread over clients sessions, each sent as a whole or in live chunks. */
+    private static void loopback(String host, int port, byte[] pcm, int recordings, int clients, boolean streamed,
+                                 List<String> saved, LatencyHistogram latency) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<?>> results = new ArrayList<>();
+        for (int client = 0; client < clients; client++) {
+            int count = recordings / clients + (client < recordings % clients ? 1 : 0);
+            results.add(executor.submit(() -> {
+                try (AudioSession session = new AudioSession(host, port)) {
+                    session.setCodec(codec);
+                    session.login("benchmark");
+                    for (int i = 0; i < count; i++) {
+                        long start = System.nanoTime();
+                        String name;
+                        if (streamed) {
+                            AudioSession.LiveStream stream = session.startStream(format);
+                            for (int offset = 0; offset < pcm.length; offset += bufferSize) {
+                                stream.write(pcm, offset, Math.min(bufferSize, pcm.length - offset));
+                            }
+                            name = stream.finish();
+                        } else {
+                            name = session.upload(pcm, format);
+                        }
+                        latency.record(System.nanoTime() - start);
+                        saved.add(name);
+                    }
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+    }
+
+    private static void waitForServer(String host, int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("The embedded server did not start on port " + port);
+    }
+
+    private static long allocatedBytes(long threadId) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(threadId);
+    }
+
+    /** Bytes allocated by the live threads of the process; those of threads that ended are lost. */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+}
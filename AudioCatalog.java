@@ -0,0 +1,434 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The server's list of recordings, kept in memory and indexed by name and by owner,
+ * newest first, so LIST and ownership checks never touch the disk.
+ *
+ * Every change is appended to a log file, one line each:
+ * <pre>
+ * ADD name,owner,format,bytes,durationMs,created[,silences]
+ * UPDATE name,bytes,durationMs[,silences]   (a live stream that grew)
+ * ARCHIVE name                              (moved to the archive tier, see RecordingStore)
+ * RESTORE name                              (back in the hot tier)
+ * PLAYED name,time                          (fetched, at most once a day per recording)
+ * DELETE name
+ * </pre>
+ * silences lists the pauses cut from a recording (see SilenceTrimmer), absent if none.
+ * The log is replayed on startup and rewritten without its dead lines when they
+ * outnumber the live entries. Lines "name,owner" of the older metadata file are read
+ * as ADD; recordings found in the RecordingStore but not in the log are added with
+ * owner "unknown", and entries whose file is gone are dropped.
+ *
+ * Watchers get a snapshot and then every change as an event line ("ADDED entry",
+ * "UPDATED entry", "DELETED name") in a bounded queue. A watcher too slow to keep up
+ * is dropped with a last OVERFLOW event, and has to start over from a new snapshot.
+ */
+public class AudioCatalog {
+    private static final long PLAYED_LOG_INTERVAL_MS = 24L * 3600 * 1000;
+    private static final Comparator<Entry> NEWEST_FIRST =
+        Comparator.comparingLong((Entry e) -> e.created).reversed().thenComparing(e -> e.name);
+
+    private final File logFile;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final NavigableSet<Entry> all = new TreeSet<>(NEWEST_FIRST);
+    private final Map<String, NavigableSet<Entry>> byOwner = new HashMap<>();
+    private final List<BlockingQueue<String>> watchers = new ArrayList<>();
+    private Writer log;
+    private int deadLines;
+
+    /** One recording; the catalog replaces entries instead of changing them. */
+    public static class Entry {
+        public final String name;
+        public final String owner;
+        public final String format;
+        public final long size;
+        public final long durationMillis;
+        public final long created;
+        /** Silences cut at ingest, "startMs+lengthMs;...", or "" */
+        public final String silences;
+        /** In the archive tier of the RecordingStore; not sent to clients */
+        public final boolean archived;
+        /** Last time the recording was fetched, 0 if never; not sent to clients */
+        public final long lastPlayed;
+
+        public Entry(String name, String owner, String format, long size, long durationMillis, long created,
+                     String silences) {
+            this(name, owner, format, size, durationMillis, created, silences, false, 0);
+        }
+
+        public Entry(String name, String owner, String format, long size, long durationMillis, long created,
+                     String silences, boolean archived, long lastPlayed) {
+            this.name = name;
+            this.owner = owner;
+            this.format = format;
+            this.size = size;
+            this.durationMillis = durationMillis;
+            this.created = created;
+            this.silences = silences;
+            this.archived = archived;
+            this.lastPlayed = lastPlayed;
+        }
+
+        Entry withArchived(boolean archived) {
+            return new Entry(name, owner, format, size, durationMillis, created, silences, archived, lastPlayed);
+        }
+
+        Entry withLastPlayed(long lastPlayed) {
+            return new Entry(name, owner, format, size, durationMillis, created, silences, archived, lastPlayed);
+        }
+
+        /** "name,owner,bytes,durationMs,format,created[,silences]", as sent by LIST. */
+        public String toLine() {
+            return name + "," + owner + "," + size + "," + durationMillis + "," + format + "," + created
+                + (silences.isEmpty() ? "" : "," + silences);
+        }
+
+        String toLogLine() {
+            return "ADD " + name + "," + owner + "," + format + "," + size + "," + durationMillis + "," + created
+                + (silences.isEmpty() ? "" : "," + silences);
+        }
+    }
+
+    /** Filters and page of a LIST query; null or 0 fields do not filter. */
+    public static class Query {
+        public String owner;
+        public String format;
+        public long since;
+        public long until;
+        public int offset;
+        public int limit;
+    }
+
+    public AudioCatalog(File logFile) {
+        this.logFile = logFile;
+    }
+
+    /** Replays the log, reconciles it with the files of the store and opens the log for appending. */
+    public synchronized void load(RecordingStore store) throws IOException {
+        int lines = 0;
+        if (logFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        replay(line);
+                        lines++;
+                    }
+                }
+            }
+        }
+
+        Set<String> stored = new HashSet<>();
+        for (File file : store.hotFiles()) {
+            stored.add(file.getName());
+            Entry entry = byName.get(file.getName());
+            if (entry == null || entry.size != file.length()) {
+                // Unknown file, legacy line without details, or a stream cut short
+                put(describe(file, entry != null ? entry.owner : "unknown", entry != null ? entry.created : 0,
+                    entry != null ? entry.silences : ""));
+                lines = -1;
+            } else if (entry.archived) {
+                // brought back just before a restart
+                put(entry.withArchived(false));
+                lines = -1;
+            }
+        }
+        for (String name : store.archivedNames()) {
+            stored.add(name);
+            Entry entry = byName.get(name);
+            if (entry == null || entry.size < 0) {
+                // Only the file can tell what it is: bring it back to read it
+                File file = store.restore(name);
+                put(describe(file, entry != null ? entry.owner : "unknown", entry != null ? entry.created : 0, ""));
+                lines = -1;
+            } else if (!entry.archived) {
+                put(entry.withArchived(true));
+                lines = -1;
+            }
+        }
+        for (String name : new ArrayList<>(byName.keySet())) {
+            if (!stored.contains(name)) {
+                remove(name);
+                lines = -1;
+            }
+        }
+
+        // at most ADD, ARCHIVE and PLAYED are live for an entry
+        if (lines < 0 || lines > 3 * byName.size()) {
+            rewrite();
+        }
+        log = new BufferedWriter(new FileWriter(logFile, true));
+    }
+
+    private void replay(String line) {
+        try {
+            if (line.startsWith("ADD ")) {
+                String[] f = line.substring(4).split(",");
+                put(new Entry(f[0], f[1], f[2], Long.parseLong(f[3]), Long.parseLong(f[4]), Long.parseLong(f[5]),
+                    f.length > 6 ? f[6] : ""));
+            } else if (line.startsWith("UPDATE ")) {
+                String[] f = line.substring(7).split(",");
+                Entry old = byName.get(f[0]);
+                if (old != null) {
+                    put(new Entry(old.name, old.owner, old.format, Long.parseLong(f[1]), Long.parseLong(f[2]), old.created,
+                        f.length > 3 ? f[3] : old.silences, old.archived, old.lastPlayed));
+                }
+            } else if (line.startsWith("PLAYED ")) {
+                String[] f = line.substring(7).split(",");
+                Entry old = byName.get(f[0]);
+                if (old != null) {
+                    put(old.withLastPlayed(Long.parseLong(f[1])));
+                }
+            } else if (line.startsWith("ARCHIVE ") || line.startsWith("RESTORE ")) {
+                Entry old = byName.get(line.substring(8));
+                if (old != null) {
+                    put(old.withArchived(line.startsWith("ARCHIVE ")));
+                }
+            } else if (line.startsWith("DELETE ")) {
+                remove(line.substring(7));
+            } else {
+                String[] f = line.split(",");
+                if (f.length == 2) {
+                    // Older metadata file, where uploads were saved with owner "null":
+                    // details are read from the file by load()
+                    put(new Entry(f[0], f[1].equals("null") ? "unknown" : f[1], "wav", -1, 0, 0, ""));
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Skipping catalog line: " + line);
+        }
+    }
+
+    /** Entry describing file as it is on disk, with its duration read from the WAV header. */
+    public static Entry describe(File file, String owner, long created, String silences) {
+        String name = file.getName();
+        String format = name.substring(name.lastIndexOf('.') + 1);
+        long duration = 0;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            byte[] header = new byte[(int) Math.min(input.length(), 256)];
+            input.readFully(header);
+            long[] wav = readWavHeader(header, input.length());
+            if (wav != null) {
+                format = wav[0] == ImaAdpcm.WAVE_FORMAT_IMA_ADPCM ? "adpcm" : "wav";
+                duration = wav[1];
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read " + file + ": " + e.getMessage());
+        }
+        return new Entry(name, owner, format, file.length(), duration, created > 0 ? created : file.lastModified(),
+            silences);
+    }
+
+    /** Format tag and duration in ms from a WAV header, or null if this is not a WAV file. */
+    private static long[] readWavHeader(byte[] header, long fileLength) {
+        if (header.length < 12 || !new String(header, 0, 4).equals("RIFF") || !new String(header, 8, 4).equals("WAVE")) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int position = 12;
+        int formatTag = 0;
+        long sampleRate = 0;
+        int blockAlign = 0;
+        int channels = 1;
+        while (position + 8 <= header.length) {
+            String id = new String(header, position, 4);
+            long size = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+            if (id.equals("fmt ") && position + 24 <= header.length) {
+                formatTag = buffer.getShort(position + 8) & 0xFFFF;
+                channels = buffer.getShort(position + 10);
+                sampleRate = buffer.getInt(position + 12);
+                blockAlign = buffer.getShort(position + 20) & 0xFFFF;
+            } else if (id.equals("data")) {
+                // A header not patched yet says 0: the file length tells how much was written
+                long data = size == 0 ? fileLength - position - 8 : Math.min(size, fileLength - position - 8);
+                if (sampleRate <= 0 || blockAlign <= 0) {
+                    return null;
+                }
+                long frames = formatTag == ImaAdpcm.WAVE_FORMAT_IMA_ADPCM
+                    ? data / blockAlign * ImaAdpcm.samplesPerBlock(blockAlign, channels)
+                    : data / blockAlign;
+                return new long[] {formatTag, frames * 1000 / sampleRate};
+            }
+            if (position + 8 + size > header.length) {
+                break;
+            }
+            position += 8 + size + (size & 1);
+        }
+        return null;
+    }
+
+    /** Registers events for change events and returns all entries as of now, newest first. */
+    public synchronized List<Entry> watch(BlockingQueue<String> events) {
+        watchers.add(events);
+        return new ArrayList<>(all);
+    }
+
+    public synchronized void unwatch(BlockingQueue<String> events) {
+        watchers.remove(events);
+    }
+
+    private void notifyWatchers(String event) {
+        for (Iterator<BlockingQueue<String>> it = watchers.iterator(); it.hasNext(); ) {
+            BlockingQueue<String> events = it.next();
+            if (!events.offer(event)) {
+                // Missed events cannot be replayed: make the watcher resynchronize
+                it.remove();
+                events.clear();
+                events.offer(AudioProtocol.OVERFLOW);
+            }
+        }
+    }
+
+    public synchronized Entry get(String name) {
+        return byName.get(name);
+    }
+
+    public synchronized void add(Entry entry) throws IOException {
+        if (byName.containsKey(entry.name)) {
+            deadLines++;
+        }
+        put(entry);
+        append(entry.toLogLine());
+        notifyWatchers("ADDED " + entry.toLine());
+    }
+
+    /** Records the final size, duration and cut silences of a recording that was streamed. */
+    public synchronized void update(String name, long size, long durationMillis, String silences) throws IOException {
+        Entry old = byName.get(name);
+        if (old == null) {
+            return;
+        }
+        Entry entry = new Entry(old.name, old.owner, old.format, size, durationMillis, old.created, silences, old.archived,
+            old.lastPlayed);
+        put(entry);
+        deadLines++;
+        append("UPDATE " + name + "," + size + "," + durationMillis + (silences.isEmpty() ? "" : "," + silences));
+        notifyWatchers("UPDATED " + entry.toLine());
+    }
+
+    /** Records that a recording moved to the archive tier of the RecordingStore, or back. */
+    public synchronized void setArchived(String name, boolean archived) throws IOException {
+        Entry old = byName.get(name);
+        if (old == null || old.archived == archived) {
+            return;
+        }
+        put(old.withArchived(archived));
+        // an ARCHIVE line stays live until the RESTORE that cancels it
+        if (!archived) {
+            deadLines += 2;
+        }
+        append((archived ? "ARCHIVE " : "RESTORE ") + name);
+    }
+
+    /**
+     * Records that a recording was fetched, for the archiving policy of AudioServer. The
+     * log gets a PLAYED line only on the first play of a day: the policy counts in days.
+     */
+    public synchronized void played(String name, long time) throws IOException {
+        Entry old = byName.get(name);
+        if (old == null || time <= old.lastPlayed) {
+            return;
+        }
+        put(old.withLastPlayed(time));
+        if (time / PLAYED_LOG_INTERVAL_MS != old.lastPlayed / PLAYED_LOG_INTERVAL_MS) {
+            if (old.lastPlayed > 0) {
+                deadLines++;
+            }
+            append("PLAYED " + name + "," + time);
+        }
+    }
+
+    /** All entries, newest first. */
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(all);
+    }
+
+    public synchronized void delete(String name) throws IOException {
+        Entry removed = remove(name);
+        if (removed != null) {
+            deadLines += 2 + (removed.archived ? 1 : 0) + (removed.lastPlayed > 0 ? 1 : 0);
+            append("DELETE " + name);
+            notifyWatchers("DELETED " + name);
+        }
+    }
+
+    /** Entries matching the query, newest first, and the total number of matches. */
+    public synchronized List<Entry> query(Query query, int[] total) {
+        NavigableSet<Entry> source = query.owner != null ? byOwner.get(query.owner) : all;
+        List<Entry> page = new ArrayList<>();
+        int matches = 0;
+        if (source != null) {
+            if (query.until > 0 || query.since > 0) {
+                // Newest first: "until" is the head of the set, "since" its tail
+                Entry from = new Entry("", null, null, 0, 0, query.until > 0 ? query.until : Long.MAX_VALUE, "");
+                Entry to = new Entry("", null, null, 0, 0, query.since - 1, "");
+                source = source.subSet(from, true, to, false);
+            }
+            for (Entry entry : source) {
+                if (query.format != null && !query.format.equals(entry.format)) {
+                    continue;
+                }
+                if (matches >= query.offset && (query.limit <= 0 || page.size() < query.limit)) {
+                    page.add(entry);
+                }
+                matches++;
+            }
+        }
+        total[0] = matches;
+        return page;
+    }
+
+    private void put(Entry entry) {
+        remove(entry.name);
+        byName.put(entry.name, entry);
+        all.add(entry);
+        byOwner.computeIfAbsent(entry.owner, owner -> new TreeSet<>(NEWEST_FIRST)).add(entry);
+    }
+
+    private Entry remove(String name) {
+        Entry entry = byName.remove(name);
+        if (entry != null) {
+            all.remove(entry);
+            NavigableSet<Entry> owned = byOwner.get(entry.owner);
+            owned.remove(entry);
+            if (owned.isEmpty()) {
+                byOwner.remove(entry.owner);
+            }
+        }
+        return entry;
+    }
+
+    private void append(String line) throws IOException {
+        log.write(line);
+        log.write('\n');
+        log.flush();
+        if (deadLines > 1000 && deadLines > byName.size()) {
+            log.close();
+            rewrite();
+            log = new BufferedWriter(new FileWriter(logFile, true));
+        }
+    }
+
+    /** Writes the live entries to a new log and swaps it in atomically. */
+    private void rewrite() throws IOException {
+        File tmp = new File(logFile.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Entry entry : all.descendingSet()) {
+                writer.write(entry.toLogLine() + "\n");
+                if (entry.archived) {
+                    writer.write("ARCHIVE " + entry.name + "\n");
+                }
+                if (entry.lastPlayed > 0) {
+                    writer.write("PLAYED " + entry.name + "," + entry.lastPlayed + "\n");
+                }
+            }
+        }
+        Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deadLines = 0;
+    }
+}
@@ -1,18 +1,14 @@
 // ChatAudioClient.java
 import java.io.*;
-import java.net.*;
 import java.util.*;
 import javax.sound.sampled.*;
 
 public class AudioClient {
     private static final String USER_FILE = "user.txt";
-    private static final String RECORDINGS_DIR = "recordings";
     private static final String CONFIG_FILE = "audio-config.txt";
-    private static final String METADATA_FILE = "audio-metadata.txt";
+    private static final int PAGE_SIZE = 20;
     private static String username;
-    private static Socket socket;
-    private static PrintWriter out;
-    private static BufferedReader in;
+    private static AudioSession session;
     private static String serverAddress;
     private static int port;
     private static int bufferSize;
@@ -21,20 +17,26 @@ public class AudioClient {
     private static int channels;
     private static boolean signed;
     private static boolean bigEndian;
+    private static int liveJitterMs;
+    private static String codec;
+    private static RecordingCache cache;
+    private static SilenceTrimmer.Settings silenceTrimming;
+    private static String liveListeners;
 
     public static void main(String[] args) {
         loadConfig();
         Scanner scanner = new Scanner(System.in);
 
         try {
-            socket = new Socket(serverAddress, port);
+            session = new AudioSession(serverAddress, port);
+            session.setCodec(codec);
+            session.setSilenceTrimming(silenceTrimming);
+            session.setLiveListeners(liveListeners);
             System.out.println("Connected to server at " + serverAddress + ":" + port);
 
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
             System.out.println("Please enter your username:");
             username = scanner.nextLine();
+            session.login(username);
             registerUser(username);
 
             while (true) {
@@ -43,7 +45,8 @@ public class AudioClient {
                 System.out.println("2. Display all recordings");
                 System.out.println("3. Listen to a recording");
                 System.out.println("4. Delete a recording");
-                System.out.println("5. Quit");
+                System.out.println("5. Listen live to a user");
+                System.out.println("6. Quit");
 
                 String option = scanner.nextLine();
                 switch (option) {
@@ -51,7 +54,7 @@ public class AudioClient {
                         recordAudio(scanner);
                         break;
                     case "2":
-                        displayRecordings();
+                        displayRecordings(scanner);
                         break;
                     case "3":
                         listenToRecording(scanner);
@@ -60,8 +63,11 @@ public class AudioClient {
                         deleteRecording(scanner);
                         break;
                     case "5":
+                        listenLive(scanner);
+                        break;
+                    case "6":
                         System.out.println("Exiting...");
-                        socket.close();
+                        session.close();
                         return;
                     default:
                         System.out.println("Invalid option, please try again.");
@@ -84,6 +90,17 @@ public class AudioClient {
             channels = Integer.parseInt(properties.getProperty("AUDIO_CHANNELS"));
             signed = Boolean.parseBoolean(properties.getProperty("AUDIO_SIGNED"));
             bigEndian = Boolean.parseBoolean(properties.getProperty("AUDIO_BIG_ENDIAN"));
+            liveJitterMs = Integer.parseInt(properties.getProperty("LIVE_JITTER_MS", "60"));
+            codec = properties.getProperty("AUDIO_CODEC", "wav");
+            liveListeners = properties.getProperty("LIVE_LISTENERS", "");
+            cache = new RecordingCache(new File(properties.getProperty("CACHE_DIR", "cache")),
+                Long.parseLong(properties.getProperty("CACHE_MAX_MB", "100")) * 1024 * 1024);
+            if (Boolean.parseBoolean(properties.getProperty("SILENCE_TRIM_CLIENT", "false"))) {
+                silenceTrimming = new SilenceTrimmer.Settings(
+                    Double.parseDouble(properties.getProperty("SILENCE_THRESHOLD_DB", "-50")),
+                    Integer.parseInt(properties.getProperty("SILENCE_MIN_MS", "1000")),
+                    Integer.parseInt(properties.getProperty("SILENCE_KEEP_MS", "250")));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -105,13 +122,13 @@ public class AudioClient {
     private static void recordAudio(Scanner scanner) {
         try {
             AudioFormat format = new AudioFormat(sampleRate, bits, channels, signed, bigEndian);
+            AudioSession.LiveStream stream = session.startStream(format);
             DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
             TargetDataLine microphone = (TargetDataLine) AudioSystem.getLine(info);
             microphone.open(format);
             microphone.start();
 
             System.out.println("Recording audio. Type 'STOP' to finish recording.");
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
             byte[] buffer = new byte[bufferSize];
             int bytesRead;
 
@@ -129,129 +146,130 @@ public class AudioClient {
             while (isRecording[0]) {
                 bytesRead = microphone.read(buffer, 0, buffer.length);
                 if (bytesRead > 0) {
-                    byteArrayOutputStream.write(buffer, 0, bytesRead);
+                    stream.write(buffer, 0, bytesRead);
                 }
             }
 
             microphone.stop();
             microphone.close();
 
-            byte[] audioData = byteArrayOutputStream.toByteArray();
-            String fileName = "recording_" + username + "_" + System.currentTimeMillis() + ".wav";
-            File file = new File(RECORDINGS_DIR, fileName);
-            saveAsWav(file, audioData, format);
-
-            try (BufferedWriter metadataWriter = new BufferedWriter(new FileWriter(METADATA_FILE, true))) {
-                metadataWriter.write(fileName + "," + username + "\n");
-            }
-
-            out.println("SEND_AUDIO");
-            OutputStream outputStream = socket.getOutputStream();
-            outputStream.write(audioData);
-            outputStream.flush();
+            String fileName = stream.finish();
+            System.out.println("Server: recording saved as " + fileName);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static void saveAsWav(File file, byte[] audioData, AudioFormat format) {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            AudioInputStream audioStream = new AudioInputStream(
-                new ByteArrayInputStream(audioData),
-                format,
-                audioData.length / format.getFrameSize()
-            );
-            AudioSystem.write(audioStream, AudioFileFormat.Type.WAVE, file);
+    private static void displayRecordings(Scanner scanner) {
+        System.out.println("Show recordings of which user? (empty for everyone)");
+        String owner = scanner.nextLine().trim();
+
+        try {
+            int offset = 0;
+            while (true) {
+                AudioSession.Page page = session.query(owner.isEmpty() ? null : owner, null, offset, PAGE_SIZE);
+                if (page.total == 0) {
+                    System.out.println("No recordings found.");
+                    return;
+                }
+                if (offset == 0) {
+                    System.out.println("Available recordings (" + page.total + "):");
+                }
+                for (AudioSession.RecordingInfo recording : page.recordings) {
+                    System.out.printf("%s (%s, %s, %d s, %d KB, %s%s)%n", recording.name, recording.owner,
+                        recording.format, recording.durationMillis / 1000, recording.size / 1024, new Date(recording.created),
+                        recording.silences.isEmpty() ? "" : ", " + recording.silences.split(";").length + " pauses cut");
+                }
+                offset += page.recordings.size();
+                if (offset >= page.total || page.recordings.isEmpty()) {
+                    return;
+                }
+                System.out.println("Press Enter for more, or type 'q' to stop.");
+                if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                    return;
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void displayRecordings() {
-        File recordingsDir = new File(RECORDINGS_DIR);
-        if (!recordingsDir.exists() || recordingsDir.listFiles() == null) {
-            System.out.println("No recordings found.");
-            return;
-        }
-
-        System.out.println("Available recordings:");
-        for (File file : recordingsDir.listFiles()) {
-            System.out.println(file.getName());
-        }
-    }
-
     private static void listenToRecording(Scanner scanner) {
         System.out.println("Enter the recording name:");
         String recordingName = scanner.nextLine();
-        File file = new File(RECORDINGS_DIR, recordingName);
 
-        if (!file.exists()) {
-            System.out.println("Recording not found.");
+        RecordingPlayer player;
+        try {
+            player = new RecordingPlayer(session, cache, recordingName);
+        } catch (IOException e) {
+            System.out.println("Server: " + e.getMessage());
             return;
         }
 
-        try (AudioInputStream audioStream = AudioSystem.getAudioInputStream(file)) {
-            AudioFormat format = audioStream.getFormat();
+        try {
+            AudioFormat format = player.getFormat();
             DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
             SourceDataLine speakers = (SourceDataLine) AudioSystem.getLine(info);
             speakers.open(format);
             speakers.start();
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+            Thread playback = new Thread(() -> {
+                try {
+                    player.play(speakers, 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "playback");
+            playback.start();
 
-            System.out.println("Playing recording. Type 'STOP' to stop playback.");
-            while ((bytesRead = audioStream.read(buffer)) != -1) {
-                speakers.write(buffer, 0, bytesRead);
+            System.out.println("Playing recording (" + player.getDurationMillis() / 1000 + " s"
+                + (player.isCached() ? ", cached" : "") + "). Type 'STOP' to stop playback, 'SEEK <seconds>' to jump.");
+            while (playback.isAlive()) {
                 if (System.in.available() > 0) {
-                    String command = scanner.nextLine();
-                    if (command.equalsIgnoreCase("STOP")) {
-                        break;
+                    String[] command = scanner.nextLine().trim().split("\\s+");
+                    if (command[0].equalsIgnoreCase("STOP")) {
+                        player.stop();
+                    } else if (command[0].equalsIgnoreCase("SEEK") && command.length > 1) {
+                        try {
+                            player.seek((long) (Double.parseDouble(command[1]) * 1000));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Usage: SEEK <seconds>");
+                        }
                     }
                 }
+                playback.join(100);
             }
-
-            speakers.drain();
             speakers.close();
         } catch (Exception e) {
+            player.stop();
             e.printStackTrace();
         }
     }
 
-    private static void deleteRecording(Scanner scanner) {
-        System.out.println("Enter the recording name:");
-        String recordingName = scanner.nextLine();
-        File file = new File(RECORDINGS_DIR, recordingName);
+    private static void listenLive(Scanner scanner) {
+        System.out.println("Enter the user to listen to:");
+        String user = scanner.nextLine();
 
-        if (!file.exists()) {
-            System.out.println("Recording not found.");
-            return;
+        try (LiveListener listener = new LiveListener(serverAddress, port, username, user, liveJitterMs)) {
+            SourceDataLine speakers = listener.openSpeakers();
+            System.out.println("Listening live until " + user + " stops recording.");
+            listener.play(speakers);
+            speakers.close();
+            System.out.println(listener.report());
+        } catch (Exception e) {
+            System.out.println("Live listening failed: " + e.getMessage());
         }
+    }
 
-        try (BufferedReader metadataReader = new BufferedReader(new FileReader(METADATA_FILE))) {
-            String line;
-            boolean isOwner = false;
-            while ((line = metadataReader.readLine()) != null) {
-                String[] metadata = line.split(",");
-                if (metadata.length == 2 && metadata[0].equals(recordingName) && metadata[1].equals(username)) {
-                    isOwner = true;
-                    break;
-                }
-            }
-
-            if (!isOwner) {
-                System.out.println("You can only delete your own recordings.");
-                return;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
+    private static void deleteRecording(Scanner scanner) {
+        System.out.println("Enter the recording name:");
+        String recordingName = scanner.nextLine();
 
-        if (file.delete()) {
+        try {
+            session.delete(recordingName);
             System.out.println("Recording deleted successfully.");
-        } else {
-            System.out.println("Failed to delete recording.");
+        } catch (IOException e) {
+            System.out.println("Server: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
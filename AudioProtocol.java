@@ -0,0 +1,206 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire helpers shared by AudioServer and its clients.
+ *
+ * Commands are text lines and audio is raw bytes on the same stream, so lines are read
+ * byte by byte from the (buffered) input stream instead of through a BufferedReader,
+ * which would swallow the audio that follows a command into its own buffer.
+ *
+ * A connection is a session that can carry any number of commands, answered in order,
+ * so a client may send several before reading the answers:
+ * <pre>
+ * USER name                          -> OK
+ * SEND_AUDIO length [key=value ...]  + length bytes of PCM  -> OK file | ERROR: reason
+ *     keys: format, rate, bits, channels, signed, bigEndian, owner (defaults: server config, session user)
+ *     format=adpcm: the bytes are IMA ADPCM blocks of 256 bytes per channel (see ImaAdpcm)
+ *     trimmed=true: the client already cut long silences (see SilenceTrimmer), listed in
+ *     silences=startMs+lengthMs;... (STREAM_END gives them for a stream)
+ * LIST [owner=] [format=] [since=] [until=] [offset=] [limit=]
+ *                                    -> OK count total, then count lines
+ *                                       "file,owner,bytes,durationMs,format,created[,silences]",
+ *                                       newest first
+ * FETCH file [offset [length]]       -> OK length total, then length bytes of the WAV file
+ *                                       from offset (default: all of it); total is the file size
+ * PEAKS file [width]                 -> OK framesPerBucket count, then count buckets of 3 bytes
+ *                                       (min, max: signed 8-bit; rms: 0-255), at most width
+ *                                       of them (default 512), see WaveformSummary
+ * DELETE file                        -> OK | ERROR: reason (only the owner may delete)
+ * STREAM_START [key=value ...]       -> OK file (same keys as SEND_AUDIO, no length, plus
+ *                                       listeners=name,name,... or listeners=*: who may LISTEN)
+ * CHUNK length [t=captureMillis]     + length bytes of PCM (at most MAX_CHUNK_SIZE), no answer
+ * STREAM_END [silences=...]          -> OK file | ERROR: reason
+ * LISTEN user                        -> OK key=value ... (format of user's live stream) | ERROR:
+ *                                       reason (after USER, only user and its listeners)
+ *     then "FRAME seq captureMillis length" + length bytes of PCM for each CHUNK,
+ *     and "END dropped" when the stream ends; the connection carries nothing else
+ * WATCH                              -> OK count, then count catalog lines as for LIST,
+ *     then one line per change: "ADDED line", "UPDATED line", "DELETED file", or
+ *     "OVERFLOW" if the client fell behind (watch again); the connection carries nothing else
+ * STATS                              -> OK count, then count lines "name key=value ...": the
+ *                                       connections and each ingest stage, see IngestPipeline
+ * </pre>
+ * A live stream sends its audio as CHUNK frames while it is being captured; the server
+ * appends each one to the recording file, so a stream cut short by the client leaves a
+ * playable recording of everything received. CHUNK frames have no answer, so other
+ * commands may be sent in between and are answered in order as usual.
+ */
+public class AudioProtocol {
+    public static final String USER = "USER";
+    public static final String SEND_AUDIO = "SEND_AUDIO";
+    public static final String LIST = "LIST";
+    public static final String FETCH = "FETCH";
+    public static final String PEAKS = "PEAKS";
+    public static final String DELETE = "DELETE";
+    public static final String STREAM_START = "STREAM_START";
+    public static final String CHUNK = "CHUNK";
+    public static final String STREAM_END = "STREAM_END";
+    public static final String LISTEN = "LISTEN";
+    public static final String FRAME = "FRAME";
+    public static final String END = "END";
+    public static final String WATCH = "WATCH";
+    public static final String OVERFLOW = "OVERFLOW";
+    public static final String STATS = "STATS";
+    /** Largest CHUNK, and so largest FRAME, in bytes. */
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private AudioProtocol() {
+    }
+
+    /** Per-recording header carried by SEND_AUDIO and STREAM_START. */
+    public static class RecordingHeader {
+        public long length;
+        public String format = "wav";
+        public float sampleRate;
+        public int bits;
+        public int channels;
+        public boolean signed;
+        public boolean bigEndian;
+        public String owner;
+        public boolean trimmed;
+        public String silences = "";
+        // STREAM_START only: who besides the owner may listen live, "*" for anyone
+        public String listeners = "";
+
+        public RecordingHeader(long length, float sampleRate, int bits, int channels, boolean signed, boolean bigEndian, String owner) {
+            this.length = length;
+            this.sampleRate = sampleRate;
+            this.bits = bits;
+            this.channels = channels;
+            this.signed = signed;
+            this.bigEndian = bigEndian;
+            this.owner = owner;
+        }
+
+        /**
+         * Parses "SEND_AUDIO length key=value ..." (or STREAM_START). Fields that are not given
+         * keep the values of defaults; a missing length is returned as -1 (read until end of stream).
+         */
+        public static RecordingHeader parse(String command, RecordingHeader defaults) throws IOException {
+            RecordingHeader header = new RecordingHeader(-1, defaults.sampleRate, defaults.bits, defaults.channels,
+                defaults.signed, defaults.bigEndian, defaults.owner);
+            header.format = defaults.format;
+            String[] words = command.trim().split("\\s+", 2);
+            String[] fields = words.length > 1 ? words[1].split("\\s+") : new String[0];
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    if (fields[i].isEmpty()) {
+                        continue;
+                    }
+                    int separator = fields[i].indexOf('=');
+                    if (separator < 0) {
+                        if (i != 0) {
+                            throw new IOException("Invalid header field: " + fields[i]);
+                        }
+                        header.length = Long.parseLong(fields[i]);
+                        continue;
+                    }
+                    String key = fields[i].substring(0, separator);
+                    String value = fields[i].substring(separator + 1);
+                    switch (key) {
+                        case "format":
+                            header.format = value;
+                            break;
+                        case "rate":
+                            header.sampleRate = Float.parseFloat(value);
+                            break;
+                        case "bits":
+                            header.bits = Integer.parseInt(value);
+                            break;
+                        case "channels":
+                            header.channels = Integer.parseInt(value);
+                            break;
+                        case "signed":
+                            header.signed = Boolean.parseBoolean(value);
+                            break;
+                        case "bigEndian":
+                            header.bigEndian = Boolean.parseBoolean(value);
+                            break;
+                        case "owner":
+                            header.owner = value;
+                            break;
+                        case "trimmed":
+                            header.trimmed = Boolean.parseBoolean(value);
+                            break;
+                        case "silences":
+                            header.silences = value;
+                            break;
+                        case "listeners":
+                            header.listeners = value;
+                            break;
+                        default:
+                            // unknown keys are ignored so newer clients can add fields
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid header: " + e.getMessage());
+            }
+            return header;
+        }
+
+        public String toCommand() {
+            return SEND_AUDIO + " " + length + " " + fields();
+        }
+
+        public String toStreamCommand() {
+            return STREAM_START + " " + fields() + (listeners.isEmpty() ? "" : " listeners=" + listeners);
+        }
+
+        /** The key=value fields of the header, without command and length (nor listeners). */
+        public String fields() {
+            return "format=" + format + " rate=" + sampleRate + " bits=" + bits
+                + " channels=" + channels + " signed=" + signed + " bigEndian=" + bigEndian
+                + (owner != null ? " owner=" + owner : "")
+                + (trimmed ? " trimmed=true" : "")
+                + (silences.isEmpty() ? "" : " silences=" + silences);
+        }
+    }
+
+    /** Reads one line terminated by '\n' (a trailing '\r' is dropped); null at end of stream. */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Command line too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8.name());
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    public static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Recording and user names become file names: no separators, no "..". */
+    public static boolean isSafeName(String name) {
+        return name != null && name.matches("[A-Za-z0-9_.-]{1,128}") && !name.contains("..");
+    }
+}
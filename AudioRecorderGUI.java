@@ -4,13 +4,11 @@ import javax.sound.sampled.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class AudioRecorderGUI extends JFrame {
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private AudioSession session;
     private String username;
     private Properties config;
     private boolean isRecording = false;
@@ -20,7 +18,19 @@ public class AudioRecorderGUI extends JFrame {
     private JButton playButton;
     private JButton deleteButton;
     private JLabel statusLabel;
-    private javax.swing.Timer refreshTimer;
+    private CatalogWatcher catalogWatcher;
+    private RecordingCache cache;
+    // Creation time of each listed recording, to insert new ones in place (newest first)
+    private final Map<String, Long> createdTimes = new HashMap<>();
+    // Waveforms of the rows drawn so far, loaded one at a time off the EDT
+    private static final int WAVEFORM_WIDTH = 200;
+    private final Map<String, WaveformSummary.Level> waveforms = new HashMap<>();
+    private final Set<String> waveformsRequested = new HashSet<>();
+    private final ExecutorService waveformLoader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "waveform-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public AudioRecorderGUI() {
         loadConfig();
@@ -28,7 +38,7 @@ public class AudioRecorderGUI extends JFrame {
         initializeGUI();
         connectToServer();
         showLoginDialog();
-        startAutoRefresh();
+        watchCatalog();
     }
 
     private void setupModernUI() {
@@ -85,6 +95,7 @@ public class AudioRecorderGUI extends JFrame {
         recordingsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         recordingsList.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         recordingsList.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        recordingsList.setCellRenderer(new RecordingCellRenderer());
 
         JScrollPane scrollPane = new JScrollPane(recordingsList);
         scrollPane.setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200)));
@@ -135,15 +146,138 @@ public class AudioRecorderGUI extends JFrame {
         return button;
     }
 
-    private void startAutoRefresh() {
-        refreshTimer = new javax.swing.Timer(5000, e -> refreshRecordingsList());
-        refreshTimer.start();
+    /**
+     * Keeps the list in sync with the server's catalog: the watcher thread receives
+     * the changes and the EDT only applies them, one insert or remove at a time.
+     */
+    private void watchCatalog() {
+        catalogWatcher = new CatalogWatcher(config.getProperty("SERVER_ADDRESS"),
+            Integer.parseInt(config.getProperty("PORT")), new CatalogWatcher.Listener() {
+                public void snapshot(java.util.List<AudioSession.RecordingInfo> recordings) {
+                    SwingUtilities.invokeLater(() -> {
+                        createdTimes.clear();
+                        java.util.List<String> names = new ArrayList<>(recordings.size());
+                        for (AudioSession.RecordingInfo recording : recordings) {
+                            createdTimes.put(recording.name, recording.created);
+                            names.add(recording.name);
+                        }
+                        listModel.clear();
+                        listModel.addAll(names);
+                    });
+                }
+
+                public void added(AudioSession.RecordingInfo recording) {
+                    SwingUtilities.invokeLater(() -> addToList(recording));
+                }
+
+                public void updated(AudioSession.RecordingInfo recording) {
+                    // a stream that grew: its waveform is loaded again when next drawn
+                    SwingUtilities.invokeLater(() -> forgetWaveform(recording.name));
+                }
+
+                public void deleted(String name) {
+                    SwingUtilities.invokeLater(() -> {
+                        if (createdTimes.remove(name) != null) {
+                            listModel.removeElement(name);
+                            forgetWaveform(name);
+                        }
+                    });
+                }
+            });
+        catalogWatcher.start();
+    }
+
+    private void forgetWaveform(String name) {
+        waveforms.remove(name);
+        waveformsRequested.remove(name);
+        recordingsList.repaint();
+    }
+
+    /** Waveform of a recording if loaded; otherwise starts loading it and returns null. */
+    private WaveformSummary.Level waveformOf(String name) {
+        WaveformSummary.Level level = waveforms.get(name);
+        if (level == null && waveformsRequested.add(name)) {
+            waveformLoader.execute(() -> {
+                try {
+                    WaveformSummary.Level loaded = session.peaks(name, WAVEFORM_WIDTH);
+                    SwingUtilities.invokeLater(() -> {
+                        if (waveformsRequested.contains(name)) {
+                            waveforms.put(name, loaded);
+                            recordingsList.repaint();
+                        }
+                    });
+                } catch (IOException e) {
+                    // drawn without a waveform
+                }
+            });
+        }
+        return level;
+    }
+
+    /** List row: the recording name, with its waveform on the right. */
+    private class RecordingCellRenderer extends DefaultListCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        private WaveformSummary.Level waveform;
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            waveform = waveformOf((String) value);
+            setBorder(BorderFactory.createEmptyBorder(4, 4, 4, WAVEFORM_WIDTH + 12));
+            setPreferredSize(new Dimension(super.getPreferredSize().width, 36));
+            return this;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (waveform == null || waveform.count() == 0) {
+                return;
+            }
+            int left = getWidth() - WAVEFORM_WIDTH - 6;
+            int middle = getHeight() / 2;
+            double scale = (getHeight() - 8) / 256.0;
+            double step = (double) WAVEFORM_WIDTH / waveform.count();
+            for (int i = 0; i < waveform.count(); i++) {
+                int x = left + (int) (i * step);
+                int width = Math.max(1, (int) ((i + 1) * step) - (int) (i * step));
+                g.setColor(new Color(52, 152, 219));
+                int top = middle - (int) Math.ceil(waveform.max(i) * scale);
+                int bottom = middle - (int) Math.floor(waveform.min(i) * scale);
+                g.fillRect(x, top, width, Math.max(1, bottom - top));
+                g.setColor(new Color(41, 128, 185).darker());
+                int rms = (int) (waveform.rms(i) * scale / 2);
+                g.fillRect(x, middle - rms, width, Math.max(1, 2 * rms));
+            }
+        }
+    }
+
+    private void addToList(AudioSession.RecordingInfo recording) {
+        if (createdTimes.putIfAbsent(recording.name, recording.created) != null) {
+            return;
+        }
+        // Binary search for the first older recording; new ones usually land at the top
+        int low = 0;
+        int high = listModel.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (createdTimes.get(listModel.get(middle)) >= recording.created) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        listModel.add(low, recording.name);
     }
 
     private void loadConfig() {
         config = new Properties();
         try (InputStream input = new FileInputStream("audio-config.txt")) {
             config.load(input);
+            cache = new RecordingCache(new File(config.getProperty("CACHE_DIR", "cache")),
+                Long.parseLong(config.getProperty("CACHE_MAX_MB", "100")) * 1024 * 1024);
         } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Error loading configuration", "Error", JOptionPane.ERROR_MESSAGE);
@@ -153,10 +287,16 @@ public class AudioRecorderGUI extends JFrame {
 
     private void connectToServer() {
         try {
-            socket = new Socket(config.getProperty("SERVER_ADDRESS"), 
+            session = new AudioSession(config.getProperty("SERVER_ADDRESS"), 
                               Integer.parseInt(config.getProperty("PORT")));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            session.setCodec(config.getProperty("AUDIO_CODEC", "wav"));
+            session.setLiveListeners(config.getProperty("LIVE_LISTENERS", ""));
+            if (Boolean.parseBoolean(config.getProperty("SILENCE_TRIM_CLIENT", "false"))) {
+                session.setSilenceTrimming(new SilenceTrimmer.Settings(
+                    Double.parseDouble(config.getProperty("SILENCE_THRESHOLD_DB", "-50")),
+                    Integer.parseInt(config.getProperty("SILENCE_MIN_MS", "1000")),
+                    Integer.parseInt(config.getProperty("SILENCE_KEEP_MS", "250"))));
+            }
             statusLabel.setText("Connected to server");
         } catch (IOException e) {
             e.printStackTrace();
@@ -176,6 +316,13 @@ public class AudioRecorderGUI extends JFrame {
 
         if (option == JOptionPane.OK_OPTION && !usernameField.getText().trim().isEmpty()) {
             username = usernameField.getText().trim();
+            try {
+                session.login(username);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Login refused: " + e.getMessage(), "Error", 
+                    JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+            }
             statusLabel.setText("Logged in as: " + username);
             registerUser();
         } else {
@@ -222,21 +369,29 @@ public class AudioRecorderGUI extends JFrame {
 
             Thread recordingThread = new Thread(() -> {
                 try {
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    byte[] buffer = new byte[4096];
+                    // Frames go to the server as they are captured, see AudioSession.LiveStream
+                    AudioSession.LiveStream stream = session.startStream(format);
+                    byte[] buffer = new byte[Integer.parseInt(config.getProperty("BUFFER_SIZE"))];
                     int bytesRead;
 
                     while (isRecording) {
                         bytesRead = microphone.read(buffer, 0, buffer.length);
                         if (bytesRead > 0) {
-                            out.write(buffer, 0, bytesRead);
+                            stream.write(buffer, 0, bytesRead);
                         }
                     }
 
-                    microphone.close();
-                    saveRecording(out.toByteArray(), format);
-                } catch (Exception e) {
+                    String fileName = stream.finish();
+                    SwingUtilities.invokeLater(() -> statusLabel.setText("Recording saved: " + fileName));
+                } catch (IOException e) {
                     e.printStackTrace();
+                    SwingUtilities.invokeLater(() -> {
+                        stopRecording();
+                        JOptionPane.showMessageDialog(this, "Error saving recording: " + e.getMessage(), "Error", 
+                            JOptionPane.ERROR_MESSAGE);
+                    });
+                } finally {
+                    microphone.close();
                 }
             });
 
@@ -255,41 +410,6 @@ public class AudioRecorderGUI extends JFrame {
         statusLabel.setText("Recording stopped");
     }
 
-    private void saveRecording(byte[] audioData, AudioFormat format) {
-        String fileName = "recording_" + username + "_" + System.currentTimeMillis() + ".wav";
-        File file = new File("recordings", fileName);
-
-        try {
-            if (!file.getParentFile().exists()) {
-                file.getParentFile().mkdirs();
-            }
-
-            AudioInputStream ais = new AudioInputStream(
-                new ByteArrayInputStream(audioData),
-                format,
-                audioData.length / format.getFrameSize()
-            );
-
-            AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
-
-            out.println("SEND_AUDIO");
-            OutputStream outputStream = socket.getOutputStream();
-            outputStream.write(audioData);
-            outputStream.flush();
-
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("audio-metadata.txt", true))) {
-                writer.write(fileName + "," + username + "\n");
-            }
-
-            SwingUtilities.invokeLater(this::refreshRecordingsList);
-            statusLabel.setText("Recording saved: " + fileName);
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error saving recording", "Error", 
-                JOptionPane.ERROR_MESSAGE);
-        }
-    }
-
     private void playRecording() {
         String selectedRecording = recordingsList.getSelectedValue();
         if (selectedRecording == null) {
@@ -298,42 +418,30 @@ public class AudioRecorderGUI extends JFrame {
             return;
         }
 
-        try {
-            File file = new File("recordings", selectedRecording);
-            AudioInputStream audioStream = AudioSystem.getAudioInputStream(file);
-            AudioFormat format = audioStream.getFormat();
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            SourceDataLine speakers = (SourceDataLine) AudioSystem.getLine(info);
-
-            speakers.open(format);
-            speakers.start();
-            statusLabel.setText("Playing: " + selectedRecording);
-
-            Thread playThread = new Thread(() -> {
-                try {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-
-                    while ((bytesRead = audioStream.read(buffer)) != -1) {
-                        speakers.write(buffer, 0, bytesRead);
-                    }
-
-                    speakers.drain();
-                    speakers.close();
-                    audioStream.close();
-                    SwingUtilities.invokeLater(() -> 
-                        statusLabel.setText("Playback finished: " + selectedRecording));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
+        statusLabel.setText("Loading: " + selectedRecording);
+        Thread playThread = new Thread(() -> {
+            try {
+                RecordingPlayer player = new RecordingPlayer(session, cache, selectedRecording);
+                AudioFormat format = player.getFormat();
+                DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+                SourceDataLine speakers = (SourceDataLine) AudioSystem.getLine(info);
+
+                speakers.open(format);
+                speakers.start();
+                SwingUtilities.invokeLater(() -> statusLabel.setText("Playing: " + selectedRecording));
+
+                player.play(speakers, 0);
+                speakers.close();
+                SwingUtilities.invokeLater(() -> 
+                    statusLabel.setText("Playback finished: " + selectedRecording));
+            } catch (Exception e) {
+                e.printStackTrace();
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "Error playing recording", 
+                    "Error", JOptionPane.ERROR_MESSAGE));
+            }
+        });
 
-            playThread.start();
-        } catch (Exception e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error playing recording", "Error", 
-                JOptionPane.ERROR_MESSAGE);
-        }
+        playThread.start();
     }
 
     private void deleteRecording() {
@@ -344,53 +452,16 @@ public class AudioRecorderGUI extends JFrame {
             return;
         }
 
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader("audio-metadata.txt"));
-            String line;
-            boolean isOwner = false;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 2 && parts[0].equals(selectedRecording) && 
-                    parts[1].equals(username)) {
-                    isOwner = true;
-                    break;
-                }
-            }
-            reader.close();
-
-            if (!isOwner) {
-                JOptionPane.showMessageDialog(this, "You can only delete your own recordings", 
-                    "Permission Denied", JOptionPane.WARNING_MESSAGE);
-                return;
+        // The list itself is updated by the catalog watcher
+        new Thread(() -> {
+            try {
+                session.delete(selectedRecording);
+                SwingUtilities.invokeLater(() -> statusLabel.setText("Deleted: " + selectedRecording));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, 
+                    "Could not delete the recording: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE));
             }
-
-            File file = new File("recordings", selectedRecording);
-            if (file.delete()) {
-                refreshRecordingsList();
-                statusLabel.setText("Deleted: " + selectedRecording);
-            } else {
-                JOptionPane.showMessageDialog(this, "Could not delete the recording", 
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error deleting recording", "Error", 
-                JOptionPane.ERROR_MESSAGE);
-        }
-    }
-
-    private void refreshRecordingsList() {
-        listModel.clear();
-        File recordingsDir = new File("recordings");
-        if (recordingsDir.exists() && recordingsDir.isDirectory()) {
-            File[] recordings = recordingsDir.listFiles((dir, name) -> name.endsWith(".wav"));
-            if (recordings != null) {
-                Arrays.sort(recordings, Comparator.comparing(File::lastModified).reversed());
-                for (File recording : recordings) {
-                    listModel.addElement(recording.getName());
-                }
-            }
-        }
+        }).start();
     }
 
     public static void main(String[] args) {
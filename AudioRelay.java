@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live fan-out of streamed recordings: each user streaming with STREAM_START has a
+ * channel, and every CHUNK is copied to the listeners subscribed to it with LISTEN.
+ *
+ * The speaker never waits for listeners. Each frame is encoded once and offered to a
+ * bounded queue per listener; when a listener falls behind its queue is full and its
+ * oldest frame is dropped, since late audio is useless for live listening.
+ */
+public class AudioRelay {
+    private static final byte[] END = new byte[0];
+
+    private final int queueFrames;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    public AudioRelay(int queueFrames) {
+        this.queueFrames = queueFrames;
+    }
+
+    /**
+     * Opens the live channel of owner, ending the previous one if any. listeners is
+     * the comma-separated list of users who may listen besides owner, "*" for anyone.
+     */
+    public Channel open(String owner, String formatFields, String listeners) {
+        Channel channel = new Channel(owner, formatFields, listeners);
+        Channel previous = channels.put(owner, channel);
+        if (previous != null) {
+            previous.end();
+        }
+        return channel;
+    }
+
+    /** Live channel of owner, or null if that user is not streaming. */
+    public Channel get(String owner) {
+        return channels.get(owner);
+    }
+
+    public void close(Channel channel) {
+        channels.remove(channel.owner, channel);
+        channel.end();
+    }
+
+    public class Channel {
+        private final String owner;
+        private final String formatFields;
+        private final Set<String> listeners;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private final AtomicLong sequence = new AtomicLong();
+        private volatile boolean ended;
+
+        Channel(String owner, String formatFields, String listeners) {
+            this.owner = owner;
+            this.formatFields = formatFields;
+            this.listeners = Set.of(listeners.isEmpty() ? new String[0] : listeners.split(","));
+        }
+
+        /** Whether user may listen to this channel: its owner, or one of the listeners it named. */
+        public boolean allows(String user) {
+            return owner.equals(user) || listeners.contains(user) || listeners.contains("*");
+        }
+
+        /** Header fields (rate, bits, ...) of the audio sent on this channel. */
+        public String getFormatFields() {
+            return formatFields;
+        }
+
+        /** Sends one frame to every listener: "FRAME seq captureMillis length" then the bytes. */
+        public void publish(byte[] data, int offset, int length, long captureMillis) {
+            if (subscribers.isEmpty()) {
+                return;
+            }
+            byte[] line = ("FRAME " + sequence.getAndIncrement() + " " + captureMillis + " " + length + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+            byte[] packet = new byte[line.length + length];
+            System.arraycopy(line, 0, packet, 0, line.length);
+            System.arraycopy(data, offset, packet, line.length, length);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(packet);
+            }
+        }
+
+        /**
+         * Sends this channel's frames to out until the stream ends or the listener
+         * goes away. Runs on the listener's connection thread.
+         */
+        public void listen(OutputStream out) throws IOException {
+            Subscriber subscriber = new Subscriber();
+            subscribers.add(subscriber);
+            if (ended) {
+                subscriber.offer(END);
+            }
+            try {
+                subscriber.drainTo(out);
+            } finally {
+                subscribers.remove(subscriber);
+            }
+        }
+
+        void end() {
+            ended = true;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(END);
+            }
+        }
+    }
+
+    private class Subscriber {
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueFrames);
+        private final AtomicLong dropped = new AtomicLong();
+
+        void offer(byte[] packet) {
+            while (!queue.offer(packet)) {
+                byte[] oldest = queue.poll();
+                if (oldest != null && oldest != END) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        void drainTo(OutputStream out) throws IOException {
+            try {
+                while (true) {
+                    byte[] packet = queue.take();
+                    if (packet == END) {
+                        out.write(("END " + dropped.get() + "\n").getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                        return;
+                    }
+                    out.write(packet);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -2,27 +2,76 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class AudioServer {
     private static final String CONFIG_FILE = "audio-config.txt";
     private static String RECORDINGS_DIR;
+    private static String ARCHIVE_DIR = "archive";
+    private static int ARCHIVE_AFTER_DAYS = 0; // 0: never archive
+    private static int RETENTION_DAYS = 0; // 0: keep forever
+    private static int STORAGE_CHECK_MINUTES = 60;
     private static String METADATA_FILE;
     private static int MAX_AUDIO_SIZE_MB;
     private static List<String> ALLOWED_AUDIO_FORMATS;
     private static int PORT;
+    private static int BUFFER_SIZE = 4096;
+    private static float AUDIO_SAMPLE_RATE = 44100.0f;
+    private static int AUDIO_BITS = 16;
+    private static int AUDIO_CHANNELS = 1;
+    private static boolean AUDIO_SIGNED = true;
+    private static boolean AUDIO_BIG_ENDIAN = true;
+    private static int LIVE_QUEUE_FRAMES = 50;
+    private static boolean SILENCE_TRIM = false;
+    private static double SILENCE_THRESHOLD_DB = -50;
+    private static int SILENCE_MIN_MS = 1000;
+    private static int SILENCE_KEEP_MS = 250;
+    private static int MAX_CONNECTIONS = 256;
+    private static int INGEST_CPU_THREADS = 0; // 0: one per processor
+    private static int INGEST_IO_THREADS = 4;
+    private static int INGEST_BUFFERS = 4;
+    // null when silences are kept as they are
+    private static SilenceTrimmer.Settings SILENCE_TRIMMING;
+    private static final int CATALOG_WATCH_QUEUE = 10000;
+    private static final int DEFAULT_PEAKS_WIDTH = 512;
+    private static AudioRelay relay;
+    private static AudioCatalog catalog;
+    private static RecordingStore store;
+    private static IngestPipeline pipeline;
+    // One thread per connection, up to MAX_CONNECTIONS; further connections are refused
+    private static ThreadPoolExecutor connections;
+    private static final LongAdder refusedConnections = new LongAdder();
 
     public static void main(String[] args) {
         loadConfiguration();
+        relay = new AudioRelay(LIVE_QUEUE_FRAMES);
+        pipeline = new IngestPipeline(INGEST_CPU_THREADS > 0 ? INGEST_CPU_THREADS : Runtime.getRuntime().availableProcessors(),
+            INGEST_IO_THREADS, INGEST_BUFFERS, BUFFER_SIZE);
+        connections = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
 
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("Server started on port " + PORT);
-            File recordingsDir = new File(RECORDINGS_DIR);
-            if (!recordingsDir.exists()) {
-                recordingsDir.mkdir();
-            }
+            store = new RecordingStore(new File(RECORDINGS_DIR), new File(ARCHIVE_DIR));
+            store.recover();
+            catalog = new AudioCatalog(new File(METADATA_FILE));
+            catalog.load(store);
+            startStorageMaintenance();
 
             while (true) {
-                new ClientHandler(serverSocket.accept()).start();
+                Socket socket = serverSocket.accept();
+                try {
+                    connections.execute(new ClientHandler(socket));
+                } catch (RejectedExecutionException e) {
+                    refuse(socket);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -35,6 +84,14 @@ public class AudioServer {
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith("RECORDINGS_DIR=")) {
                     RECORDINGS_DIR = line.split("=")[1].trim();
+                } else if (line.startsWith("ARCHIVE_DIR=")) {
+                    ARCHIVE_DIR = line.split("=")[1].trim();
+                } else if (line.startsWith("ARCHIVE_AFTER_DAYS=")) {
+                    ARCHIVE_AFTER_DAYS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("RETENTION_DAYS=")) {
+                    RETENTION_DAYS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("STORAGE_CHECK_MINUTES=")) {
+                    STORAGE_CHECK_MINUTES = Integer.parseInt(line.split("=")[1].trim());
                 } else if (line.startsWith("METADATA_FILE=")) {
                     METADATA_FILE = line.split("=")[1].trim();
                 } else if (line.startsWith("MAX_AUDIO_SIZE_MB=")) {
@@ -44,23 +101,157 @@ public class AudioServer {
                     ALLOWED_AUDIO_FORMATS = Arrays.asList(formats.split(","));
                 } else if (line.startsWith("PORT=")) {
                     PORT = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("BUFFER_SIZE=")) {
+                    BUFFER_SIZE = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("AUDIO_SAMPLE_RATE=")) {
+                    AUDIO_SAMPLE_RATE = Float.parseFloat(line.split("=")[1].trim());
+                } else if (line.startsWith("AUDIO_BITS=")) {
+                    AUDIO_BITS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("AUDIO_CHANNELS=")) {
+                    AUDIO_CHANNELS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("AUDIO_SIGNED=")) {
+                    AUDIO_SIGNED = Boolean.parseBoolean(line.split("=")[1].trim());
+                } else if (line.startsWith("AUDIO_BIG_ENDIAN=")) {
+                    AUDIO_BIG_ENDIAN = Boolean.parseBoolean(line.split("=")[1].trim());
+                } else if (line.startsWith("LIVE_QUEUE_FRAMES=")) {
+                    LIVE_QUEUE_FRAMES = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("SILENCE_TRIM=")) {
+                    SILENCE_TRIM = Boolean.parseBoolean(line.split("=")[1].trim());
+                } else if (line.startsWith("SILENCE_THRESHOLD_DB=")) {
+                    SILENCE_THRESHOLD_DB = Double.parseDouble(line.split("=")[1].trim());
+                } else if (line.startsWith("SILENCE_MIN_MS=")) {
+                    SILENCE_MIN_MS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("SILENCE_KEEP_MS=")) {
+                    SILENCE_KEEP_MS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("MAX_CONNECTIONS=")) {
+                    MAX_CONNECTIONS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("INGEST_CPU_THREADS=")) {
+                    INGEST_CPU_THREADS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("INGEST_IO_THREADS=")) {
+                    INGEST_IO_THREADS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("INGEST_BUFFERS=")) {
+                    INGEST_BUFFERS = Integer.parseInt(line.split("=")[1].trim());
                 }
             }
+            if (SILENCE_TRIM) {
+                SILENCE_TRIMMING = new SilenceTrimmer.Settings(SILENCE_THRESHOLD_DB, SILENCE_MIN_MS, SILENCE_KEEP_MS);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             RECORDINGS_DIR = "recordings";
             METADATA_FILE = "audio-metadata.txt";
             MAX_AUDIO_SIZE_MB = 50;
-            ALLOWED_AUDIO_FORMATS = Arrays.asList("wav", "mp3");
+            ALLOWED_AUDIO_FORMATS = Arrays.asList("wav", "adpcm");
             PORT = 12345;
         }
     }
 
-    private static class ClientHandler extends Thread {
+    /** Answers a connection over MAX_CONNECTIONS with an error, without reading from it. */
+    private static void refuse(Socket socket) {
+        refusedConnections.increment();
+        try (Socket refused = socket) {
+            refused.setSoTimeout(1000);
+            AudioProtocol.writeLine(refused.getOutputStream(), "ERROR: Server busy, try again later.");
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+
+    /** Creates an empty, not yet used file for a new recording of this owner. */
+    private static File newRecordingFile(String owner, String extension) throws IOException {
+        return store.newFile("recording_" + owner + "_" + System.currentTimeMillis(), extension);
+    }
+
+    /**
+     * Every STORAGE_CHECK_MINUTES, from startup on: recordings created more than
+     * RETENTION_DAYS ago are deleted, and those neither created nor played in the last
+     * ARCHIVE_AFTER_DAYS move to the archive tier of the store. 0 days disables a rule.
+     */
+    private static void startStorageMaintenance() {
+        if (RETENTION_DAYS <= 0 && ARCHIVE_AFTER_DAYS <= 0) {
+            return;
+        }
+        ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "storage-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                applyStoragePolicy();
+            } catch (RuntimeException e) {
+                // an exception would cancel the next runs
+                e.printStackTrace();
+            }
+        }, 0, STORAGE_CHECK_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private static void applyStoragePolicy() {
+        long now = System.currentTimeMillis();
+        long expiry = now - TimeUnit.DAYS.toMillis(RETENTION_DAYS);
+        long coldSince = now - TimeUnit.DAYS.toMillis(ARCHIVE_AFTER_DAYS);
+        int expired = 0;
+        int archived = 0;
+        for (AudioCatalog.Entry entry : catalog.entries()) {
+            try {
+                if (RETENTION_DAYS > 0 && entry.created < expiry) {
+                    store.delete(entry.name);
+                    catalog.delete(entry.name);
+                    expired++;
+                } else if (ARCHIVE_AFTER_DAYS > 0 && !entry.archived
+                        && Math.max(Math.max(entry.created, entry.lastPlayed), store.hotFile(entry.name).lastModified())
+                            < coldSince
+                        && store.archive(entry.name)) {
+                    synchronized (store) {
+                        // unless it was asked for (and restored) in the meantime
+                        if (store.isArchived(entry.name)) {
+                            catalog.setArchived(entry.name, true);
+                            archived++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Storage policy failed for " + entry.name + ": " + e.getMessage());
+            }
+        }
+        if (expired > 0 || archived > 0) {
+            System.out.println("Storage: " + expired + " recordings expired, " + archived + " archived");
+        }
+    }
+
+    /**
+     * The hot file of a recording, brought back from the archive if needed; null if there
+     * is none. Counts as a play of the recording for the archiving policy.
+     */
+    private static File restoreRecording(String name) throws IOException {
+        synchronized (store) {
+            File file = store.restore(name);
+            AudioCatalog.Entry entry = catalog.get(name);
+            if (file != null && entry != null && entry.archived) {
+                catalog.setArchived(name, false);
+                System.out.println("Restored from archive: " + name);
+            }
+            if (file != null) {
+                catalog.played(name, System.currentTimeMillis());
+            }
+            return file;
+        }
+    }
+
+    private static class ClientHandler implements Runnable {
         private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
+        private OutputStream out;
+        private InputStream in;
         private String username;
+        // Live stream in progress on this connection, if any
+        private WavWriter stream;
+        private IngestPipeline.Job streamJob;
+        private long streamReceived;
+        private File streamFile;
+        private String streamError;
+        private AudioRelay.Channel liveChannel;
+        // Chunks of a stream whose recording has stopped are only relayed, through this buffer
+        private byte[] relayOnly;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -68,22 +259,24 @@ public class AudioServer {
 
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                socket.setTcpNoDelay(true);
+                // Commands and audio share one buffered stream, see AudioProtocol
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
 
                 while (true) {
-                    String message = in.readLine();
+                    String message = AudioProtocol.readLine(in);
                     if (message == null) {
                         break;
                     }
-
-                    if (message.equals("SEND_AUDIO")) {
-                        receiveAudio();
+                    if (!handleCommand(message)) {
+                        break;
                     }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
+                closeStream("");
                 try {
                     socket.close();
                 } catch (IOException e) {
@@ -92,41 +285,580 @@ public class AudioServer {
             }
         }
 
-        private void receiveAudio() {
+        /** Runs one command; returns false when the connection must be closed. */
+        private boolean handleCommand(String message) throws IOException {
+            String command = message.split(" ", 2)[0];
+            String argument = message.length() > command.length() ? message.substring(command.length() + 1).trim() : "";
+            switch (command) {
+                case AudioProtocol.USER:
+                    if (!AudioProtocol.isSafeName(argument)) {
+                        reply("ERROR: Invalid user name.");
+                    } else {
+                        username = argument;
+                        reply("OK");
+                    }
+                    return true;
+                case AudioProtocol.SEND_AUDIO:
+                    return receiveAudio(message);
+                case AudioProtocol.LIST:
+                    listRecordings(argument);
+                    return true;
+                case AudioProtocol.FETCH:
+                    fetchRecording(argument);
+                    return true;
+                case AudioProtocol.PEAKS:
+                    sendPeaks(argument);
+                    return true;
+                case AudioProtocol.DELETE:
+                    deleteRecording(argument);
+                    return true;
+                case AudioProtocol.STREAM_START:
+                    startStream(message);
+                    return true;
+                case AudioProtocol.CHUNK:
+                    return receiveChunk(argument);
+                case AudioProtocol.STREAM_END:
+                    endStream(argument);
+                    return true;
+                case AudioProtocol.LISTEN:
+                    listen(argument);
+                    return false;
+                case AudioProtocol.WATCH:
+                    watchCatalog();
+                    return false;
+                case AudioProtocol.STATS:
+                    sendStats();
+                    return true;
+                default:
+                    reply("ERROR: Unknown command " + command);
+                    return true;
+            }
+        }
+
+        private void reply(String message) throws IOException {
+            AudioProtocol.writeLine(out, message);
+            out.flush();
+        }
+
+        /**
+         * Streams one upload straight into its file, BUFFER_SIZE bytes at a time: PCM
+         * into a WAV file through the IngestPipeline, other allowed formats as they are,
+         * on this thread. The header announces the
+         * size, so an oversized upload is refused before any of it is read; a header
+         * without a length (older clients) is read until the connection closes and
+         * aborted as soon as it passes the limit. Returns false when the connection
+         * cannot be used for another command.
+         */
+        private boolean receiveAudio(String command) throws IOException {
+            long maxBytes = MAX_AUDIO_SIZE_MB * 1024L * 1024L;
+            AudioProtocol.RecordingHeader header;
             try {
-                InputStream inputStream = socket.getInputStream();
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    byteArrayOutputStream.write(buffer, 0, bytesRead);
+                header = parseHeader(command);
+            } catch (IOException e) {
+                reply("ERROR: " + e.getMessage());
+                return false;
+            }
+            long length = header.length;
+            if (length > maxBytes) {
+                reply("ERROR: File size exceeds " + MAX_AUDIO_SIZE_MB + " MB limit.");
+                return false;
+            }
+
+            String error = checkHeader(header);
+            if (error != null) {
+                // Skip the body so the next command is read from the right place
+                if (length < 0 || !discard(length)) {
+                    reply("ERROR: " + error);
+                    return false;
+                }
+                reply("ERROR: " + error);
+                return true;
+            }
+
+            File file = newRecordingFile(header.owner, isWav(header.format) ? "wav" : header.format);
+            String fileName = file.getName();
+            long received = 0;
+            String silences = header.silences;
+            try (Closeable sink = openSink(file, header);
+                 IngestPipeline.Job job = sink instanceof WavWriter ? pipeline.start((WavWriter) sink) : null) {
+                byte[] raw = job == null ? new byte[BUFFER_SIZE] : null;
+                while (length < 0 || received < length) {
+                    // Waits while the recording's buffers are all in the pipeline
+                    IngestPipeline.Buffer buffer = job != null ? job.take(BUFFER_SIZE) : null;
+                    byte[] data = buffer != null ? buffer.data : raw;
+                    int toRead = length < 0 ? BUFFER_SIZE : (int) Math.min(BUFFER_SIZE, length - received);
+                    int bytesRead = in.read(data, 0, toRead);
+                    if (bytesRead == -1) {
+                        if (length < 0) {
+                            break;
+                        }
+                        throw new EOFException("Upload ended after " + received + " of " + length + " bytes");
+                    }
+                    received += bytesRead;
+                    if (received > maxBytes) {
+                        throw new IOException("File size exceeds " + MAX_AUDIO_SIZE_MB + " MB limit.");
+                    }
+                    if (job != null) {
+                        job.submit(buffer, bytesRead);
+                    } else {
+                        ((OutputStream) sink).write(data, 0, bytesRead);
+                    }
+                }
+                if (job != null) {
+                    job.finish();
+                    String cut = ((WavWriter) sink).getSilences();
+                    if (!cut.isEmpty()) {
+                        silences = cut;
+                    }
                 }
-                byte[] audioData = byteArrayOutputStream.toByteArray();
-                
-                if (audioData.length > MAX_AUDIO_SIZE_MB * 1024 * 1024) {
-                    out.println("ERROR: File size exceeds " + MAX_AUDIO_SIZE_MB + " MB limit.");
-                    return;
+            } catch (IOException e) {
+                file.delete();
+                WaveformSummary.fileFor(file).delete();
+                System.err.println("Upload failed: " + e.getMessage());
+                try {
+                    reply("ERROR: " + e.getMessage());
+                } catch (IOException ignored) {
+                    // the client is already gone
                 }
+                return false;
+            }
+
+            catalog.add(AudioCatalog.describe(file, header.owner, System.currentTimeMillis(), silences));
+            System.out.println("Audio saved: " + fileName + " (" + received + " bytes)");
+            if (length < 0) {
+                return false;
+            }
+            reply("OK " + fileName);
+            return true;
+        }
+
+        private AudioProtocol.RecordingHeader parseHeader(String command) throws IOException {
+            return AudioProtocol.RecordingHeader.parse(command, new AudioProtocol.RecordingHeader(-1,
+                AUDIO_SAMPLE_RATE, AUDIO_BITS, AUDIO_CHANNELS, AUDIO_SIGNED, AUDIO_BIG_ENDIAN,
+                username != null ? username : "anonymous"));
+        }
+
+        /** Returns why the header is refused, or null. */
+        private String checkHeader(AudioProtocol.RecordingHeader header) {
+            if (!ALLOWED_AUDIO_FORMATS.contains(header.format)) {
+                return "Invalid format. Allowed: " + ALLOWED_AUDIO_FORMATS;
+            }
+            if (!AudioProtocol.isSafeName(header.owner) || (username != null && !username.equals(header.owner))) {
+                return "Invalid owner: " + header.owner;
+            }
+            return null;
+        }
+
+        /**
+         * Opens the file of a live stream. It is listed in the metadata right away: the
+         * audio is appended as CHUNK frames arrive, so the recording survives a client
+         * that disconnects without STREAM_END.
+         */
+        private void startStream(String command) throws IOException {
+            if (stream != null) {
+                reply("ERROR: A stream is already in progress.");
+                return;
+            }
+            AudioProtocol.RecordingHeader header;
+            try {
+                header = parseHeader(command);
+            } catch (IOException e) {
+                reply("ERROR: " + e.getMessage());
+                return;
+            }
+            String error = checkHeader(header);
+            if (error == null && !isWav(header.format)) {
+                error = "Only wav and adpcm can be streamed.";
+            }
+            if (error != null) {
+                reply("ERROR: " + error);
+                return;
+            }
 
-                String fileType = "wav";
-                if (!ALLOWED_AUDIO_FORMATS.contains(fileType)) {
-                    out.println("ERROR: Invalid format. Allowed: " + ALLOWED_AUDIO_FORMATS);
-                    return;
+            File file = newRecordingFile(header.owner, isWav(header.format) ? "wav" : header.format);
+            try {
+                stream = openWavWriter(file, header);
+            } catch (IOException e) {
+                file.delete();
+                reply("ERROR: " + e.getMessage());
+                return;
+            }
+            streamJob = pipeline.start(stream);
+            streamReceived = 0;
+            streamFile = file;
+            streamError = null;
+            liveChannel = relay.open(header.owner, header.fields(), header.listeners);
+            catalog.add(new AudioCatalog.Entry(file.getName(), header.owner, header.format, stream.getFileLength(), 0,
+                System.currentTimeMillis(), ""));
+            System.out.println("Stream started: " + file.getName());
+            reply("OK " + file.getName());
+        }
+
+        /**
+         * Appends one frame to the current stream, through the IngestPipeline, and relays
+         * it to live listeners. Frames are not answered: a write failure or the size limit stops the
+         * recording where it is and is reported by STREAM_END, while the relay goes on.
+         */
+        private boolean receiveChunk(String argument) throws IOException {
+            String[] fields = argument.split("\\s+");
+            int length;
+            long captureMillis = System.currentTimeMillis();
+            try {
+                length = Integer.parseInt(fields[0]);
+                if (fields.length > 1 && fields[1].startsWith("t=")) {
+                    captureMillis = Long.parseLong(fields[1].substring(2));
                 }
+            } catch (NumberFormatException e) {
+                reply("ERROR: Invalid chunk: " + argument);
+                return false;
+            }
+            if (stream == null || length < 0 || length > AudioProtocol.MAX_CHUNK_SIZE) {
+                // No answer can hold this error: the client is out of sync, drop the connection
+                reply(stream == null ? "ERROR: No stream in progress." : "ERROR: Invalid chunk length: " + length);
+                return false;
+            }
 
-                String fileName = "recording_" + System.currentTimeMillis() + ".wav";
-                File file = new File(RECORDINGS_DIR, fileName);
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    fos.write(audioData);
+            long maxBytes = MAX_AUDIO_SIZE_MB * 1024L * 1024L;
+            if (streamError == null && streamReceived + length > maxBytes) {
+                streamError = "Recording stopped at the " + MAX_AUDIO_SIZE_MB + " MB limit.";
+            }
+            IngestPipeline.Buffer buffer = null;
+            if (streamError == null) {
+                try {
+                    buffer = streamJob.take(length);
+                } catch (IOException e) {
+                    streamError = e.getMessage();
+                }
+            }
+            byte[] frame;
+            if (buffer != null) {
+                frame = buffer.data;
+            } else {
+                if (relayOnly == null || relayOnly.length < length) {
+                    relayOnly = new byte[Math.max(length, BUFFER_SIZE)];
                 }
+                frame = relayOnly;
+            }
+            new DataInputStream(in).readFully(frame, 0, length);
+            liveChannel.publish(frame, 0, length, captureMillis);
+            if (buffer != null) {
+                streamReceived += length;
+                streamJob.submit(buffer, length);
+            }
+            return true;
+        }
 
-                try (BufferedWriter metadataWriter = new BufferedWriter(new FileWriter(METADATA_FILE, true))) {
-                    metadataWriter.write(fileName + "," + username + "\n");
+        /** STATS: connections and the load of each IngestPipeline stage, one line each. */
+        private void sendStats() throws IOException {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("connections active=%d max=%d refused=%d", connections.getActiveCount(),
+                MAX_CONNECTIONS, refusedConnections.sum()));
+            lines.addAll(pipeline.stats());
+            StringBuilder response = new StringBuilder("OK " + lines.size() + "\n");
+            for (String line : lines) {
+                response.append(line).append('\n');
+            }
+            out.write(response.toString().getBytes("UTF-8"));
+            out.flush();
+        }
+
+        /** Turns this connection into a feed of catalog changes, see AudioCatalog. */
+        private void watchCatalog() throws IOException {
+            BlockingQueue<String> events = new ArrayBlockingQueue<>(CATALOG_WATCH_QUEUE);
+            try {
+                List<AudioCatalog.Entry> snapshot = catalog.watch(events);
+                StringBuilder response = new StringBuilder("OK " + snapshot.size() + "\n");
+                for (AudioCatalog.Entry entry : snapshot) {
+                    response.append(entry.toLine()).append('\n');
                 }
+                out.write(response.toString().getBytes("UTF-8"));
+                out.flush();
+                while (true) {
+                    String event = events.take();
+                    AudioProtocol.writeLine(out, event);
+                    if (events.isEmpty()) {
+                        out.flush();
+                    }
+                    if (event.equals(AudioProtocol.OVERFLOW)) {
+                        out.flush();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                catalog.unwatch(events);
+            }
+        }
+
+        /**
+         * Turns this connection into a live listener of user's stream, see AudioRelay.
+         * Only user and the listeners it named in STREAM_START may listen.
+         */
+        private void listen(String user) throws IOException {
+            if (username == null) {
+                reply("ERROR: Log in with USER before listening.");
+                return;
+            }
+            AudioRelay.Channel channel = relay.get(user);
+            if (channel == null) {
+                reply("ERROR: " + user + " is not streaming.");
+                return;
+            }
+            if (!channel.allows(username)) {
+                reply("ERROR: " + user + " does not allow you to listen.");
+                return;
+            }
+            reply("OK " + channel.getFormatFields());
+            channel.listen(out);
+        }
+
+        /** STREAM_END [silences=...]: silences are given by clients that trim them, see AudioProtocol. */
+        private void endStream(String argument) throws IOException {
+            if (stream == null) {
+                reply("ERROR: No stream in progress.");
+                return;
+            }
+            String fileName = streamFile.getName();
+            String silences = argument.startsWith("silences=") ? argument.substring("silences=".length()) : "";
+            boolean closed = closeStream(silences);
+            // set by closeStream too, if the pipeline failed on the last frames
+            String error = streamError;
+            if (!closed && error == null) {
+                error = "Failed to finish " + fileName;
+            }
+            reply(error == null ? "OK " + fileName : "ERROR: " + error);
+        }
 
-                System.out.println("Audio saved: " + fileName);
+        /**
+         * Finishes the WAV header of the current stream, if any; false if that failed.
+         * silences are those cut by the client, used when the server did not trim.
+         */
+        private boolean closeStream(String silences) {
+            if (stream == null) {
+                return true;
+            }
+            relay.close(liveChannel);
+            try {
+                if (streamError == null) {
+                    try {
+                        streamJob.finish();
+                    } catch (IOException e) {
+                        streamError = e.getMessage();
+                    }
+                }
+                streamJob.close();
+                String cut = stream.getSilences();
+                if (!cut.isEmpty()) {
+                    silences = cut;
+                }
+                stream.close();
+                catalog.update(streamFile.getName(), stream.getFileLength(), stream.getDurationMillis(), silences);
+                System.out.println("Stream saved: " + streamFile.getName() + " (" + stream.getDataLength() + " bytes)");
+                return true;
             } catch (IOException e) {
                 e.printStackTrace();
+                return false;
+            } finally {
+                stream = null;
+                streamJob = null;
+                streamFile = null;
+                liveChannel = null;
+            }
+        }
+
+        /** PCM and IMA ADPCM recordings are both stored as WAV files. */
+        private boolean isWav(String format) {
+            return "wav".equals(format) || "adpcm".equals(format);
+        }
+
+        /** Writer for a WAV recording, cutting long silences unless disabled or done by the client. */
+        private WavWriter openWavWriter(File file, AudioProtocol.RecordingHeader header) throws IOException {
+            WavWriter writer = "adpcm".equals(header.format) ? WavWriter.imaAdpcm(file, header.sampleRate, header.channels)
+                : new WavWriter(file, header.sampleRate, header.bits, header.channels, header.signed, header.bigEndian);
+            if (SILENCE_TRIMMING != null && !header.trimmed) {
+                writer.trimSilences(SILENCE_TRIMMING);
+            }
+            return writer;
+        }
+
+        private Closeable openSink(File file, AudioProtocol.RecordingHeader header) throws IOException {
+            if (isWav(header.format)) {
+                return openWavWriter(file, header);
+            }
+            return new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        }
+
+        /** Reads and drops length bytes; false if the stream ends first. */
+        private boolean discard(long length) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (length > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (bytesRead == -1) {
+                    return false;
+                }
+                length -= bytesRead;
+            }
+            return true;
+        }
+
+        /** LIST [owner=] [format=] [since=] [until=] [offset=] [limit=], answered from the catalog. */
+        private void listRecordings(String argument) throws IOException {
+            AudioCatalog.Query query = new AudioCatalog.Query();
+            try {
+                for (String field : argument.split("\\s+")) {
+                    int separator = field.indexOf('=');
+                    if (separator < 0) {
+                        continue;
+                    }
+                    String value = field.substring(separator + 1);
+                    switch (field.substring(0, separator)) {
+                        case "owner":
+                            query.owner = value;
+                            break;
+                        case "format":
+                            query.format = value;
+                            break;
+                        case "since":
+                            query.since = Long.parseLong(value);
+                            break;
+                        case "until":
+                            query.until = Long.parseLong(value);
+                            break;
+                        case "offset":
+                            query.offset = Integer.parseInt(value);
+                            break;
+                        case "limit":
+                            query.limit = Integer.parseInt(value);
+                            break;
+                        default:
+                            // unknown filters are ignored, like unknown header keys
+                    }
+                }
+            } catch (NumberFormatException e) {
+                reply("ERROR: Invalid query: " + e.getMessage());
+                return;
+            }
+
+            int[] total = new int[1];
+            List<AudioCatalog.Entry> page = catalog.query(query, total);
+            StringBuilder response = new StringBuilder("OK " + page.size() + " " + total[0] + "\n");
+            for (AudioCatalog.Entry entry : page) {
+                response.append(entry.toLine()).append('\n');
+            }
+            out.write(response.toString().getBytes("UTF-8"));
+            out.flush();
+        }
+
+        /**
+         * Opens a recording, brought back from the archive if needed (see restoreRecording);
+         * answers an error and returns null if there is none. The file is opened under the
+         * store's lock, so the archiver cannot move it away first.
+         */
+        private RandomAccessFile openRecording(String name) throws IOException {
+            if (AudioProtocol.isSafeName(name) && catalog.get(name) != null) {
+                try {
+                    synchronized (store) {
+                        File file = restoreRecording(name);
+                        if (file != null) {
+                            return new RandomAccessFile(file, "r");
+                        }
+                    }
+                } catch (IOException e) {
+                    reply("ERROR: Cannot open " + name + ": " + e.getMessage());
+                    return null;
+                }
+            }
+            reply("ERROR: Recording not found: " + name);
+            return null;
+        }
+
+        /** FETCH file [offset [length]]: the whole file or a byte range of it. */
+        private void fetchRecording(String argument) throws IOException {
+            String[] fields = argument.split("\\s+");
+            String name = fields[0];
+            long offset;
+            long length;
+            try {
+                offset = fields.length > 1 ? Long.parseLong(fields[1]) : 0;
+                length = fields.length > 2 ? Long.parseLong(fields[2]) : Long.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                reply("ERROR: Invalid range: " + argument);
+                return;
+            }
+            RandomAccessFile input = openRecording(name);
+            if (input == null) {
+                return;
+            }
+            try (input) {
+                long total = input.length();
+                offset = Math.max(0, Math.min(offset, total));
+                length = Math.max(0, Math.min(length, total - offset));
+                input.seek(offset);
+                AudioProtocol.writeLine(out, "OK " + length + " " + total);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = length;
+                int bytesRead;
+                while (remaining > 0 && (bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
+                if (remaining > 0) {
+                    // The file shrank while being sent: the client would wait forever for the rest
+                    throw new IOException("Recording changed during fetch: " + name);
+                }
+            }
+            out.flush();
+        }
+
+        /**
+         * PEAKS file [width]: the waveform summary level with at most width buckets, saved
+         * when the recording was written (or built from it now for older recordings).
+         * The summary stays in the hot tier, so an archived recording is only brought
+         * back if it has none.
+         */
+        private void sendPeaks(String argument) throws IOException {
+            String[] fields = argument.split("\\s+");
+            String name = fields[0];
+            if (!AudioProtocol.isSafeName(name) || catalog.get(name) == null) {
+                reply("ERROR: Recording not found: " + name);
+                return;
+            }
+            WaveformSummary.Level level;
+            try {
+                int width = fields.length > 1 ? Integer.parseInt(fields[1]) : DEFAULT_PEAKS_WIDTH;
+                File file = store.hotFile(name);
+                if (!WaveformSummary.fileFor(file).isFile()) {
+                    file = restoreRecording(name);
+                    if (file == null) {
+                        throw new FileNotFoundException("recording is gone");
+                    }
+                }
+                level = WaveformSummary.forRecording(file, width);
+            } catch (NumberFormatException e) {
+                reply("ERROR: Invalid width: " + argument);
+                return;
+            } catch (IOException e) {
+                reply("ERROR: No waveform for " + fields[0] + ": " + e.getMessage());
+                return;
+            }
+            AudioProtocol.writeLine(out, "OK " + level.framesPerBucket + " " + level.count());
+            out.write(level.buckets);
+            out.flush();
+        }
+
+        private void deleteRecording(String name) throws IOException {
+            AudioCatalog.Entry entry = AudioProtocol.isSafeName(name) ? catalog.get(name) : null;
+            if (entry == null) {
+                reply("ERROR: Recording not found: " + name);
+            } else if (username == null || !username.equals(entry.owner)) {
+                reply("ERROR: You can only delete your own recordings.");
+            } else if (store.delete(name)) {
+                catalog.delete(name);
+                System.out.println("Audio deleted: " + name);
+                reply("OK");
+            } else {
+                reply("ERROR: Failed to delete recording.");
             }
         }
     }
@@ -0,0 +1,326 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Client side of an AudioServer session: one persistent connection for uploads,
+ * listing, fetching and deleting recordings (see AudioProtocol).
+ *
+ * Methods are synchronized so the GUI can call them from worker threads; each one
+ * sends its command(s) and reads the matching answers before returning. Server
+ * errors are thrown as IOException with the server's message.
+ *
+ * With the adpcm codec, 16-bit audio is compressed with ImaAdpcm before it is sent,
+ * about four times smaller on the wire and on the server's disk. With silence trimming,
+ * live streams go through a SilenceTrimmer first, so long pauses are not sent at all.
+ */
+public class AudioSession implements Closeable {
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+    private String username;
+    private boolean adpcm;
+    private SilenceTrimmer.Settings silenceTrimming;
+    private String liveListeners = "";
+
+    /** One entry of the server's recording catalog. */
+    public static class RecordingInfo {
+        public final String name;
+        public final String owner;
+        public final long size;
+        public final long durationMillis;
+        public final String format;
+        public final long created;
+        /** Silences cut at ingest, "startMs+lengthMs;...", or "" */
+        public final String silences;
+
+        RecordingInfo(String name, String owner, long size, long durationMillis, String format, long created,
+                      String silences) {
+            this.name = name;
+            this.owner = owner;
+            this.size = size;
+            this.durationMillis = durationMillis;
+            this.format = format;
+            this.created = created;
+            this.silences = silences;
+        }
+
+        static RecordingInfo parse(String line) throws IOException {
+            String[] fields = line.split(",");
+            try {
+                return new RecordingInfo(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                    fields[4], Long.parseLong(fields[5]), fields.length > 6 ? fields[6] : "");
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid catalog line: " + line);
+            }
+        }
+    }
+
+    /** One page of a catalog query and the number of recordings matching it. */
+    public static class Page {
+        public final List<RecordingInfo> recordings;
+        public final int total;
+
+        Page(List<RecordingInfo> recordings, int total) {
+            this.recordings = recordings;
+            this.total = total;
+        }
+    }
+
+    /**
+     * A recording sent while it is being captured. Each write is sent at once as one
+     * CHUNK frame; finish() ends it and returns the server's answer for the whole stream.
+     */
+    public class LiveStream {
+        private final String name;
+        private final ImaAdpcm.Encoder encoder; // null when sending PCM
+        private final SilenceTrimmer trimmer; // null when silences are sent
+
+        LiveStream(String name, ImaAdpcm.Encoder encoder, AudioFormat format) {
+            this.name = name;
+            this.encoder = encoder;
+            this.trimmer = silenceTrimming == null ? null : new SilenceTrimmer(silenceTrimming, format.getSampleRate(),
+                format.getSampleSizeInBits(), format.getChannels(), format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED,
+                format.isBigEndian(), 0, this::send);
+        }
+
+        /** File name of the recording on the server. */
+        public String getName() {
+            return name;
+        }
+
+        public void write(byte[] audioData, int offset, int length) throws IOException {
+            if (trimmer != null) {
+                trimmer.write(audioData, offset, length);
+            } else {
+                send(audioData, offset, length);
+            }
+        }
+
+        private void send(byte[] audioData, int offset, int length) throws IOException {
+            if (encoder != null) {
+                // Only whole blocks are sent, the rest waits for the next capture buffer
+                audioData = encoder.encode(audioData, offset, length);
+                offset = 0;
+                length = audioData.length;
+                if (length == 0) {
+                    return;
+                }
+            }
+            synchronized (AudioSession.this) {
+                // The capture time lets live listeners measure end-to-end latency
+                AudioProtocol.writeLine(out, AudioProtocol.CHUNK + " " + length + " t=" + System.currentTimeMillis());
+                out.write(audioData, offset, length);
+                out.flush();
+            }
+        }
+
+        public String finish() throws IOException {
+            String silences = "";
+            if (trimmer != null) {
+                trimmer.finish();
+                silences = trimmer.getSilences();
+            }
+            if (encoder != null) {
+                byte[] last = encoder.finish();
+                if (last.length > 0) {
+                    send(last, 0, last.length);
+                }
+            }
+            synchronized (AudioSession.this) {
+                AudioProtocol.writeLine(out, AudioProtocol.STREAM_END + (silences.isEmpty() ? "" : " silences=" + silences));
+                out.flush();
+                return expectOk();
+            }
+        }
+    }
+
+    public AudioSession(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        // Live chunks are small and must not wait for Nagle's algorithm
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new BufferedInputStream(socket.getInputStream());
+    }
+
+    /** Chooses how audio is sent: "adpcm" to compress 16-bit audio, anything else for PCM. */
+    public void setCodec(String codec) {
+        adpcm = "adpcm".equals(codec);
+    }
+
+    /** Cuts long silences from live streams before they are sent; null to send everything. */
+    public void setSilenceTrimming(SilenceTrimmer.Settings settings) {
+        silenceTrimming = settings;
+    }
+
+    /** Who may listen to live streams besides this user: "name,name,...", "*" for anyone, "" for nobody. */
+    public void setLiveListeners(String listeners) {
+        liveListeners = listeners.replace(" ", "");
+    }
+
+    public synchronized void login(String username) throws IOException {
+        this.username = username;
+        AudioProtocol.writeLine(out, AudioProtocol.USER + " " + username);
+        out.flush();
+        expectOk();
+    }
+
+    /** Uploads one recording and returns its file name on the server. */
+    public String upload(byte[] audioData, AudioFormat format) throws IOException {
+        return uploadAll(Collections.singletonList(audioData), format).get(0);
+    }
+
+    /**
+     * Uploads several recordings back to back, then reads all the answers: the
+     * uploads are pipelined instead of waiting one round trip for each.
+     */
+    public synchronized List<String> uploadAll(List<byte[]> recordings, AudioFormat format) throws IOException {
+        for (byte[] audioData : recordings) {
+            if (usesAdpcm(format)) {
+                ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder(format.getChannels(), format.isBigEndian());
+                byte[] blocks = encoder.encode(audioData, 0, audioData.length);
+                byte[] last = encoder.finish();
+                audioData = Arrays.copyOf(blocks, blocks.length + last.length);
+                System.arraycopy(last, 0, audioData, blocks.length, last.length);
+            }
+            AudioProtocol.writeLine(out, header(audioData.length, format).toCommand());
+            out.write(audioData);
+        }
+        out.flush();
+        List<String> names = new ArrayList<>();
+        IOException firstError = null;
+        for (int i = 0; i < recordings.size(); i++) {
+            try {
+                names.add(expectOk());
+            } catch (IOException e) {
+                if (firstError == null) {
+                    firstError = e;
+                }
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+        return names;
+    }
+
+    /** Starts a live recording; its audio is then sent with the returned stream. */
+    public synchronized LiveStream startStream(AudioFormat format) throws IOException {
+        AudioProtocol.RecordingHeader header = header(-1, format);
+        header.trimmed = silenceTrimming != null;
+        header.listeners = liveListeners;
+        AudioProtocol.writeLine(out, header.toStreamCommand());
+        out.flush();
+        return new LiveStream(expectOk(),
+            usesAdpcm(format) ? new ImaAdpcm.Encoder(format.getChannels(), format.isBigEndian()) : null, format);
+    }
+
+    private boolean usesAdpcm(AudioFormat format) {
+        return adpcm && format.getSampleSizeInBits() == 16 && format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+    }
+
+    private AudioProtocol.RecordingHeader header(long length, AudioFormat format) {
+        AudioProtocol.RecordingHeader header = new AudioProtocol.RecordingHeader(length, format.getSampleRate(),
+            format.getSampleSizeInBits(), format.getChannels(), format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED,
+            format.isBigEndian(), username);
+        if (usesAdpcm(format)) {
+            header.format = "adpcm";
+            header.bits = 4;
+        }
+        return header;
+    }
+
+    /** All recordings, newest first. */
+    public List<RecordingInfo> list() throws IOException {
+        return query(null, null, 0, 0).recordings;
+    }
+
+    /**
+     * Recordings of owner in format (null for any), newest first, skipping offset of
+     * them and returning at most limit (0 for all).
+     */
+    public synchronized Page query(String owner, String format, int offset, int limit) throws IOException {
+        StringBuilder command = new StringBuilder(AudioProtocol.LIST);
+        if (owner != null) {
+            command.append(" owner=").append(owner);
+        }
+        if (format != null) {
+            command.append(" format=").append(format);
+        }
+        command.append(" offset=").append(offset).append(" limit=").append(limit);
+        AudioProtocol.writeLine(out, command.toString());
+        out.flush();
+        String[] counts = expectOk().split(" ");
+        int count = Integer.parseInt(counts[0]);
+        List<RecordingInfo> recordings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String line = AudioProtocol.readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            recordings.add(RecordingInfo.parse(line));
+        }
+        return new Page(recordings, Integer.parseInt(counts[1]));
+    }
+
+    /** Bytes of a recording file fetched by fetchRange. */
+    public static class Range {
+        public final byte[] data;
+        /** Size of the whole file on the server. */
+        public final long total;
+
+        Range(byte[] data, long total) {
+            this.data = data;
+            this.total = total;
+        }
+    }
+
+    /** Downloads a recording as a complete WAV file. */
+    public byte[] fetch(String name) throws IOException {
+        return fetchRange(name, 0, Integer.MAX_VALUE).data;
+    }
+
+    /** Downloads at most length bytes of a recording file, from offset. */
+    public synchronized Range fetchRange(String name, long offset, int length) throws IOException {
+        AudioProtocol.writeLine(out, AudioProtocol.FETCH + " " + name + " " + offset + " " + length);
+        out.flush();
+        String[] sizes = expectOk().split(" ");
+        byte[] data = new byte[Integer.parseInt(sizes[0])];
+        new DataInputStream(in).readFully(data);
+        return new Range(data, Long.parseLong(sizes[1]));
+    }
+
+    /** Waveform of a recording with at most width buckets, see WaveformSummary. */
+    public synchronized WaveformSummary.Level peaks(String name, int width) throws IOException {
+        AudioProtocol.writeLine(out, AudioProtocol.PEAKS + " " + name + " " + width);
+        out.flush();
+        String[] fields = expectOk().split(" ");
+        byte[] buckets = new byte[3 * Integer.parseInt(fields[1])];
+        new DataInputStream(in).readFully(buckets);
+        return new WaveformSummary.Level(Integer.parseInt(fields[0]), buckets);
+    }
+
+    public synchronized void delete(String name) throws IOException {
+        AudioProtocol.writeLine(out, AudioProtocol.DELETE + " " + name);
+        out.flush();
+        expectOk();
+    }
+
+    /** Reads one answer and returns what follows "OK ", or throws the server's error. */
+    private String expectOk() throws IOException {
+        String response = AudioProtocol.readLine(in);
+        if (response == null) {
+            throw new EOFException("Connection closed by server");
+        }
+        if (!response.startsWith("OK")) {
+            throw new IOException(response.startsWith("ERROR: ") ? response.substring(7) : response);
+        }
+        return response.length() > 3 ? response.substring(3) : "";
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Follows the server's recording catalog (WATCH command) on its own connection and
+ * thread, so a client can keep its list up to date without polling.
+ *
+ * The listener first gets a full snapshot, then one call per change. After a lost
+ * connection or an OVERFLOW it reconnects and starts again with a new snapshot.
+ * Listener methods run on the watcher thread.
+ */
+public class CatalogWatcher implements Closeable {
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    public interface Listener {
+        void snapshot(List<AudioSession.RecordingInfo> recordings);
+
+        void added(AudioSession.RecordingInfo recording);
+
+        void updated(AudioSession.RecordingInfo recording);
+
+        void deleted(String name);
+    }
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    private volatile boolean closed;
+    private volatile Socket socket;
+
+    public CatalogWatcher(String host, int port, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "catalog-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Socket connection = new Socket(host, port)) {
+                socket = connection;
+                follow(connection);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Catalog watch interrupted: " + e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket connection) throws IOException {
+        InputStream in = new BufferedInputStream(connection.getInputStream());
+        OutputStream out = connection.getOutputStream();
+        AudioProtocol.writeLine(out, AudioProtocol.WATCH);
+        out.flush();
+
+        String response = AudioProtocol.readLine(in);
+        if (response == null || !response.startsWith("OK ")) {
+            throw new IOException("Watch refused: " + response);
+        }
+        int count = Integer.parseInt(response.substring(3).trim());
+        List<AudioSession.RecordingInfo> recordings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recordings.add(AudioSession.RecordingInfo.parse(readLine(in)));
+        }
+        listener.snapshot(recordings);
+
+        while (true) {
+            String event = readLine(in);
+            int space = event.indexOf(' ');
+            String type = space < 0 ? event : event.substring(0, space);
+            String argument = space < 0 ? "" : event.substring(space + 1);
+            switch (type) {
+                case "ADDED":
+                    listener.added(AudioSession.RecordingInfo.parse(argument));
+                    break;
+                case "UPDATED":
+                    listener.updated(AudioSession.RecordingInfo.parse(argument));
+                    break;
+                case "DELETED":
+                    listener.deleted(argument);
+                    break;
+                case AudioProtocol.OVERFLOW:
+                    return;
+                default:
+                    // unknown events are ignored so the server can add some
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        String line = AudioProtocol.readLine(in);
+        if (line == null) {
+            throw new EOFException("Connection closed by server");
+        }
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
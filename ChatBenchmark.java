@@ -0,0 +1,119 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Micro-benchmarks du moteur de chat : loadHistory, formatMessage et la
+ * diffusion dans un salon.
+ *
+ * Le projet n'a pas de système de build pour intégrer JMH ; ce harnais en
+ * reprend le principe (itérations de préchauffage puis de mesure, résultat
+ * consommé pour que le JIT ne supprime pas le travail). Il se lance depuis le
+ * répertoire du serveur et écrit ses fichiers d'historique dans un salon
+ * temporaire supprimé à la fin :
+ *   java ChatBenchmark [messagesParJour=10000] [membresParSalon=1000]
+ */
+public class ChatBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static volatile long sink;
+
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messagesPerDay = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int members = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        String room = "bench" + ProcessHandle.current().pid();
+        String date = "2000-01-01";
+        File roomDir = ChatServer.getRoomHistoryDir(room);
+        try {
+            writeSyntheticDay(roomDir, date, messagesPerDay);
+
+            ChatServer.Message message = new ChatServer.Message("2tck5dgh47i8", room, "alice",
+                "Un message de longueur habituelle pour une discussion de groupe");
+
+            measure("loadHistory (" + messagesPerDay + " messages)", 1, () -> ChatServer.loadHistory(room, date).length());
+            measure("formatMessage", 100000, () -> {
+                long total = 0;
+                for (int i = 0; i < 100000; i++) {
+                    total += ChatServer.ClientHandler.formatMessage(message).length();
+                }
+                return total;
+            });
+            List<ChatServer.ClientHandler> handlers = new ArrayList<>(members);
+            ChatServer.ChatRoom target = createRoom(room + "b", members, handlers);
+            measure("broadcast (" + members + " membres)", 100, () -> {
+                for (int i = 0; i < 100; i++) {
+                    target.broadcast("alice (ID: 2tck5dgh47i8) : message diffusé " + i);
+                }
+                return handlers.get(0).pendingMessages();
+            });
+            for (ChatServer.ClientHandler handler : handlers) {
+                ChatServer.leaveRoom(room + "b", handler);
+            }
+        } finally {
+            File[] files = roomDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            roomDir.delete();
+        }
+    }
+
+    /** Un jour d'historique : messages de base, 10 % supprimés, 10 % modifiés. */
+    private static void writeSyntheticDay(File roomDir, String date, int messages) throws IOException {
+        MessageIdGenerator generator = new MessageIdGenerator(0);
+        Random random = new Random(42);
+        try (PrintWriter base = new PrintWriter(new FileWriter(new File(roomDir, "history_" + date + ".txt")));
+             PrintWriter deleted = new PrintWriter(new FileWriter(new File(roomDir, "history_deleted_" + date + ".txt")));
+             PrintWriter modified = new PrintWriter(new FileWriter(new File(roomDir, "history_modified_" + date + ".txt")))) {
+            for (int i = 0; i < messages; i++) {
+                String id = generator.nextEncodedId();
+                String sender = "user" + random.nextInt(50);
+                base.printf("%s:%d:%s:normal:message numéro %d avec un peu de texte%n", id, System.currentTimeMillis(), sender, i);
+                int roll = random.nextInt(10);
+                if (roll == 0) {
+                    deleted.printf("%s:%d:%s:message numéro %d%n", id, System.currentTimeMillis(), sender, i);
+                } else if (roll == 1) {
+                    modified.printf("%s:%d:%s:message numéro %d:message %d corrigé%n", id, System.currentTimeMillis(), sender, i, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Crée un salon de membres fictifs, sans socket : leurs files d'envoi ne
+     * sont pas vidées, la mesure porte sur la diffusion elle-même.
+     */
+    private static ChatServer.ChatRoom createRoom(String room, int members, List<ChatServer.ClientHandler> handlers) {
+        ChatServer.ChatRoom target = null;
+        for (int i = 0; i < members; i++) {
+            ChatServer.ClientHandler handler = new ChatServer.ClientHandler(new Socket());
+            handlers.add(handler);
+            target = ChatServer.joinRoom(room, handler);
+        }
+        return target;
+    }
+
+    private static void measure(String name, int operationsPerIteration, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += operation.run();
+        }
+        long[] durations = new long[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += operation.run();
+            durations[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(durations);
+        double medianPerOp = (double) durations[durations.length / 2] / operationsPerIteration;
+        double bestPerOp = (double) durations[0] / operationsPerIteration;
+        System.out.printf("%-40s médiane %12.1f ns/op   meilleur %12.1f ns/op   (%,.0f op/s)%n",
+            name, medianPerOp, bestPerOp, 1e9 / medianPerOp);
+    }
+}
@@ -3,9 +3,10 @@ import java.net.*;
 import java.util.*;
 
 public class ChatClient {
-    private static final String CONFIG_FILE = "chat_config.txt";
+    private static final String CONFIG_FILE = "chat-config.txt";
     private static String SERVER_ADDRESS;
     private static int SERVER_PORT;
+    private static boolean BINARY_PROTOCOL;
 
     public static void main(String[] args) {
         loadConfig();
@@ -14,39 +15,40 @@ public class ChatClient {
         System.out.println("1 - Modify a message with command: MODIFY:<id_message>:new message");
         System.out.println("2 - Delete a message with command: DELETE:<id_message>");
         System.out.println("3 - View file history with command: HISTORY:<date>");
-        System.out.println("4 - Quit with command: bye");
+        System.out.println("4 - Join a room with command: JOIN:<room> (LEAVE returns to the default room, ROOMS lists rooms)");
+        System.out.println("5 - Presence: TYPING, STATUS:away / STATUS:online, WHO lists users in the room");
+        System.out.println("6 - Search the room history with command: SEARCH:<words> (SEARCH:<page>:<words> for more results)");
+        System.out.println("7 - Server metrics with command: STATS");
+        System.out.println("8 - Quit with command: bye");
 
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             Scanner scanner = new Scanner(System.in)) {
+        try (Scanner scanner = new Scanner(System.in)) {
+            // La première ligne saisie est le nom d'utilisateur
+            System.out.println("Entrez votre nom :");
+            String name = scanner.nextLine();
 
-            // Démarrer un thread pour recevoir les messages du serveur
-            new Thread(() -> {
-                try {
-                    String serverMessage;
-                    while ((serverMessage = in.readLine()) != null) {
+            // La session affiche les messages du serveur et se reconnecte seule en cas de coupure
+            ChatSession session = new ChatSession(SERVER_ADDRESS, SERVER_PORT, BINARY_PROTOCOL, name,
+                serverMessage -> {
+                    if (!serverMessage.equals("Entrez votre nom :")) {
                         System.out.println(serverMessage);
                     }
-                } catch (IOException e) {
-                    System.err.println("Erreur lors de la réception des messages : " + e.getMessage());
-                }
-            }).start();
+                },
+                status -> System.err.println(status));
+            session.start();
 
             // Envoyer des messages au serveur
             while (true) {
                 String userMessage = scanner.nextLine();
 
                 if (userMessage.equalsIgnoreCase("bye")) {
-                    out.println(userMessage);
+                    session.close();
                     break;
                 }
 
-                // Envoyer les autres commandes (MODIFY, DELETE, HISTORY, etc.)
-                if (userMessage.startsWith("MODIFY:") || userMessage.startsWith("DELETE:") || userMessage.startsWith("HISTORY:")) {
-                    out.println(userMessage);
-                } else {
-                    out.println(userMessage);
+                // Envoyer les autres commandes (MODIFY, DELETE, HISTORY, etc.) ;
+                // hors connexion elles sont mises en attente
+                if (!session.send(userMessage)) {
+                    System.err.println("File d'attente hors ligne pleine, message perdu.");
                 }
             }
 
@@ -63,6 +65,7 @@ public class ChatClient {
 
             SERVER_ADDRESS = prop.getProperty("SERVER_ADDRESS");
             SERVER_PORT = Integer.parseInt(prop.getProperty("SERVER_PORT"));
+            BINARY_PROTOCOL = "binary".equalsIgnoreCase(prop.getProperty("PROTOCOL", "text").trim());
         } catch (IOException ex) {
             System.err.println("Erreur lors du chargement du fichier de configuration.");
         }
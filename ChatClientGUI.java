@@ -4,6 +4,8 @@ import java.awt.event.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.text.*;
 import java.text.SimpleDateFormat;
 
@@ -11,20 +13,36 @@ public class ChatClientGUI extends JFrame {
     private static final String CONFIG_FILE = "chat-config.txt";
     private static String SERVER_ADDRESS;
     private static int SERVER_PORT;
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private static boolean BINARY_PROTOCOL;
+    private ChatSession session;
     private JTextPane chatArea;
     private JTextField messageField;
     private JTextField nameField;
     private String username;
-    private javax.swing.Timer refreshTimer;
     private JPanel cards;
     private CardLayout cardLayout;
     private StyledDocument doc;
     private Style baseStyle;
     private Style systemStyle;
     private Style userStyle;
+    private JLabel presenceLabel;
+    private final Map<String, String> presence = new TreeMap<>();
+    private long lastTypingSent;
+
+    // Incoming lines are queued by the receiver thread and rendered in batches on the EDT
+    private static final int MAX_VISIBLE_LINES = 2000;
+    private final Queue<PendingLine> pendingLines = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean renderScheduled = new AtomicBoolean();
+
+    private static class PendingLine {
+        final String text;
+        final boolean status;
+
+        PendingLine(String text, boolean status) {
+            this.text = text;
+            this.status = status;
+        }
+    }
 
     public ChatClientGUI() {
         super("Chat Application");
@@ -86,6 +104,10 @@ public class ChatClientGUI extends JFrame {
         messageField = new JTextField();
         JButton sendButton = new JButton("Send");
 
+        presenceLabel = new JLabel(" ");
+        presenceLabel.setForeground(new Color(100, 100, 100));
+
+        inputPanel.add(presenceLabel, BorderLayout.NORTH);
         inputPanel.add(messageField, BorderLayout.CENTER);
         inputPanel.add(sendButton, BorderLayout.EAST);
 
@@ -95,10 +117,14 @@ public class ChatClientGUI extends JFrame {
         JButton modifyButton = new JButton("Modify");
         JButton deleteButton = new JButton("Delete");
         JButton historyButton = new JButton("History");
+        JButton roomButton = new JButton("Room");
+        JButton searchButton = new JButton("Search");
 
         toolbar.add(modifyButton);
         toolbar.add(deleteButton);
         toolbar.add(historyButton);
+        toolbar.add(roomButton);
+        toolbar.add(searchButton);
 
         chatPanel.add(toolbar, BorderLayout.NORTH);
         chatPanel.add(scrollPane, BorderLayout.CENTER);
@@ -107,13 +133,19 @@ public class ChatClientGUI extends JFrame {
         // Action Listeners
         messageField.addActionListener(e -> sendMessage());
         sendButton.addActionListener(e -> sendMessage());
+        messageField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                sendTyping();
+            }
+        });
 
         modifyButton.addActionListener(e -> {
             String messageId = JOptionPane.showInputDialog("Enter message ID to modify:");
             if (messageId != null && !messageId.trim().isEmpty()) {
                 String newContent = JOptionPane.showInputDialog("Enter new message:");
                 if (newContent != null && !newContent.trim().isEmpty()) {
-                    out.println("MODIFY:" + messageId + ":" + newContent);
+                    send("MODIFY:" + messageId + ":" + newContent);
                 }
             }
         });
@@ -121,22 +153,34 @@ public class ChatClientGUI extends JFrame {
         deleteButton.addActionListener(e -> {
             String messageId = JOptionPane.showInputDialog("Enter message ID to delete:");
             if (messageId != null && !messageId.trim().isEmpty()) {
-                out.println("DELETE:" + messageId);
+                send("DELETE:" + messageId);
             }
         });
 
         historyButton.addActionListener(e -> {
             String date = JOptionPane.showInputDialog("Enter date (yyyy-MM-dd):");
             if (date != null && !date.trim().isEmpty()) {
-                out.println("HISTORY:" + date);
+                send("HISTORY:" + date);
+            }
+        });
+
+        roomButton.addActionListener(e -> {
+            String room = JOptionPane.showInputDialog("Enter room name (empty to go back to the default room):");
+            if (room != null) {
+                send(room.trim().isEmpty() ? "LEAVE" : "JOIN:" + room.trim());
+            }
+        });
+
+        searchButton.addActionListener(e -> {
+            String query = JOptionPane.showInputDialog("Search words (prefix with <page>: for more results):");
+            if (query != null && !query.trim().isEmpty()) {
+                send("SEARCH:" + query.trim());
             }
         });
 
         cards.add(loginPanel, "login");
         cards.add(chatPanel, "chat");
         add(cards);
-
-        refreshTimer = new javax.swing.Timer(5000, e -> refreshChat());
     }
 
     private void connectToServer() {
@@ -147,16 +191,14 @@ public class ChatClientGUI extends JFrame {
         }
 
         try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Start message receiving thread
-            new Thread(this::receiveMessages).start();
+            // The session receives messages on its own thread and reconnects with backoff,
+            // replaying only the messages missed while disconnected
+            session = new ChatSession(SERVER_ADDRESS, SERVER_PORT, BINARY_PROTOCOL, username,
+                    this::receiveMessage, this::connectionStatusChanged);
+            session.start();
 
             cardLayout.show(cards, "chat");
             messageField.requestFocus();
-            refreshTimer.start();
 
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Error connecting to server: " + e.getMessage(),
@@ -167,40 +209,153 @@ public class ChatClientGUI extends JFrame {
     private void sendMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
-            out.println(message);
+            send(message);
             messageField.setText("");
         }
     }
 
-    private void refreshChat() {
-        chatArea.repaint();
+    /** Signale la frappe au plus une fois toutes les 2 secondes ; le serveur regroupe le reste. */
+    private void sendTyping() {
+        long now = System.currentTimeMillis();
+        if (session != null && session.isConnected() && now - lastTypingSent > 2000) {
+            lastTypingSent = now;
+            send("TYPING");
+        }
     }
 
-    private void receiveMessages() {
+    /** Applique une ligne PRESENCE:nom=état,... à la vue locale de présence. */
+    private void updatePresence(String line) {
+        String changes = line.substring("PRESENCE:".length());
+        if (!changes.isEmpty()) {
+            for (String change : changes.split(",")) {
+                String[] parts = change.split("=", 2);
+                if (parts.length < 2) {
+                    continue;
+                }
+                if ("offline".equals(parts[1])) {
+                    presence.remove(parts[0]);
+                } else {
+                    presence.put(parts[0], parts[1]);
+                }
+            }
+        }
+    }
+
+    private void refreshPresenceLabel() {
+        java.util.List<String> typing = new ArrayList<>();
+        java.util.List<String> online = new ArrayList<>();
+        for (Map.Entry<String, String> entry : presence.entrySet()) {
+            if ("typing".equals(entry.getValue()) && !entry.getKey().equals(username)) {
+                typing.add(entry.getKey());
+            }
+            online.add("away".equals(entry.getValue()) ? entry.getKey() + " (away)" : entry.getKey());
+        }
+        String text = "Online: " + String.join(", ", online);
+        if (!typing.isEmpty()) {
+            text += "   —   " + String.join(", ", typing) + (typing.size() > 1 ? " are" : " is") + " typing...";
+        }
+        presenceLabel.setText(text);
+    }
+
+    private void send(String line) {
+        // While disconnected the session queues the line and sends it after reconnecting
+        if (!session.send(line)) {
+            JOptionPane.showMessageDialog(this, "Not connected and the offline queue is full, message dropped.",
+                    "Connection Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void receiveMessage(String message) {
+        enqueue(new PendingLine(message, false));
+    }
+
+    private void connectionStatusChanged(String status) {
+        enqueue(new PendingLine(status, true));
+    }
+
+    /**
+     * Called from the receiver thread: only one render task is pending on the
+     * EDT at a time, so a burst of lines costs one document update.
+     */
+    private void enqueue(PendingLine line) {
+        pendingLines.add(line);
+        if (renderScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::renderPendingLines);
+        }
+    }
+
+    private void renderPendingLines() {
+        renderScheduled.set(false);
+        java.util.List<PendingLine> batch = new ArrayList<>();
+        PendingLine next;
+        while ((next = pendingLines.poll()) != null) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Lines that would be paged out right away are not inserted at all
+        java.util.List<PendingLine> visible = new ArrayList<>();
+        boolean presenceChanged = false;
+        for (PendingLine line : batch) {
+            if (line.status) {
+                setTitle("Chat Application" + (session.isConnected() ? "" : " (offline)"));
+            } else if (line.text.startsWith("Entrez votre nom :")) {
+                continue;
+            } else if (line.text.startsWith("PRESENCE:")) {
+                updatePresence(line.text);
+                presenceChanged = true;
+                continue;
+            } else if (line.text.startsWith("Salon actuel : ")) {
+                presence.clear();
+                presenceChanged = true;
+            }
+            visible.add(line);
+        }
+        if (presenceChanged) {
+            refreshPresenceLabel();
+        }
+        if (visible.size() > MAX_VISIBLE_LINES) {
+            visible = visible.subList(visible.size() - MAX_VISIBLE_LINES, visible.size());
+        }
+
+        // Consecutive lines with the same style are inserted as a single run
         try {
-            String message;
-            while ((message = in.readLine()) != null) {
-                final String finalMessage = message;
-                SwingUtilities.invokeLater(() -> {
-                    try {
-                        if (finalMessage.contains("a rejoint le chat") || finalMessage.contains("a quitté le chat")) {
-                            doc.insertString(doc.getLength(), finalMessage + "\n", systemStyle);
-                        } else {
-                            doc.insertString(doc.getLength(), finalMessage + "\n", userStyle);
-                        }
-                        chatArea.setCaretPosition(doc.getLength());
-                    } catch (BadLocationException e) {
-                        e.printStackTrace();
-                    }
-                });
+            StringBuilder run = new StringBuilder();
+            Style runStyle = null;
+            for (PendingLine line : visible) {
+                Style style = line.status || line.text.contains("a rejoint le chat") || line.text.contains("a quitté le chat")
+                        ? systemStyle : userStyle;
+                if (style != runStyle && run.length() > 0) {
+                    doc.insertString(doc.getLength(), run.toString(), runStyle);
+                    run.setLength(0);
+                }
+                runStyle = style;
+                run.append(line.text).append('\n');
             }
-        } catch (IOException e) {
-            SwingUtilities.invokeLater(() -> {
-                JOptionPane.showMessageDialog(ChatClientGUI.this,
-                        "Connection to server lost: " + e.getMessage(),
-                        "Connection Error", JOptionPane.ERROR_MESSAGE);
-            });
+            if (run.length() > 0) {
+                doc.insertString(doc.getLength(), run.toString(), runStyle);
+            }
+            pageOutOldLines();
+            chatArea.setCaretPosition(doc.getLength());
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps the document bounded: the oldest lines are removed beyond
+     * MAX_VISIBLE_LINES and can still be read with the History command.
+     */
+    private void pageOutOldLines() throws BadLocationException {
+        Element root = doc.getDefaultRootElement();
+        // The last paragraph is the empty line after the final newline
+        int excess = root.getElementCount() - 1 - MAX_VISIBLE_LINES;
+        if (excess <= 0) {
+            return;
         }
+        doc.remove(0, root.getElement(excess).getStartOffset());
     }
 
     private void loadConfig() {
@@ -209,6 +364,7 @@ public class ChatClientGUI extends JFrame {
             prop.load(input);
             SERVER_ADDRESS = prop.getProperty("SERVER_ADDRESS");
             SERVER_PORT = Integer.parseInt(prop.getProperty("SERVER_PORT"));
+            BINARY_PROTOCOL = "binary".equalsIgnoreCase(prop.getProperty("PROTOCOL", "text").trim());
         } catch (IOException ex) {
             JOptionPane.showMessageDialog(this, "Error loading configuration file",
                     "Configuration Error", JOptionPane.ERROR_MESSAGE);
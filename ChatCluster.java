@@ -0,0 +1,377 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Liaison entre plusieurs ChatServer d'un même chat.
+ *
+ * Chaque salon a un nœud propriétaire, choisi par hachage de son nom : lui
+ * seul génère les ID, écrit l'historique et indexe les messages du salon.
+ * Les autres nœuds lui transmettent les commandes de leurs clients (FORWARD)
+ * et il renvoie les réponses destinées à un seul client (REPLY). Chaque
+ * diffusion est relayée à tous les nœuds (RELAY), qui la remettent à leurs
+ * propres membres du salon. Le propriétaire traite les messages d'un salon
+ * un par un et chaque liaison est une connexion TCP unique vidée par un seul
+ * thread : tous les nœuds voient donc les messages d'un salon dans le même
+ * ordre.
+ *
+ * Les nœuds partagent le répertoire History (même machine ou partage
+ * réseau) : la lecture de l'historique se fait localement, seule l'écriture
+ * est réservée au propriétaire. Il n'y a pas de reprise : si le
+ * propriétaire d'un salon est arrêté, les commandes de ce salon échouent
+ * jusqu'à son retour.
+ *
+ * Chaque nœud n'écoute que sur l'adresse qui lui est donnée dans la liste,
+ * et les deux bouts d'une liaison prouvent qu'ils connaissent CLUSTER_SECRET :
+ * le nœud qui accepte envoie un nonce aléatoire de NONCE_SIZE octets, l'autre
+ * répond par son HMAC-SHA256 avec le secret suivi de son propre nonce, auquel
+ * le premier répond à son tour s'il a reconnu le HMAC. Le rôle entre dans le
+ * HMAC, pour qu'une preuve obtenue d'un côté ne serve pas de l'autre. Le
+ * secret ne passe donc jamais sur la liaison, une réponse enregistrée ne
+ * resert pas, aucune trame n'est lue avant la vérification et aucune n'est
+ * envoyée à un nœud qui n'a pas prouvé connaître le secret.
+ *
+ * Format sur la liaison : [type u8] puis les champs, chaînes préfixées de
+ * leur longueur en octets (u32).
+ */
+public class ChatCluster {
+    private static final byte RELAY = 1;    // salon, ligne
+    private static final byte FORWARD = 2;  // opération, nœud d'origine, connexion, salon, expéditeur, clé, corps
+    private static final byte REPLY = 3;    // connexion, texte
+    private static final int MAX_PENDING = 100000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int NONCE_SIZE = 32;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte DIALER = 1;   // rôle dans le HMAC : nœud qui se connecte
+    private static final byte ACCEPTOR = 2; // rôle dans le HMAC : nœud qui accepte
+    private static final SecureRandom random = new SecureRandom();
+
+    /** Reçoit les messages des autres nœuds. */
+    public interface Listener {
+        void onRelay(String room, String line);
+
+        void onForward(byte operation, int originNode, long connectionId, String room, String sender, String key, String body);
+
+        void onReply(long connectionId, String text);
+    }
+
+    private final int nodeIndex;
+    private final List<InetSocketAddress> nodes;
+    private final Listener listener;
+    private final byte[] secret;
+    private final Peer[] peers;
+
+    /**
+     * @param nodeIndex position de ce nœud dans la liste
+     * @param nodes adresses de liaison de tous les nœuds, dans le même ordre sur chaque nœud
+     * @param secret secret partagé par tous les nœuds (CLUSTER_SECRET)
+     */
+    public ChatCluster(int nodeIndex, List<InetSocketAddress> nodes, String secret, Listener listener) {
+        if (nodeIndex < 0 || nodeIndex >= nodes.size()) {
+            throw new IllegalArgumentException("Nœud " + nodeIndex + " absent de la liste du cluster");
+        }
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("CLUSTER_SECRET est requis en cluster");
+        }
+        this.nodeIndex = nodeIndex;
+        this.nodes = nodes;
+        this.listener = listener;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.peers = new Peer[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != nodeIndex) {
+                peers[i] = new Peer(i, nodes.get(i), this.secret);
+            }
+        }
+    }
+
+    /** Analyse une liste "hôte:port,hôte:port,...". */
+    public static List<InetSocketAddress> parseNodes(String list) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String node : list.split(",")) {
+            String trimmed = node.trim();
+            int separator = trimmed.lastIndexOf(':');
+            if (separator > 0) {
+                nodes.add(new InetSocketAddress(trimmed.substring(0, separator),
+                    Integer.parseInt(trimmed.substring(separator + 1))));
+            }
+        }
+        return nodes;
+    }
+
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(nodes.get(nodeIndex));
+        Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.start();
+            }
+        }
+        System.out.println("Nœud " + nodeIndex + " du cluster à l'écoute sur " + nodes.get(nodeIndex));
+    }
+
+    public int ownerOf(String room) {
+        return Math.floorMod(room.hashCode(), nodes.size());
+    }
+
+    public boolean owns(String room) {
+        return ownerOf(room) == nodeIndex;
+    }
+
+    /** Transmet une diffusion à tous les autres nœuds. */
+    public void relay(String room, String line) {
+        byte[] message = encode(RELAY, out -> {
+            writeString(out, room);
+            writeString(out, line);
+        });
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.send(message);
+            }
+        }
+    }
+
+    /**
+     * Transmet la commande d'un client au propriétaire du salon. Retourne
+     * false si ce nœud est injoignable.
+     */
+    public boolean forward(byte operation, long connectionId, String room, String sender, String key, String body) {
+        Peer owner = peers[ownerOf(room)];
+        if (owner == null || !owner.connected) {
+            return false;
+        }
+        return owner.send(encode(FORWARD, out -> {
+            out.writeByte(operation);
+            out.writeInt(nodeIndex);
+            out.writeLong(connectionId);
+            writeString(out, room);
+            writeString(out, sender);
+            writeString(out, key);
+            writeString(out, body);
+        }));
+    }
+
+    /** Renvoie une réponse au client d'un autre nœud. */
+    public void reply(int node, long connectionId, String text) {
+        Peer peer = node >= 0 && node < peers.length ? peers[node] : null;
+        if (peer != null) {
+            peer.send(encode(REPLY, out -> {
+                out.writeLong(connectionId);
+                writeString(out, text);
+            }));
+        }
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readLoop(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                System.err.println("Erreur du cluster : " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (!authenticate(socket, in)) {
+                System.err.println("Liaison refusée, secret du cluster invalide : " + socket.getRemoteSocketAddress());
+                return;
+            }
+            int type;
+            while ((type = in.read()) >= 0) {
+                switch (type) {
+                    case RELAY:
+                        listener.onRelay(readString(in), readString(in));
+                        break;
+                    case FORWARD:
+                        byte operation = in.readByte();
+                        int originNode = in.readInt();
+                        long connectionId = in.readLong();
+                        listener.onForward(operation, originNode, connectionId,
+                            readString(in), readString(in), readString(in), readString(in));
+                        break;
+                    case REPLY:
+                        listener.onReply(in.readLong(), readString(in));
+                        break;
+                    default:
+                        throw new IOException("Type de message inconnu : " + type);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Liaison entrante du cluster fermée : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Envoie un nonce à une liaison entrante et vérifie le HMAC qu'elle renvoie,
+     * puis répond au nonce qu'elle envoie à son tour.
+     */
+    private boolean authenticate(Socket socket, DataInputStream in) throws IOException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        OutputStream out = socket.getOutputStream();
+        out.write(nonce);
+        out.flush();
+        byte[] expected = mac(secret, DIALER, nonce);
+        byte[] response = new byte[expected.length];
+        byte[] peerNonce = new byte[NONCE_SIZE];
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        in.readFully(response);
+        in.readFully(peerNonce);
+        socket.setSoTimeout(0);
+        if (!MessageDigest.isEqual(expected, response)) {
+            return false;
+        }
+        out.write(mac(secret, ACCEPTOR, peerNonce));
+        out.flush();
+        return true;
+    }
+
+    private static byte[] mac(byte[] secret, byte role, byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(role);
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // HmacSHA256 est fourni par toute JVM
+        }
+    }
+
+    private interface FieldWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(byte type, FieldWriter fields) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeByte(type);
+            fields.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // impossible en mémoire
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > ChatProtocol.MAX_FRAME_SIZE) {
+            throw new IOException("Taille de champ invalide : " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Liaison sortante vers un autre nœud : une file et un thread d'écriture
+     * qui se reconnecte en boucle. Les messages mis en file pendant une coupure
+     * sont envoyés au retour du nœud, dans l'ordre, tant que la file n'est pas
+     * pleine. Un lot dont l'envoi a échoué est renvoyé en entier : une coupure
+     * peut donc faire recevoir deux fois ses premiers messages.
+     */
+    private static class Peer {
+        private final int index;
+        private final InetSocketAddress address;
+        private final byte[] secret;
+        private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+        private volatile boolean connected;
+
+        Peer(int index, InetSocketAddress address, byte[] secret) {
+            this.index = index;
+            this.address = address;
+            this.secret = secret;
+        }
+
+        void start() {
+            Thread writer = new Thread(this::writeLoop, "cluster-out-" + index);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        boolean send(byte[] message) {
+            return pending.offer(message);
+        }
+
+        private void writeLoop() {
+            List<byte[]> batch = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, 2000);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    // Réponse au nonce du nœud distant, puis vérification de la sienne, avant toute trame
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] nonce = new byte[NONCE_SIZE];
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    in.readFully(nonce);
+                    byte[] ownNonce = new byte[NONCE_SIZE];
+                    random.nextBytes(ownNonce);
+                    out.write(mac(secret, DIALER, nonce));
+                    out.write(ownNonce);
+                    out.flush();
+                    byte[] expected = mac(secret, ACCEPTOR, ownNonce);
+                    byte[] response = new byte[expected.length];
+                    in.readFully(response);
+                    socket.setSoTimeout(0);
+                    if (!MessageDigest.isEqual(expected, response)) {
+                        System.err.println("Liaison refusée, secret du cluster invalide : " + address);
+                        throw new IOException("secret du cluster invalide");
+                    }
+                    connected = true;
+                    System.out.println("Liaison établie avec le nœud " + index + " (" + address + ")");
+                    while (true) {
+                        // Un lot non envoyé est conservé jusqu'à la reconnexion
+                        if (batch.isEmpty()) {
+                            batch.add(pending.take());
+                            pending.drainTo(batch);
+                        }
+                        for (byte[] message : batch) {
+                            out.write(message);
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        System.err.println("Liaison perdue avec le nœud " + index + " : " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                connected = false;
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * Connexion d'un client au serveur de chat, en protocole texte ou binaire.
+ * Utilisée par ChatClient et ChatClientGUI pour ne pas dupliquer la négociation.
+ */
+public class ChatConnection implements Closeable {
+    private final Socket socket;
+    private final boolean binary;
+    private PrintWriter out;
+    private BufferedReader in;
+    private DataOutputStream binaryOut;
+    private DataInputStream binaryIn;
+    private String pendingPrompt;
+
+    public ChatConnection(String host, int port, boolean binary) throws IOException {
+        this.socket = new Socket(host, port);
+        this.binary = binary;
+        try {
+            if (binary) {
+                // L'invite et la réponse sont lues sans tampon : les trames binaires
+                // qui suivent ne doivent pas être consommées par un BufferedReader
+                InputStream rawIn = socket.getInputStream();
+                pendingPrompt = ChatProtocol.readRawLine(rawIn);
+                OutputStream rawOut = socket.getOutputStream();
+                rawOut.write((ChatProtocol.NEGOTIATE + "\n").getBytes());
+                rawOut.flush();
+                String answer = ChatProtocol.readRawLine(rawIn);
+                if (!ChatProtocol.ACCEPTED.equals(answer)) {
+                    throw new IOException("Le serveur ne supporte pas le protocole binaire");
+                }
+                binaryIn = new DataInputStream(new BufferedInputStream(rawIn));
+                binaryOut = new DataOutputStream(new BufferedOutputStream(rawOut));
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new PrintWriter(socket.getOutputStream(), true);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Envoie une ligne saisie par l'utilisateur. En binaire, la commande est
+     * convertie en trame typée ; une commande mal formée est ignorée.
+     */
+    public synchronized void send(String line) throws IOException {
+        if (binary) {
+            ChatProtocol.Frame frame = ChatProtocol.parseLine(line);
+            if (frame != null) {
+                ChatProtocol.writeFrame(binaryOut, frame);
+                binaryOut.flush();
+            }
+        } else {
+            out.println(line);
+            if (out.checkError()) {
+                throw new IOException("connexion fermée");
+            }
+        }
+    }
+
+    /** Envoie le nom d'utilisateur, toujours tel quel (jamais interprété comme commande). */
+    public synchronized void sendName(String name) throws IOException {
+        if (binary) {
+            ChatProtocol.writeFrame(binaryOut, ChatProtocol.Frame.text(name));
+            binaryOut.flush();
+        } else {
+            send(name);
+        }
+    }
+
+    /** Retourne le prochain message du serveur, ou null si la connexion est fermée. */
+    public String receive() throws IOException {
+        if (!binary) {
+            return in.readLine();
+        }
+        if (pendingPrompt != null) {
+            String prompt = pendingPrompt;
+            pendingPrompt = null;
+            return prompt;
+        }
+        ChatProtocol.Frame frame = ChatProtocol.readFrame(binaryIn);
+        return frame == null ? null : frame.body;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
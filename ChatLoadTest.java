@@ -0,0 +1,263 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Générateur de charge pour ChatServer, sans interface graphique.
+ *
+ * Ouvre de nombreux clients simulés sur le protocole texte, les répartit dans
+ * des salons, puis envoie des messages, modifications et suppressions à des
+ * débits donnés. Chaque message porte l'instant d'envoi (System.nanoTime, même
+ * JVM) : chaque récepteur mesure la latence de bout en bout dans son propre
+ * histogramme.
+ *
+ * Utilisation (paramètres optionnels, valeurs par défaut entre parenthèses) :
+ *   java ChatLoadTest host=localhost port=12346 clients=1000 rooms=10 rate=500
+ *                     modifyRate=20 deleteRate=10 duration=30 warmup=5
+ * Les débits sont en opérations par seconde pour l'ensemble des clients.
+ */
+public class ChatLoadTest {
+    private static final String LOAD_PREFIX = "LOAD ";
+    private static final String MODIFY_PREFIX = "LOADMOD ";
+
+    private static volatile boolean measuring;
+    private static final LatencyHistogram modifyLatency = new LatencyHistogram();
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong modifiesSent = new AtomicLong();
+    private static final AtomicLong deletesSent = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length == 2) {
+                options.put(parts[0], parts[1]);
+            }
+        }
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", defaultPort()));
+        int clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        int roomCount = Integer.parseInt(options.getOrDefault("rooms", "10"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "500"));
+        double modifyRate = Double.parseDouble(options.getOrDefault("modifyRate", "20"));
+        double deleteRate = Double.parseDouble(options.getOrDefault("deleteRate", "10"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+
+        System.out.printf("Connexion de %d clients dans %d salons sur %s:%d...%n", clientCount, roomCount, host, port);
+        List<SimulatedClient> clients = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            SimulatedClient client = new SimulatedClient("load" + i, "load" + (i % roomCount));
+            client.connect(host, port);
+            clients.add(client);
+        }
+        System.out.printf("Clients connectés en %.1f s%n", (System.nanoTime() - connectStart) / 1e9);
+        Thread.sleep(1000);
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        long tickMs = 10;
+        scheduler.scheduleAtFixedRate(new RateDriver(rate * tickMs / 1000.0, () -> randomClient(clients).sendMessage()),
+            0, tickMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(new RateDriver(modifyRate * tickMs / 1000.0, () -> randomClient(clients).modifyOwnMessage()),
+            0, tickMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(new RateDriver(deleteRate * tickMs / 1000.0, () -> randomClient(clients).deleteOwnMessage()),
+            0, tickMs, TimeUnit.MILLISECONDS);
+
+        System.out.printf("Préchauffage %d s, puis mesure %d s...%n", warmup, duration);
+        Thread.sleep(warmup * 1000L);
+        long sentBefore = sent.get();
+        long receivedBefore = totalReceived(clients);
+        measuring = true;
+        Thread.sleep(duration * 1000L);
+        measuring = false;
+        long sentDuring = sent.get() - sentBefore;
+        long receivedDuring = totalReceived(clients) - receivedBefore;
+
+        scheduler.shutdownNow();
+        report(clients, sentDuring, receivedDuring, duration);
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        System.exit(0);
+    }
+
+    private static String defaultPort() {
+        try (InputStream input = new FileInputStream("chat-config.txt")) {
+            Properties prop = new Properties();
+            prop.load(input);
+            return prop.getProperty("SERVER_PORT", "12346").trim();
+        } catch (IOException e) {
+            return "12346";
+        }
+    }
+
+    private static SimulatedClient randomClient(List<SimulatedClient> clients) {
+        return clients.get(ThreadLocalRandom.current().nextInt(clients.size()));
+    }
+
+    private static long totalReceived(List<SimulatedClient> clients) {
+        long total = 0;
+        for (SimulatedClient client : clients) {
+            total += client.received.get();
+        }
+        return total;
+    }
+
+    private static void report(List<SimulatedClient> clients, long sentDuring, long receivedDuring, int duration) {
+        LatencyHistogram all = new LatencyHistogram();
+        List<Long> receiverP99 = new ArrayList<>();
+        int disconnected = 0;
+        for (SimulatedClient client : clients) {
+            all.add(client.latency);
+            if (client.latency.getCount() > 0) {
+                receiverP99.add(client.latency.getPercentile(99));
+            }
+            if (client.disconnected) {
+                disconnected++;
+            }
+        }
+        Collections.sort(receiverP99);
+
+        System.out.println();
+        System.out.println("=== Résultats ===");
+        System.out.printf("Messages envoyés : %d (%.0f/s), modifications : %d, suppressions : %d%n",
+            sentDuring, (double) sentDuring / duration, modifiesSent.get(), deletesSent.get());
+        System.out.printf("Lignes reçues : %d (%.0f/s en sortie du serveur)%n", receivedDuring, (double) receivedDuring / duration);
+        System.out.println("Latence de livraison (tous récepteurs) : " + all.summaryMillis());
+        System.out.println("Latence des modifications : " + modifyLatency.summaryMillis());
+        if (!receiverP99.isEmpty()) {
+            System.out.printf("p99 par récepteur : min=%.2f médiane=%.2f max=%.2f ms%n",
+                receiverP99.get(0) / 1e6, receiverP99.get(receiverP99.size() / 2) / 1e6,
+                receiverP99.get(receiverP99.size() - 1) / 1e6);
+        }
+        System.out.println("Clients déconnectés pendant le test : " + disconnected);
+    }
+
+    /** Répartit un débit fractionnaire sur des ticks réguliers. */
+    private static class RateDriver implements Runnable {
+        private final double perTick;
+        private final Runnable action;
+        private double credit;
+
+        RateDriver(double perTick, Runnable action) {
+            this.perTick = perTick;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            credit += perTick;
+            while (credit >= 1) {
+                credit -= 1;
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Erreur du générateur : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class SimulatedClient {
+        private final String name;
+        private final String room;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong received = new AtomicLong();
+        private final Deque<String> ownIds = new ConcurrentLinkedDeque<>();
+        private Socket socket;
+        private PrintWriter out;
+        private volatile boolean disconnected;
+
+        SimulatedClient(String name, String room) {
+            this.name = name;
+            this.room = room;
+        }
+
+        void connect(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            in.readLine(); // invite du nom
+            send(name);
+            send("JOIN:" + room);
+            Thread reader = new Thread(() -> readLoop(in), "reader-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send(String line) {
+            out.println(line);
+            out.flush();
+        }
+
+        void sendMessage() {
+            send(LOAD_PREFIX + System.nanoTime());
+            sent.incrementAndGet();
+        }
+
+        void modifyOwnMessage() {
+            String id = ownIds.peekLast();
+            if (id != null) {
+                send("MODIFY:" + id + ":" + MODIFY_PREFIX + System.nanoTime());
+                modifiesSent.incrementAndGet();
+            }
+        }
+
+        void deleteOwnMessage() {
+            String id = ownIds.pollFirst();
+            if (id != null) {
+                send("DELETE:" + id);
+                deletesSent.incrementAndGet();
+            }
+        }
+
+        private void readLoop(BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long now = System.nanoTime();
+                    received.incrementAndGet();
+                    handleLine(line, now);
+                }
+            } catch (IOException e) {
+                // fin de connexion
+            }
+            disconnected = true;
+        }
+
+        private void handleLine(String line, long now) {
+            int loadIndex = line.indexOf(") : " + LOAD_PREFIX);
+            if (loadIndex >= 0) {
+                long sentAt = Long.parseLong(line.substring(loadIndex + 4 + LOAD_PREFIX.length()).trim());
+                if (measuring) {
+                    latency.record(now - sentAt);
+                }
+                if (line.startsWith(name + " (ID: ")) {
+                    ownIds.addLast(line.substring((name + " (ID: ").length(), loadIndex));
+                    if (ownIds.size() > 100) {
+                        ownIds.pollFirst();
+                    }
+                }
+                return;
+            }
+            int modifyIndex = line.indexOf("):" + MODIFY_PREFIX);
+            if (modifyIndex >= 0 && measuring && line.startsWith(name + " a ")) {
+                long sentAt = Long.parseLong(line.substring(modifyIndex + 2 + MODIFY_PREFIX.length()).trim());
+                modifyLatency.record(now - sentAt);
+            }
+        }
+
+        void close() {
+            try {
+                send("bye");
+                socket.close();
+            } catch (IOException e) {
+                // déjà fermé
+            }
+        }
+    }
+}
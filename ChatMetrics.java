@@ -0,0 +1,96 @@
+import java.io.*;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métriques du serveur de chat.
+ *
+ * Les compteurs (LongAdder) et histogrammes (LatencyHistogram) sont
+ * incrémentés sans verrou par les threads des clients ; seul le relevé
+ * périodique calcule les débits et la profondeur des files d'envoi. Le
+ * dernier relevé est renvoyé par la commande STATS et, si METRICS_FILE est
+ * configuré, écrit dans ce fichier.
+ */
+public class ChatMetrics {
+    public final LongAdder messagesIn = new LongAdder();   // commandes reçues des clients
+    public final LongAdder messagesOut = new LongAdder();  // lignes envoyées aux clients
+    public final LongAdder throttled = new LongAdder();    // commandes retardées par la limite de débit
+    public final LongAdder slowDisconnects = new LongAdder();
+
+    // Étapes du traitement d'un message, en nanosecondes
+    public final LatencyHistogram parse = new LatencyHistogram();
+    public final LatencyHistogram idGeneration = new LatencyHistogram();
+    public final LatencyHistogram persist = new LatencyHistogram();
+    public final LatencyHistogram index = new LatencyHistogram();
+    public final LatencyHistogram fanOut = new LatencyHistogram();
+    public final LatencyHistogram historyLoad = new LatencyHistogram();
+
+    private final long startTime = System.currentTimeMillis();
+    private long lastSampleTime = startTime;
+    private long lastIn;
+    private long lastOut;
+    private volatile String lastSnapshot = "Aucun relevé pour le moment.";
+
+    /**
+     * Fait un relevé : débits depuis le relevé précédent, profondeur des
+     * files d'envoi des clients connectés et résumé des histogrammes.
+     */
+    public synchronized String sample(Collection<Integer> queueDepths) {
+        long now = System.currentTimeMillis();
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        double elapsed = Math.max(1, now - lastSampleTime) / 1000.0;
+        double inRate = (in - lastIn) / elapsed;
+        double outRate = (out - lastOut) / elapsed;
+        lastSampleTime = now;
+        lastIn = in;
+        lastOut = out;
+
+        int maxDepth = 0;
+        long totalDepth = 0;
+        for (int depth : queueDepths) {
+            maxDepth = Math.max(maxDepth, depth);
+            totalDepth += depth;
+        }
+
+        StringBuilder snapshot = new StringBuilder();
+        snapshot.append("Relevé du ").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(now)))
+            .append(" (serveur démarré depuis ").append((now - startTime) / 1000).append(" s)\n");
+        snapshot.append(String.format("clients connectés : %d%n", queueDepths.size()));
+        snapshot.append(String.format("messages reçus : %d (%.1f/s), envoyés : %d (%.1f/s)%n", in, inRate, out, outRate));
+        snapshot.append(String.format("files d'envoi : total=%d max=%d moyenne=%.1f%n", totalDepth, maxDepth,
+            queueDepths.isEmpty() ? 0.0 : (double) totalDepth / queueDepths.size()));
+        snapshot.append(String.format("commandes ralenties : %d, clients lents déconnectés : %d%n",
+            throttled.sum(), slowDisconnects.sum()));
+        snapshot.append("analyse        : ").append(parse.summaryMillis()).append('\n');
+        snapshot.append("génération ID  : ").append(idGeneration.summaryMillis()).append('\n');
+        snapshot.append("enregistrement : ").append(persist.summaryMillis()).append('\n');
+        snapshot.append("indexation     : ").append(index.summaryMillis()).append('\n');
+        snapshot.append("diffusion      : ").append(fanOut.summaryMillis()).append('\n');
+        snapshot.append("chargement historique : ").append(historyLoad.summaryMillis());
+        lastSnapshot = snapshot.toString();
+        return lastSnapshot;
+    }
+
+    public String getLastSnapshot() {
+        return lastSnapshot;
+    }
+
+    /** Écrit le relevé dans un fichier temporaire renommé, pour ne jamais exposer un fichier à moitié écrit. */
+    public static void writeSnapshot(File file, String snapshot) {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(new FileWriter(temporary))) {
+            writer.println(snapshot);
+        } catch (IOException e) {
+            System.err.println("Erreur lors de l'écriture des métriques : " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Erreur lors de l'écriture des métriques : " + e.getMessage());
+        }
+    }
+}
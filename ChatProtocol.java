@@ -0,0 +1,155 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocole du chat.
+ *
+ * Le protocole texte historique (une ligne par message, préfixes "MODIFY:",
+ * "DELETE:", "HISTORY:"...) reste le protocole par défaut. Un client peut
+ * négocier le protocole binaire en répondant NEGOTIATE à l'invite du serveur ;
+ * après la réponse ACCEPTED, les deux côtés n'échangent plus que des trames :
+ *
+ *   [type : 1 octet][longueur : 4 octets][longueur de la clé : 2 octets][clé UTF-8][corps UTF-8]
+ *
+ * où la longueur couvre tout ce qui suit. La clé porte l'identifiant du message
+ * (MODIFY, DELETE) et le corps le texte. Plusieurs trames sont écrites dans le
+ * même tampon puis envoyées en un seul flush.
+ */
+public class ChatProtocol {
+    public static final String NEGOTIATE = "PROTO:BIN1";
+    public static final String ACCEPTED = "PROTO:OK";
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    // Types de trames
+    public static final byte TEXT = 1;     // message du client ou ligne envoyée par le serveur
+    public static final byte MODIFY = 2;   // clé = ID du message, corps = nouveau contenu
+    public static final byte DELETE = 3;   // clé = ID du message
+    public static final byte HISTORY = 4;  // corps = date (yyyy-MM-dd)
+    public static final byte JOIN = 5;     // corps = nom du salon
+    public static final byte LEAVE = 6;
+    public static final byte ROOMS = 7;
+    public static final byte BYE = 8;
+    public static final byte TYPING = 9;
+    public static final byte STATUS = 10;  // corps = away ou online
+    public static final byte WHO = 11;
+    public static final byte SEARCH = 12;  // clé = numéro de page, corps = requête
+    public static final byte SYNC = 13;    // clé = salon, corps = dernier ID reçu (avant le nom, à la reconnexion)
+    public static final byte STATS = 14;   // dernier relevé des métriques du serveur
+
+    public static final class Frame {
+        public final byte type;
+        public final String key;
+        public final String body;
+
+        public Frame(byte type, String key, String body) {
+            this.type = type;
+            this.key = key == null ? "" : key;
+            this.body = body == null ? "" : body;
+        }
+
+        public static Frame text(String body) {
+            return new Frame(TEXT, "", body);
+        }
+    }
+
+    /**
+     * Convertit une ligne du protocole texte en trame typée. C'est le seul
+     * endroit où les préfixes texte sont analysés, pour le serveur comme pour
+     * les clients binaires. Retourne null pour une commande mal formée.
+     */
+    public static Frame parseLine(String line) {
+        if (line.equalsIgnoreCase("bye")) {
+            return new Frame(BYE, "", "");
+        } else if (line.startsWith("MODIFY:")) {
+            int separator = line.indexOf(':', "MODIFY:".length());
+            if (separator < 0) {
+                return null;
+            }
+            return new Frame(MODIFY, line.substring("MODIFY:".length(), separator), line.substring(separator + 1));
+        } else if (line.startsWith("DELETE:")) {
+            return new Frame(DELETE, line.substring("DELETE:".length()), "");
+        } else if (line.startsWith("HISTORY:")) {
+            String[] parts = line.split(":");
+            return parts.length < 2 ? null : new Frame(HISTORY, "", parts[1]);
+        } else if (line.startsWith("JOIN:")) {
+            return new Frame(JOIN, "", line.substring("JOIN:".length()).trim());
+        } else if (line.equalsIgnoreCase("LEAVE")) {
+            return new Frame(LEAVE, "", "");
+        } else if (line.equalsIgnoreCase("ROOMS")) {
+            return new Frame(ROOMS, "", "");
+        } else if (line.equalsIgnoreCase("TYPING")) {
+            return new Frame(TYPING, "", "");
+        } else if (line.startsWith("STATUS:")) {
+            return new Frame(STATUS, "", line.substring("STATUS:".length()).trim());
+        } else if (line.equalsIgnoreCase("WHO")) {
+            return new Frame(WHO, "", "");
+        } else if (line.equalsIgnoreCase("STATS")) {
+            return new Frame(STATS, "", "");
+        } else if (line.startsWith("SEARCH:")) {
+            // SEARCH:<requête> ou SEARCH:<page>:<requête>
+            String query = line.substring("SEARCH:".length());
+            int separator = query.indexOf(':');
+            if (separator > 0 && query.substring(0, separator).matches("\\d{1,6}")) {
+                return new Frame(SEARCH, query.substring(0, separator), query.substring(separator + 1));
+            }
+            return new Frame(SEARCH, "1", query);
+        } else if (line.startsWith("SYNC:")) {
+            // SYNC:<salon>:<dernier ID reçu>
+            String[] parts = line.split(":", 3);
+            return parts.length < 3 ? null : new Frame(SYNC, parts[1], parts[2]);
+        }
+        return Frame.text(line);
+    }
+
+    public static void writeFrame(DataOutputStream out, Frame frame) throws IOException {
+        byte[] key = frame.key.getBytes(StandardCharsets.UTF_8);
+        byte[] body = frame.body.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(frame.type);
+        out.writeInt(2 + key.length + body.length);
+        out.writeShort(key.length);
+        out.write(key);
+        out.write(body);
+    }
+
+    /**
+     * Lit une trame complète. Retourne null si la connexion est fermée
+     * proprement entre deux trames.
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 2 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Taille de trame invalide : " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        int keyLength = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        if (keyLength > length - 2) {
+            throw new IOException("Taille de clé invalide : " + keyLength);
+        }
+        String key = new String(payload, 2, keyLength, StandardCharsets.UTF_8);
+        String body = new String(payload, 2 + keyLength, length - 2 - keyLength, StandardCharsets.UTF_8);
+        return new Frame((byte) type, key, body);
+    }
+
+    /**
+     * Lit une ligne octet par octet, sans tampon, pour que les trames binaires
+     * qui suivent la négociation restent dans le flux.
+     */
+    public static String readRawLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
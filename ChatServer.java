@@ -1,23 +1,83 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.text.SimpleDateFormat;
 
 public class ChatServer {
     private static String CONFIG_FILE = "chat-config.txt";
+    private static ChatCluster cluster; // null sans CLUSTER_NODES
+    private static final Map<String, Object> roomLocks = new ConcurrentHashMap<>();
+    private static final AtomicLong connectionIds = new AtomicLong();
     private static int PORT;
+    private static MessageIdGenerator idGenerator = new MessageIdGenerator(0);
+    private static long PRESENCE_INTERVAL_MS = 250;
+    private static long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static PresenceTracker presence;
+    private static final HistorySearchIndex searchIndex = new HistorySearchIndex();
     private static Set<ClientHandler> clientHandlers = new CopyOnWriteArraySet<>();
-    private static Map<String, Message> messages = new HashMap<>(); // ID -> Message
+    private static Map<String, Message> messages = new ConcurrentHashMap<>(); // ID -> Message
+    private static Map<String, ChatRoom> rooms = new ConcurrentHashMap<>(); // Nom -> Salon
     private static final File HISTORY_DIR = new File("History");
+    static final String DEFAULT_ROOM = "general";
+    private static final int MAX_SYNC_DAYS = 7;
+    private static long COMPACTION_INTERVAL_H = 6;
+    private static boolean COMPRESS_SNAPSHOTS = false;
+    private static double RATE_LIMIT_PER_S = 20;
+    private static double RATE_LIMIT_BURST = 40;
+    private static int MAX_CLIENTS = 10000;
+    private static int MAX_OUTBOX = 10000;
+    private static TokenBucket globalLimit = new TokenBucket(0, 1);
+    private static long METRICS_INTERVAL_S = 10;
+    private static String METRICS_FILE = "";
+    private static Set<String> ADMIN_USERS = new HashSet<>();
+    static final ChatMetrics metrics = new ChatMetrics();
+    // Tâches de fond du serveur : compaction de l'historique, relevé des métriques
+    private static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void main(String[] args) {
+        // Un fichier de configuration par nœud permet de lancer plusieurs serveurs en local
+        if (args.length > 0) {
+            CONFIG_FILE = args[0];
+        }
+
         // Créer le répertoire History s'il n'existe pas
         if (!HISTORY_DIR.exists()) {
             HISTORY_DIR.mkdirs();
         }
 
         loadConfig();
+        presence = new PresenceTracker(ChatServer::broadcastToRoom, IDLE_TIMEOUT_MS);
+        presence.start(PRESENCE_INTERVAL_MS);
+
+        // L'index de recherche est construit en arrière-plan pour ne pas retarder le démarrage.
+        // En cluster, SEARCH est transmis au propriétaire du salon : seuls les salons de ce nœud sont indexés
+        Thread indexBuilder = new Thread(() -> searchIndex.build(HISTORY_DIR, DEFAULT_ROOM,
+            room -> cluster == null || cluster.owns(room)), "search-index");
+        indexBuilder.setDaemon(true);
+        indexBuilder.start();
+        startHistoryCompaction();
+        startMetricsSampling();
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.err.println("Erreur lors du démarrage du cluster : " + e.getMessage());
+                return;
+            }
+        }
 
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("Serveur de chat démarré sur le port " + PORT);
@@ -26,16 +86,22 @@ public class ChatServer {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("Nouveau client connecté : " + clientSocket.getInetAddress());
 
+                // Contrôle d'admission : au-delà de MAX_CLIENTS, la connexion est refusée
+                // et le client réessaie plus tard avec son délai de reconnexion
+                if (clientHandlers.size() >= MAX_CLIENTS) {
+                    try (PrintWriter refusal = new PrintWriter(clientSocket.getOutputStream(), true)) {
+                        refusal.println("Erreur : serveur complet, réessayez plus tard.");
+                    } catch (IOException e) {
+                        // le client est déjà parti
+                    }
+                    clientSocket.close();
+                    continue;
+                }
+
+                // L'historique du salon est envoyé par le ClientHandler une fois le nom saisi
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
                 clientHandlers.add(clientHandler);
                 new Thread(clientHandler).start();
-
-                // Charger l'historique actuel à l'arrivée d'un nouvel utilisateur
-                String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
-                String history = loadHistory(today);
-                if (!history.isEmpty()) {
-                    clientHandler.sendMessage("Historique de la journée:\n" + history);
-                }
             }
         } catch (IOException e) {
             System.err.println("Erreur du serveur : " + e.getMessage());
@@ -48,11 +114,78 @@ public class ChatServer {
             prop.load(input);
 
             PORT = Integer.parseInt(prop.getProperty("SERVER_PORT"));
+            idGenerator = new MessageIdGenerator(Integer.parseInt(prop.getProperty("NODE_ID", "0").trim()));
+            PRESENCE_INTERVAL_MS = Long.parseLong(prop.getProperty("PRESENCE_INTERVAL_MS", "250").trim());
+            IDLE_TIMEOUT_MS = Long.parseLong(prop.getProperty("IDLE_TIMEOUT_S", "300").trim()) * 1000;
+            COMPACTION_INTERVAL_H = Long.parseLong(prop.getProperty("HISTORY_COMPACTION_INTERVAL_H", "6").trim());
+            COMPRESS_SNAPSHOTS = Boolean.parseBoolean(prop.getProperty("HISTORY_COMPRESS", "false").trim());
+            RATE_LIMIT_PER_S = Double.parseDouble(prop.getProperty("RATE_LIMIT_PER_S", "20").trim());
+            RATE_LIMIT_BURST = Double.parseDouble(prop.getProperty("RATE_LIMIT_BURST", "40").trim());
+            double globalRate = Double.parseDouble(prop.getProperty("GLOBAL_RATE_LIMIT_PER_S", "5000").trim());
+            globalLimit = new TokenBucket(globalRate, globalRate);
+            MAX_CLIENTS = Integer.parseInt(prop.getProperty("MAX_CLIENTS", "10000").trim());
+            MAX_OUTBOX = Integer.parseInt(prop.getProperty("MAX_OUTBOX", "10000").trim());
+            METRICS_INTERVAL_S = Long.parseLong(prop.getProperty("METRICS_INTERVAL_S", "10").trim());
+            METRICS_FILE = prop.getProperty("METRICS_FILE", "").trim();
+            String clusterNodes = prop.getProperty("CLUSTER_NODES", "").trim();
+            if (!clusterNodes.isEmpty()) {
+                // Le NODE_ID d'un nœud est sa position dans CLUSTER_NODES
+                cluster = new ChatCluster(Integer.parseInt(prop.getProperty("NODE_ID", "0").trim()),
+                    ChatCluster.parseNodes(clusterNodes), prop.getProperty("CLUSTER_SECRET", "").trim(), new ClusterListener());
+            }
+            for (String admin : prop.getProperty("ADMIN_USERS", "").split(",")) {
+                if (!admin.trim().isEmpty()) {
+                    ADMIN_USERS.add(admin.trim());
+                }
+            }
         } catch (IOException ex) {
             System.err.println("Erreur lors du chargement du fichier de configuration.");
         }
     }
 
+    /**
+     * Compaction périodique des jours terminés (voir HistoryCompactor). Une
+     * première passe a lieu une minute après le démarrage ; un intervalle de 0
+     * désactive la compaction. En cluster, chaque nœud ne compacte que ses
+     * propres salons : le verrou de HistoryCompactor ne protège que les
+     * écritures de ce processus.
+     */
+    private static void startHistoryCompaction() {
+        if (COMPACTION_INTERVAL_H <= 0) {
+            return;
+        }
+        HistoryCompactor compactor = new HistoryCompactor(HISTORY_DIR, COMPRESS_SNAPSHOTS, roomDir -> cluster == null
+            || cluster.owns(roomDir.equals(HISTORY_DIR) ? DEFAULT_ROOM : roomDir.getName()));
+        maintenance.scheduleWithFixedDelay(() -> {
+            long start = System.currentTimeMillis();
+            int days = compactor.compactClosedDays();
+            if (days > 0) {
+                System.out.println("Historique compacté : " + days + " jour(s) en " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }, 60, COMPACTION_INTERVAL_H * 3600, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Relevé périodique des métriques (voir ChatMetrics), écrit dans
+     * METRICS_FILE si ce paramètre est renseigné.
+     */
+    private static void startMetricsSampling() {
+        if (METRICS_INTERVAL_S <= 0) {
+            return;
+        }
+        File metricsFile = METRICS_FILE.isEmpty() ? null : new File(METRICS_FILE);
+        maintenance.scheduleAtFixedRate(() -> {
+            List<Integer> queueDepths = new ArrayList<>();
+            for (ClientHandler handler : clientHandlers) {
+                queueDepths.add(handler.pendingMessages());
+            }
+            String snapshot = metrics.sample(queueDepths);
+            if (metricsFile != null) {
+                ChatMetrics.writeSnapshot(metricsFile, snapshot);
+            }
+        }, METRICS_INTERVAL_S, METRICS_INTERVAL_S, TimeUnit.SECONDS);
+    }
+
     private static String loadAndMergeHistory(String date) {
         File historyFile = new File(HISTORY_DIR, "history_" + date + ".txt");
         if (!historyFile.exists()) {
@@ -66,17 +199,483 @@ public class ChatServer {
         }
     }
 
-    private static String loadHistory(String date) {
-        // Chargement des fichiers d'historique
-        File baseFile = new File(HISTORY_DIR, "history_" + date + ".txt");
-        File modifiedFile = new File(HISTORY_DIR, "history_modified_" + date + ".txt");
-        File deletedFile = new File(HISTORY_DIR, "history_deleted_" + date + ".txt");
+    /**
+     * Répertoire d'historique d'un salon. Le salon par défaut garde les fichiers
+     * directement dans History/ pour rester compatible avec les historiques existants.
+     */
+    static File getRoomHistoryDir(String room) {
+        if (DEFAULT_ROOM.equals(room)) {
+            return HISTORY_DIR;
+        }
+        File roomDir = new File(HISTORY_DIR, room);
+        if (!roomDir.exists()) {
+            roomDir.mkdirs();
+        }
+        return roomDir;
+    }
+
+    static boolean isValidRoomName(String room) {
+        return room != null && room.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    /**
+     * Ajoute le client au salon. compute() est atomique par clé, ce qui évite
+     * qu'un salon vide soit supprimé pendant qu'un autre client le rejoint.
+     */
+    static ChatRoom joinRoom(String name, ClientHandler client) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new ChatRoom(key);
+            }
+            room.members.add(client);
+            return room;
+        });
+    }
+
+    /**
+     * Retire le client du salon et supprime le salon s'il devient vide
+     * (sauf le salon par défaut).
+     */
+    static void leaveRoom(String name, ClientHandler client) {
+        rooms.computeIfPresent(name, (key, room) -> {
+            room.members.remove(client);
+            return room.members.isEmpty() && !DEFAULT_ROOM.equals(key) ? null : room;
+        });
+    }
+
+    /** Diffuse un message aux membres du salon sur ce nœud et, en cluster, sur les autres. */
+    static void broadcastToRoom(String roomName, String message) {
+        deliverToRoom(roomName, message);
+        if (cluster != null) {
+            cluster.relay(roomName, message);
+        }
+    }
+
+    static void deliverToRoom(String roomName, String message) {
+        ChatRoom target = rooms.get(roomName);
+        if (target != null) {
+            target.broadcast(message);
+        }
+    }
+
+    /**
+     * Exécute une commande qui modifie un salon, lit son index ou sa présence,
+     * sur le nœud propriétaire du salon. Retourne la réponse destinée au seul
+     * client émetteur, ou null. Les commandes d'un même salon sont traitées une
+     * par une : les ID sont croissants dans le fichier d'historique et les
+     * diffusions partent dans cet ordre vers tous les nœuds. La présence d'un
+     * salon est tenue par son propriétaire pour les clients de tous les nœuds.
+     */
+    static String executeOwned(byte operation, String roomName, String sender, String key, String body) {
+        switch (operation) {
+            case ChatProtocol.SEARCH:
+                return ClientHandler.searchRoom(roomName, body, key);
+            case ChatProtocol.JOIN:
+                presence.join(roomName, sender);
+                return presence.snapshot(roomName);
+            case ChatProtocol.LEAVE:
+                presence.leave(roomName, sender);
+                return null;
+            case ChatProtocol.TYPING:
+                presence.typing(roomName, sender);
+                return null;
+            case ChatProtocol.STATUS:
+                presence.setAway(roomName, sender, PresenceTracker.AWAY.equalsIgnoreCase(body));
+                return null;
+            case ChatProtocol.WHO:
+                return "En ligne : " + String.join(", ", presence.online(roomName));
+            default:
+                break;
+        }
+        synchronized (roomLock(roomName)) {
+            switch (operation) {
+                case ChatProtocol.TEXT:
+                    presence.activity(roomName, sender);
+                    ClientHandler.postMessage(roomName, sender, body);
+                    return null;
+                case ChatProtocol.MODIFY:
+                    return ClientHandler.modifyMessage(roomName, sender, key, body);
+                case ChatProtocol.DELETE:
+                    return ClientHandler.deleteMessage(roomName, sender, key);
+                default:
+                    return "Erreur : Commande inconnue.";
+            }
+        }
+    }
+
+    static Object roomLock(String roomName) {
+        return roomLocks.computeIfAbsent(roomName, name -> new Object());
+    }
+
+    /** Messages reçus des autres nœuds du cluster. */
+    private static class ClusterListener implements ChatCluster.Listener {
+        @Override
+        public void onRelay(String room, String line) {
+            if (line.startsWith(PresenceTracker.PREFIX)) {
+                presence.mirror(room, line);
+            }
+            deliverToRoom(room, line);
+        }
+
+        @Override
+        public void onForward(byte operation, int originNode, long connectionId, String room, String sender, String key, String body) {
+            String reply = executeOwned(operation, room, sender, key, body);
+            if (reply != null) {
+                cluster.reply(originNode, connectionId, reply);
+            }
+        }
+
+        @Override
+        public void onReply(long connectionId, String text) {
+            for (ClientHandler handler : clientHandlers) {
+                if (handler.connectionId == connectionId) {
+                    handler.sendMessage(text);
+                    return;
+                }
+            }
+        }
+    }
+
+    static String formatDate(long timestamp) {
+        return new SimpleDateFormat("yyyy-MM-dd").format(new Date(timestamp));
+    }
+
+    /**
+     * Retrouve un message du salon room, ou null s'il n'existe pas ou appartient
+     * à un autre salon : un client ne peut modifier ou supprimer que les messages
+     * du salon où il se trouve. Un message absent de la mémoire (par exemple après
+     * un redémarrage) est cherché dans l'historique du salon. Un identifiant
+     * compact contient son horodatage, on lit donc directement le fichier du bon
+     * jour ; pour un ancien UUID on ne peut chercher que dans le fichier du jour
+     * courant.
+     */
+    static Message findMessage(String room, String messageId) {
+        Message cached = messages.get(messageId);
+        if (cached != null) {
+            return cached.getRoom().equals(room) ? cached : null;
+        }
+
+        long compactId = MessageIdGenerator.decode(messageId);
+        String date = compactId >= 0
+            ? formatDate(MessageIdGenerator.timestampOf(compactId))
+            : formatDate(System.currentTimeMillis());
+        Message loaded = loadMessage(room, date, messageId);
+        if (loaded == null) {
+            return null;
+        }
+        Message existing = messages.putIfAbsent(messageId, loaded);
+        if (existing == null) {
+            return loaded;
+        }
+        return existing.getRoom().equals(room) ? existing : null;
+    }
+
+    private static Message loadMessage(String room, String date, String messageId) {
+        File roomDir = getRoomHistoryDir(room);
+        // Verrou partagé : la compaction ne doit pas remplacer les fichiers du jour pendant la lecture
+        Lock lock = HistoryCompactor.lockFor(roomDir).readLock();
+        lock.lock();
+        try {
+            return readMessage(roomDir, room, date, messageId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Message readMessage(File roomDir, String room, String date, String messageId) {
+        String prefix = messageId + ":";
+        Message found = null;
+
+        File snapshot = HistoryCompactor.findSnapshot(roomDir, date);
+        if (snapshot != null) {
+            // Jour compacté : l'instantané contient déjà l'état final du message
+            HistoryCompactor.Entry entry;
+            try {
+                entry = HistoryCompactor.findEntry(snapshot, messageId);
+            } catch (IOException e) {
+                return null;
+            }
+            if (entry != null) {
+                found = new Message(messageId, room, entry.sender, entry.content, entry.timestamp);
+                if (entry.isDeleted()) {
+                    found.setDeleted();
+                }
+            }
+        } else {
+            try (BufferedReader reader = new BufferedReader(new FileReader(new File(roomDir, "history_" + date + ".txt")))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(prefix)) {
+                        String[] parts = line.split(":", 5);
+                        if (parts.length >= 5) {
+                            found = new Message(messageId, room, parts[2], parts[4], Long.parseLong(parts[1]));
+                            if ("deleted".equals(parts[3])) {
+                                found.setDeleted();
+                            }
+                        }
+                        break;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                return null;
+            }
+        }
+        if (found == null) {
+            return null;
+        }
+
+        // Appliquer les modifications et suppressions de ce jour
+        File modifiedFile = new File(roomDir, "history_modified_" + date + ".txt");
+        if (modifiedFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(modifiedFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(":", 5);
+                    if (line.startsWith(prefix) && parts.length >= 5) {
+                        found.setContent(parts[4]);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture du fichier des modifications : " + e.getMessage());
+            }
+        }
+        File deletedFile = new File(roomDir, "history_deleted_" + date + ".txt");
+        if (deletedFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(deletedFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(prefix)) {
+                        found.setDeleted();
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture du fichier des suppressions : " + e.getMessage());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Messages d'un salon postérieurs à l'ID donné, au format des diffusions
+     * pour que le client puisse mettre à jour son curseur. Les modifications et
+     * suppressions de messages plus anciens faites depuis sont aussi renvoyées.
+     * Retourne null si l'ID n'est pas un ID compact ou s'il est trop ancien :
+     * l'appelant renvoie alors l'historique complet du jour.
+     */
+    static String loadHistorySince(String room, String lastSeenId) {
+        long cursor = MessageIdGenerator.decode(lastSeenId);
+        if (cursor < 0) {
+            return null;
+        }
+        long cursorTime = MessageIdGenerator.timestampOf(cursor);
+        long now = System.currentTimeMillis();
+        if (now - cursorTime > MAX_SYNC_DAYS * 24L * 3600 * 1000) {
+            return null;
+        }
+
+        File roomDir = getRoomHistoryDir(room);
+        List<String> edits = new ArrayList<>();
+        Map<String, String[]> newMessages = new LinkedHashMap<>(); // ID -> {expéditeur, contenu}
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(cursorTime);
+        String today = formatDate(now);
+
+        while (true) {
+            String date = formatDate(day.getTimeInMillis());
+            File baseFile = new File(roomDir, "history_" + date + ".txt");
+            // Verrou partagé : la compaction ne doit pas remplacer les fichiers du jour pendant la lecture
+            Lock lock = HistoryCompactor.lockFor(roomDir).readLock();
+            lock.lock();
+            try {
+                File snapshot = HistoryCompactor.findSnapshot(roomDir, date);
+                if (snapshot != null) {
+                    readSnapshotSince(snapshot, cursor, cursorTime, newMessages, edits);
+                } else if (baseFile.exists()) {
+                    // Le jour du curseur commence juste après lui, les jours suivants au début
+                    long offset = date.equals(formatDate(cursorTime)) ? findOffsetAfter(baseFile, cursor) : 0;
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(openAt(baseFile, offset)))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            String[] parts = line.split(":", 5);
+                            if (parts.length >= 5 && !"deleted".equals(parts[3])
+                                    && MessageIdGenerator.decode(parts[0]) > cursor) {
+                                newMessages.put(parts[0], new String[] {parts[2], parts[4]});
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Erreur lors de la lecture du fichier de base : " + e.getMessage());
+                    }
+                }
+                collectEdits(new File(roomDir, "history_deleted_" + date + ".txt"), 4, cursorTime, newMessages, edits);
+                collectEdits(new File(roomDir, "history_modified_" + date + ".txt"), 5, cursorTime, newMessages, edits);
+            } finally {
+                lock.unlock();
+            }
+            if (date.equals(today) || date.compareTo(today) > 0) {
+                break;
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+
+        StringBuilder delta = new StringBuilder();
+        for (String edit : edits) {
+            delta.append(edit).append("\n");
+        }
+        for (Map.Entry<String, String[]> entry : newMessages.entrySet()) {
+            String[] message = entry.getValue();
+            delta.append(String.format("%s (ID: %s) : %s", message[0], entry.getKey(), message[1])).append("\n");
+        }
+        return delta.toString().trim();
+    }
+
+    /**
+     * Partie d'un jour compacté postérieure au curseur : les messages plus
+     * récents sont ajoutés aux messages manqués, les plus anciens modifiés ou
+     * supprimés depuis le curseur donnent lieu à une notification. Le jour
+     * est lu en entier : la compaction a pu y replier des modifications de
+     * messages antérieurs au curseur.
+     */
+    private static void readSnapshotSince(File snapshot, long cursor, long cursorTime,
+                                          Map<String, String[]> newMessages, List<String> edits) {
+        try {
+            HistoryCompactor.readSnapshot(snapshot, entry -> {
+                if (MessageIdGenerator.decode(entry.id) > cursor) {
+                    if (!entry.isDeleted()) {
+                        newMessages.put(entry.id, new String[] {entry.sender, entry.content});
+                    }
+                } else if (entry.editedAt > cursorTime && !HistoryCompactor.NORMAL.equals(entry.status)) {
+                    edits.add(entry.isDeleted()
+                        ? String.format("%s a supprimé un message (ID: %s).", entry.sender, entry.id)
+                        : String.format("%s a modifié un message (ID: %s):%s", entry.sender, entry.id, entry.content));
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la lecture de l'instantané : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applique les suppressions (4 champs) ou modifications (5 champs) d'un jour :
+     * un message manqué est mis à jour sur place, un message plus ancien donne
+     * lieu à une notification si l'événement est postérieur au curseur.
+     */
+    private static void collectEdits(File file, int fields, long cursorTime, Map<String, String[]> newMessages, List<String> edits) {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(":", fields);
+                if (parts.length < fields) {
+                    continue;
+                }
+                String messageId = parts[0];
+                boolean deletion = fields == 4;
+                if (newMessages.containsKey(messageId)) {
+                    if (deletion) {
+                        newMessages.remove(messageId);
+                    } else {
+                        newMessages.get(messageId)[1] = parts[4];
+                    }
+                } else if (Long.parseLong(parts[1]) > cursorTime) {
+                    edits.add(deletion
+                        ? String.format("%s a supprimé un message (ID: %s).", parts[2], messageId)
+                        : String.format("%s a modifié un message (ID: %s):%s", parts[2], messageId, parts[4]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Erreur lors de la lecture de " + file.getName() + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Recherche dichotomique dans un fichier de base, dont les lignes sont
+     * triées par ID compact (postMessage génère l'ID et ajoute la ligne sous le
+     * verrou du salon) : retourne la position de la première ligne dont l'ID
+     * est supérieur au curseur. Les anciennes lignes à UUID, en tête de
+     * fichier, sont considérées comme antérieures.
+     */
+    static long findOffsetAfter(File baseFile, long cursor) {
+        try (RandomAccessFile file = new RandomAccessFile(baseFile, "r")) {
+            long low = 0;
+            long high = file.length();
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                long lineStart = nextLineStart(file, middle);
+                if (lineStart >= high) {
+                    high = middle;
+                    continue;
+                }
+                file.seek(lineStart);
+                String line = file.readLine();
+                int separator = line == null ? -1 : line.indexOf(':');
+                long id = separator < 0 ? -1 : MessageIdGenerator.decode(line.substring(0, separator));
+                if (id > cursor) {
+                    high = middle;
+                } else {
+                    low = file.getFilePointer();
+                }
+            }
+            return nextLineStart(file, low);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** Début de la première ligne commençant à la position donnée ou après. */
+    private static long nextLineStart(RandomAccessFile file, long position) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        file.seek(position - 1);
+        int b;
+        while ((b = file.read()) != -1 && b != '\n') {
+            // avancer jusqu'à la fin de la ligne en cours
+        }
+        return file.getFilePointer();
+    }
+
+    private static InputStream openAt(File file, long offset) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        input.getChannel().position(offset);
+        return input;
+    }
+
+    static String loadHistory(String room, String date) {
+        // Chargement des fichiers d'historique du salon, sous le verrou partagé que la compaction attend
+        File roomDir = getRoomHistoryDir(room);
+        Lock lock = HistoryCompactor.lockFor(roomDir).readLock();
+        lock.lock();
+        try {
+            return readHistory(roomDir, date);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String readHistory(File roomDir, String date) {
+        File baseFile = new File(roomDir, "history_" + date + ".txt");
+        File modifiedFile = new File(roomDir, "history_modified_" + date + ".txt");
+        File deletedFile = new File(roomDir, "history_deleted_" + date + ".txt");
     
         Map<String, String> finalHistory = new LinkedHashMap<>(); // ID -> Message contenu
         Set<String> deletedMessages = new HashSet<>(); // IDs des messages supprimés
     
-        // Lecture des messages de base
-        if (baseFile.exists()) {
+        // Lecture des messages de base, ou de l'instantané si le jour a été compacté
+        File snapshot = HistoryCompactor.findSnapshot(roomDir, date);
+        if (snapshot != null) {
+            try {
+                HistoryCompactor.readSnapshot(snapshot, entry -> {
+                    if (!entry.isDeleted()) {
+                        finalHistory.put(entry.id, entry.sender + ": " + entry.content);
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture de l'instantané : " + e.getMessage());
+            }
+        } else if (baseFile.exists()) {
             try (BufferedReader reader = new BufferedReader(new FileReader(baseFile))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
@@ -151,10 +750,22 @@ public class ChatServer {
     
 
     static class ClientHandler implements Runnable {
+        private static final String CLOSE = new String("CLOSE"); // marqueur de fin, comparé par référence
+
         private Socket socket;
         private PrintWriter out;
         private BufferedReader in;
+        private DataOutputStream binaryOut;
+        private DataInputStream binaryIn;
+        private boolean binary;
+        private final BlockingQueue<String> outbox = new LinkedBlockingQueue<>(MAX_OUTBOX);
+        private final TokenBucket inboundLimit = new TokenBucket(RATE_LIMIT_PER_S, RATE_LIMIT_BURST);
+        private boolean throttled;
+        final long connectionId = connectionIds.incrementAndGet();
+        private volatile boolean closed;
+        private Thread writer;
         private String clientName;
+        private ChatRoom room;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -164,172 +775,468 @@ public class ChatServer {
         public void run() {
             try {
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
         
-                // Demander le nom de l'utilisateur
+                // Demander le nom de l'utilisateur, ou la négociation du protocole binaire
                 out.println("Entrez votre nom :");
-                clientName = in.readLine();  // Lecture du nom du client
-        
-                // Annonce que l'utilisateur a rejoint le chat
-                broadcast(clientName + " a rejoint le chat.");
-        
-                // Envoi de l'historique du jour après que le nom soit saisi
-                String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
-                String history = loadHistory(today);
+                out.flush();
+                String firstLine = in.readLine();
+                if (ChatProtocol.NEGOTIATE.equals(firstLine)) {
+                    // Le client attend ACCEPTED avant d'envoyer ses trames : le tampon
+                    // du BufferedReader est vide et on peut lire le socket directement
+                    out.println(ChatProtocol.ACCEPTED);
+                    out.flush();
+                    binary = true;
+                    binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    binaryOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    firstLine = readHandshakeLine();
+                }
+
+                // Un client qui se reconnecte envoie d'abord SYNC:<salon>:<dernier ID reçu>
+                ChatProtocol.Frame sync = null;
+                if (firstLine != null && firstLine.startsWith("SYNC:")) {
+                    sync = ChatProtocol.parseLine(firstLine);
+                    firstLine = readHandshakeLine();
+                }
+                clientName = firstLine;  // Lecture du nom du client
+                if (clientName == null) {
+                    return;
+                }
+
+                writer = new Thread(this::writeLoop);
+                writer.start();
         
-                // L'historique est envoyé **après** l'entrée du nom, pas avant
-                if (!history.isEmpty()) {
-                    this.sendMessage("Historique de la journée :\n" + history);
+                // Chaque client commence dans le salon par défaut ; l'annonce et
+                // l'historique sont envoyés **après** l'entrée du nom, pas avant
+                if (sync != null && isValidRoomName(sync.key)) {
+                    enterRoom(sync.key, sync.body);
+                } else {
+                    enterRoom(DEFAULT_ROOM, null);
                 }
         
                 // Traitement des messages
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.equalsIgnoreCase("bye")) {
+                ChatProtocol.Frame command;
+                while ((command = readCommand()) != null) {
+                    if (command.type == ChatProtocol.BYE) {
                         break;
-                    } else if (message.startsWith("MODIFY:")) {
-                        handleModifyMessage(message);
-                    } else if (message.startsWith("DELETE:")) {
-                        handleDeleteMessage(message);
-                    } else if (message.startsWith("HISTORY:")) {
-                        String date = message.split(":")[1];
-                        out.println(loadHistory(date));
-                    } else {
-                        handleNewMessage(message);
                     }
+                    metrics.messagesIn.increment();
+                    throttle();
+                    handleCommand(command);
                 }
         
                 // Annonce que l'utilisateur a quitté le chat
-                broadcast(clientName + " a quitté le chat.");
+                exitRoom();
             } catch (IOException e) {
                 System.err.println("Erreur avec le client : " + e.getMessage());
             } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    System.err.println("Impossible de fermer le socket : " + e.getMessage());
+                if (room != null) {
+                    leaveRoom(room.name, this);
+                    execute(ChatProtocol.LEAVE, "", "");
                 }
                 clientHandlers.remove(this);
+                // Le thread d'écriture envoie les derniers messages puis ferme le socket ;
+                // si sa file est pleine, on ferme directement
+                if (writer == null || !outbox.offer(CLOSE)) {
+                    closeSocket();
+                }
             }
         }
-        
 
-        private void handleNewMessage(String content) {
-            String messageId = UUID.randomUUID().toString();
-            Message newMessage = new Message(messageId, clientName, content);
-            messages.put(messageId, newMessage);
-            saveMessageToHistory(newMessage);
-            broadcast(String.format("%s (ID: %s) : %s", clientName, messageId, content));
+        /**
+         * Limites de débit avant chaque commande : celle de la connexion puis
+         * celle du serveur. Quand un seau est vide, ce thread attend au lieu de
+         * lire la commande suivante ; le client qui inonde le serveur est ainsi
+         * freiné par TCP sans retarder les autres.
+         */
+        private void throttle() throws IOException {
+            try {
+                long waited = inboundLimit.acquire() + globalLimit.acquire();
+                if (waited > 0) {
+                    metrics.throttled.increment();
+                }
+                if (waited > 0 && !throttled) {
+                    sendMessage("Avertissement : trop de messages, vos envois sont ralentis.");
+                }
+                throttled = waited > 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Limitation de débit interrompue");
+            }
         }
 
-        private void handleModifyMessage(String message) {
-            String[] parts = message.split(":", 3);
-            if (parts.length < 3) return;
+        /**
+         * Lit une ligne de la poignée de main (SYNC ou nom) ; en binaire, une
+         * trame SYNC est remise sous sa forme texte.
+         */
+        private String readHandshakeLine() throws IOException {
+            if (!binary) {
+                return in.readLine();
+            }
+            ChatProtocol.Frame frame = ChatProtocol.readFrame(binaryIn);
+            if (frame == null) {
+                return null;
+            }
+            return frame.type == ChatProtocol.SYNC ? "SYNC:" + frame.key + ":" + frame.body : frame.body;
+        }
 
-            String messageId = parts[1];
-            String newContent = parts[2];
+        /**
+         * Lit la prochaine commande, quel que soit le protocole. Les lignes texte
+         * mal formées sont ignorées, comme avant.
+         */
+        private ChatProtocol.Frame readCommand() throws IOException {
+            if (binary) {
+                return ChatProtocol.readFrame(binaryIn);
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                long start = System.nanoTime();
+                ChatProtocol.Frame command = ChatProtocol.parseLine(line);
+                metrics.parse.record(System.nanoTime() - start);
+                if (command != null) {
+                    return command;
+                }
+            }
+            return null;
+        }
 
-            if (messages.containsKey(messageId)) {
-                Message targetMessage = messages.get(messageId);
+        private void handleCommand(ChatProtocol.Frame command) {
+            switch (command.type) {
+                case ChatProtocol.TEXT:
+                    execute(ChatProtocol.TEXT, "", command.body);
+                    break;
+                case ChatProtocol.MODIFY:
+                case ChatProtocol.DELETE:
+                    execute(command.type, command.key, command.body);
+                    break;
+                case ChatProtocol.HISTORY:
+                    sendMessage(timedLoadHistory(room.name, command.body));
+                    break;
+                case ChatProtocol.JOIN:
+                    handleJoinRoom(command.body);
+                    break;
+                case ChatProtocol.LEAVE:
+                    handleJoinRoom(DEFAULT_ROOM);
+                    break;
+                case ChatProtocol.ROOMS:
+                    // En cluster, les salons des autres nœuds sont connus par leurs diffusions de présence
+                    Set<String> names = new TreeSet<>(rooms.keySet());
+                    names.addAll(presence.rooms());
+                    sendMessage("Salons : " + String.join(", ", names));
+                    break;
+                case ChatProtocol.TYPING:
+                    execute(ChatProtocol.TYPING, "", "");
+                    break;
+                case ChatProtocol.STATUS:
+                    execute(ChatProtocol.STATUS, "", command.body);
+                    break;
+                case ChatProtocol.WHO:
+                    execute(ChatProtocol.WHO, "", "");
+                    break;
+                case ChatProtocol.SEARCH:
+                    if (command.body.trim().isEmpty()) {
+                        sendMessage("Erreur : Requête de recherche vide.");
+                    } else {
+                        execute(ChatProtocol.SEARCH, command.key, command.body);
+                    }
+                    break;
+                case ChatProtocol.STATS:
+                    // Sans ADMIN_USERS, les métriques sont visibles par tous
+                    if (ADMIN_USERS.isEmpty() || ADMIN_USERS.contains(clientName)) {
+                        sendMessage(metrics.getLastSnapshot());
+                    } else {
+                        sendMessage("Erreur : Commande réservée aux administrateurs.");
+                    }
+                    break;
+                default:
+                    sendMessage("Erreur : Commande inconnue.");
+            }
+        }
+
+        /**
+         * Boucle du thread d'écriture : tous les messages en attente sont écrits
+         * dans le tampon puis envoyés en un seul flush, ce qui regroupe les
+         * messages en rafale en un seul appel système.
+         */
+        private void writeLoop() {
+            List<String> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    batch.add(outbox.take());
+                    outbox.drainTo(batch);
+                    for (String message : batch) {
+                        if (message == CLOSE) {
+                            flushOutput();
+                            return;
+                        }
+                        metrics.messagesOut.increment();
+                        if (binary) {
+                            ChatProtocol.writeFrame(binaryOut, ChatProtocol.Frame.text(message));
+                        } else {
+                            out.println(message);
+                        }
+                    }
+                    flushOutput();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur d'envoi au client " + clientName + " : " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closed = true;
+                outbox.clear();
+                closeSocket();
+            }
+        }
+
+        private void flushOutput() throws IOException {
+            if (binary) {
+                binaryOut.flush();
+            } else {
+                out.flush();
+                if (out.checkError()) {
+                    throw new IOException("connexion fermée");
+                }
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Impossible de fermer le socket : " + e.getMessage());
+            }
+        }
+
+        private void handleJoinRoom(String roomName) {
+            if (!isValidRoomName(roomName)) {
+                sendMessage("Erreur : Nom de salon invalide (lettres, chiffres, '_' ou '-', 32 caractères max).");
+                return;
+            }
+            if (room != null && room.name.equals(roomName)) {
+                sendMessage("Vous êtes déjà dans le salon " + roomName + ".");
+                return;
+            }
+            exitRoom();
+            enterRoom(roomName, null);
+        }
+
+        /**
+         * Exécute la commande ici si ce nœud est propriétaire du salon, sinon
+         * la transmet au propriétaire qui renverra l'éventuelle réponse.
+         */
+        private void execute(byte operation, String key, String body) {
+            if (cluster != null && !cluster.owns(room.name)) {
+                if (!cluster.forward(operation, connectionId, room.name, clientName, key, body)) {
+                    sendMessage("Erreur : Le serveur du salon " + room.name + " est injoignable.");
+                }
+                return;
+            }
+            String reply = executeOwned(operation, room.name, clientName, key, body);
+            if (reply != null) {
+                sendMessage(reply);
+            }
+        }
+
+        /**
+         * Entre dans un salon. Si le client fournit le dernier ID reçu, seuls
+         * les messages manqués depuis cet ID sont renvoyés ; sinon l'historique
+         * complet de la journée.
+         */
+        private void enterRoom(String roomName, String lastSeenId) {
+            room = joinRoom(roomName, this);
+            broadcast(clientName + " a rejoint le chat.");
+            sendMessage("Salon actuel : " + roomName);
+            // L'instantané de présence est la réponse du propriétaire du salon
+            execute(ChatProtocol.JOIN, "", "");
+
+            String history = null;
+            if (lastSeenId != null) {
+                long start = System.nanoTime();
+                history = loadHistorySince(roomName, lastSeenId);
+                metrics.historyLoad.record(System.nanoTime() - start);
+                if (history != null && !history.isEmpty()) {
+                    this.sendMessage("Messages manqués :\n" + history);
+                }
+            }
+            if (history == null) {
+                history = timedLoadHistory(roomName, getCurrentDate());
+                if (!history.isEmpty()) {
+                    this.sendMessage("Historique de la journée :\n" + history);
+                }
+            }
+
+            // Curseur pour une éventuelle reconnexion : tout message enregistré
+            // après ce point aura un ID plus grand
+            sendMessage("SYNC:" + roomName + ":" + idGenerator.nextEncodedId());
+        }
+
+        private void exitRoom() {
+            if (room == null) {
+                return;
+            }
+            leaveRoom(room.name, this);
+            execute(ChatProtocol.LEAVE, "", "");
+            broadcast(clientName + " a quitté le chat.");
+            room = null;
+        }
+
+        static void postMessage(String roomName, String sender, String content) {
+            // L'horodatage du message est celui de son identifiant : le jour du
+            // fichier d'historique se déduit ainsi de l'ID seul. L'ID est généré
+            // et la ligne ajoutée sous le verrou du salon, pour que le fichier
+            // reste trié par ID (voir findOffsetAfter)
+            Message newMessage;
+            long persisted;
+            synchronized (roomLock(roomName)) {
+                long start = System.nanoTime();
+                long id = idGenerator.nextId();
+                String messageId = MessageIdGenerator.encode(id);
+                long generated = System.nanoTime();
+                metrics.idGeneration.record(generated - start);
+
+                newMessage = new Message(messageId, roomName, sender, content, MessageIdGenerator.timestampOf(id));
+                messages.put(messageId, newMessage);
+                saveMessageToHistory(newMessage);
+                persisted = System.nanoTime();
+                metrics.persist.record(persisted - generated);
+            }
+            String messageId = newMessage.getId();
+
+            searchIndex.add(messageId, roomName, sender, newMessage.getTimestamp(), content);
+            long indexed = System.nanoTime();
+            metrics.index.record(indexed - persisted);
+
+            broadcastToRoom(roomName, String.format("%s (ID: %s) : %s", sender, messageId, content));
+            metrics.fanOut.record(System.nanoTime() - indexed);
+        }
+
+        private static String timedLoadHistory(String roomName, String date) {
+            long start = System.nanoTime();
+            String history = loadHistory(roomName, date);
+            metrics.historyLoad.record(System.nanoTime() - start);
+            return history;
+        }
+
+        static String searchRoom(String roomName, String query, String page) {
+            int pageNumber;
+            try {
+                pageNumber = Integer.parseInt(page);
+            } catch (NumberFormatException e) {
+                pageNumber = 1;
+            }
+
+            HistorySearchIndex.Page results = searchIndex.search(roomName, query, pageNumber);
+            StringBuilder response = new StringBuilder();
+            if (!searchIndex.isReady()) {
+                response.append("(Index en cours de construction, résultats partiels)\n");
+            }
+            response.append(String.format("Résultats pour \"%s\" : %d message(s), page %d/%d",
+                query, results.totalHits, results.page, results.totalPages));
+            for (HistorySearchIndex.Document hit : results.hits) {
+                response.append(String.format("%n[%s] %s (ID: %s) : %s",
+                    formatDate(hit.timestamp), hit.sender, hit.id, hit.content));
+            }
+            return response.toString();
+        }
+
+        static String modifyMessage(String roomName, String sender, String messageId, String newContent) {
+            Message targetMessage = findMessage(roomName, messageId);
+            if (targetMessage != null) {
                 if (targetMessage.isDeleted()) {
-                    out.println("Erreur : Le message avec l'identifiant " + messageId + " a été supprimé et ne peut pas être modifié.");
-                    return;
+                    return "Erreur : Le message avec l'identifiant " + messageId + " a été supprimé et ne peut pas être modifié.";
                 }
 
                 String oldContent = targetMessage.getContent();
                 targetMessage.setContent(newContent);
                 saveModifiedMessageToHistory(targetMessage, oldContent, newContent);
-                broadcast(String.format("%s a modifié un message (ID: %s):%s", clientName, messageId, newContent));
-            } else {
-                out.println("Erreur : Message ID introuvable.");
+                searchIndex.update(messageId, newContent);
+                broadcastToRoom(targetMessage.getRoom(), String.format("%s a modifié un message (ID: %s):%s", sender, messageId, newContent));
+                return null;
             }
+            return "Erreur : Message ID introuvable.";
         }
 
-        private void handleDeleteMessage(String message) {
-            String[] parts = message.split(":", 2);
-            if (parts.length < 2) return;
-
-            String messageId = parts[1];
-
-            if (messages.containsKey(messageId)) {
-                Message targetMessage = messages.get(messageId);
+        static String deleteMessage(String roomName, String sender, String messageId) {
+            Message targetMessage = findMessage(roomName, messageId);
+            if (targetMessage != null) {
                 if (targetMessage.isDeleted()) {
-                    out.println("Erreur : Le message avec l'identifiant " + messageId + " est déjà supprimé.");
-                    return;
+                    return "Erreur : Le message avec l'identifiant " + messageId + " est déjà supprimé.";
                 }
 
                 targetMessage.setDeleted();
                 saveDeletedMessageToHistory(targetMessage);
-                broadcast(String.format("%s a supprimé un message (ID: %s).", clientName, messageId));
-            } else {
-                out.println("Erreur : Message ID introuvable.");
+                searchIndex.remove(messageId);
+                broadcastToRoom(targetMessage.getRoom(), String.format("%s a supprimé un message (ID: %s).", sender, messageId));
+                return null;
             }
+            return "Erreur : Message ID introuvable.";
         }
 
-        private void saveMessageToHistory(Message message) {
-            File historyFile = new File(HISTORY_DIR, "history_" + getCurrentDate() + ".txt");
+        private static void saveMessageToHistory(Message message) {
+            File roomDir = getRoomHistoryDir(message.getRoom());
+            File historyFile = new File(roomDir, "history_" + formatDate(message.getTimestamp()) + ".txt");
+            Lock lock = HistoryCompactor.lockFor(roomDir).readLock();
+            lock.lock();
             try (PrintWriter writer = new PrintWriter(new FileWriter(historyFile, true))) {
                 writer.println(formatMessage(message));
             } catch (IOException e) {
                 System.err.println("Erreur lors de l'enregistrement de l'historique : " + e.getMessage());
+            } finally {
+                lock.unlock();
             }
         }
 
-        private void saveModifiedMessageToHistory(Message message, String oldContent, String newContent) {
-            File modifiedHistoryFile = new File(HISTORY_DIR, "history_modified_" + getCurrentDate() + ".txt");
+        private static void saveModifiedMessageToHistory(Message message, String oldContent, String newContent) {
+            // Les modifications sont rangées avec le jour du message d'origine
+            File roomDir = getRoomHistoryDir(message.getRoom());
+            File modifiedHistoryFile = new File(roomDir, "history_modified_" + formatDate(message.getTimestamp()) + ".txt");
+            // Verrou partagé : la compaction de ce jour ne doit pas supprimer le fichier pendant l'écriture
+            Lock lock = HistoryCompactor.lockFor(roomDir).readLock();
+            lock.lock();
             try (PrintWriter writer = new PrintWriter(new FileWriter(modifiedHistoryFile, true))) {
                 writer.println(String.format("%s:%d:%s:%s:%s", message.getId(), System.currentTimeMillis(), message.getSender(), oldContent, newContent));
             } catch (IOException e) {
                 System.err.println("Erreur lors de l'enregistrement de l'historique des modifications : " + e.getMessage());
+            } finally {
+                lock.unlock();
             }
         }
 
-        private void saveDeletedMessageToHistory(Message message) {
-            File deletedHistoryFile = new File(HISTORY_DIR, "history_deleted_" + getCurrentDate() + ".txt");
-            System.out.println("Tentative d'écriture dans le fichier : " + deletedHistoryFile.getAbsolutePath());
-        
+        private static void saveDeletedMessageToHistory(Message message) {
+            File roomDir = getRoomHistoryDir(message.getRoom());
+            File deletedHistoryFile = new File(roomDir, "history_deleted_" + formatDate(message.getTimestamp()) + ".txt");
+
+            Lock lock = HistoryCompactor.lockFor(roomDir).readLock();
+            lock.lock();
             try {
-                // Vérifier si le fichier peut être écrit
-                if (!deletedHistoryFile.exists()) {
-                    System.out.println("Le fichier n'existe pas, tentative de création.");
-                    // Si le fichier n'existe pas, créez-le
-                    deletedHistoryFile.createNewFile();
-                }
-        
-                // Vérification des permissions avant l'écriture
-                if (deletedHistoryFile.canWrite()) {
-                    System.out.println("Permissions d'écriture validées.");
-                } else {
-                    System.out.println("Erreur : Pas de permission d'écriture sur le fichier.");
-                }
-        
-                // Lire les lignes existantes pour éviter les doublons
-                List<String> existingLines = java.nio.file.Files.readAllLines(deletedHistoryFile.toPath());
-                System.out.println("Lignes existantes dans le fichier : " + existingLines.size());
-        
-                for (String line : existingLines) {
-                    if (line.startsWith(message.getId() + ":")) {
-                        System.out.println("Le message avec l'ID " + message.getId() + " est déjà dans l'historique.");
-                        return; // Ne rien faire si l'entrée existe déjà
+                // Ne pas enregistrer deux fois la suppression d'un même message
+                if (deletedHistoryFile.exists()) {
+                    try (BufferedReader reader = new BufferedReader(new FileReader(deletedHistoryFile))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.startsWith(message.getId() + ":")) {
+                                return;
+                            }
+                        }
                     }
                 }
-        
-                // Écrire dans le fichier
+
                 try (PrintWriter writer = new PrintWriter(new FileWriter(deletedHistoryFile, true))) {
                     writer.println(String.format("%s:%d:%s:%s", message.getId(), System.currentTimeMillis(), message.getSender(), message.getContent()));
-                    System.out.println("Message supprimé écrit dans l'historique.");
                 }
-        
             } catch (IOException e) {
                 System.err.println("Erreur lors de l'enregistrement de l'historique des suppressions : " + e.getMessage());
-                e.printStackTrace();
+            } finally {
+                lock.unlock();
             }
         }
         
         
         
 
-        private String formatMessage(Message message) {
+        static String formatMessage(Message message) {
             return String.format("%s:%d:%s:%s:%s",
                 message.getId(),
                 message.getTimestamp(),
@@ -344,36 +1251,84 @@ public class ChatServer {
         }
 
         private void broadcast(String message) {
-            for (ClientHandler client : clientHandlers) {
-                client.out.println(message);
-            }
+            broadcastToRoom(room.name, message);
         }
 
+        /**
+         * Met le message dans la file d'envoi du client ; l'écriture sur le
+         * socket est faite par le thread d'écriture. Un client qui ne lit plus
+         * remplit sa file : au-delà de MAX_OUTBOX messages il est déconnecté
+         * plutôt que de faire grossir la mémoire du serveur, et se resynchronise
+         * en se reconnectant (SYNC).
+         */
         public void sendMessage(String message) {
-            out.println(message);
+            if (!closed && !outbox.offer(message)) {
+                closed = true;
+                metrics.slowDisconnects.increment();
+                System.err.println("Client " + clientName + " trop lent, déconnexion (" + MAX_OUTBOX + " messages en attente)");
+                closeSocket();
+            }
+        }
+
+        /** Nombre de messages en attente d'envoi vers ce client. */
+        int pendingMessages() {
+            return outbox.size();
         }
         
     }
 
+    /**
+     * Salon de discussion : seuls ses membres reçoivent ses messages, le coût
+     * d'une diffusion est donc proportionnel à la taille du salon.
+     */
+    static class ChatRoom {
+        private final String name;
+        private final Set<ClientHandler> members = new CopyOnWriteArraySet<>();
+
+        public ChatRoom(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void broadcast(String message) {
+            for (ClientHandler client : members) {
+                client.sendMessage(message);
+            }
+        }
+    }
+
     static class Message {
         private final String id;
+        private final String room;
         private final String sender;
         private String content;
         private boolean isDeleted;
         private final long timestamp;
 
-        public Message(String id, String sender, String content) {
+        public Message(String id, String room, String sender, String content) {
+            this(id, room, sender, content, System.currentTimeMillis());
+        }
+
+        public Message(String id, String room, String sender, String content, long timestamp) {
             this.id = id;
+            this.room = room;
             this.sender = sender;
             this.content = content;
             this.isDeleted = false;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
         }
 
         public String getId() {
             return id;
         }
 
+        public String getRoom() {
+            return room;
+        }
+
         public String getSender() {
             return sender;
         }
@@ -0,0 +1,167 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Tests de bout en bout de ChatServer sur le protocole texte, sans interface
+ * graphique.
+ *
+ * Lance un serveur dans ce processus, sur un port libre et avec la
+ * configuration de chat-config.txt (sans compaction ni relevé des métriques),
+ * puis joue des scénarios avec des clients simulés. Les salons de test sont
+ * supprimés du répertoire History à la fin. À lancer depuis le répertoire du
+ * serveur :
+ *   java ChatServerTest
+ * Le code de sortie est 1 si un scénario échoue.
+ */
+public class ChatServerTest {
+    private static final int TIMEOUT_MS = 5000;
+    private static final String NOT_FOUND = "Erreur : Message ID introuvable.";
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Properties config = new Properties();
+        try (InputStream input = new FileInputStream("chat-config.txt")) {
+            config.load(input);
+        }
+        config.setProperty("SERVER_PORT", String.valueOf(port));
+        config.setProperty("HISTORY_COMPACTION_INTERVAL_H", "0");
+        config.setProperty("METRICS_INTERVAL_S", "0");
+        config.setProperty("METRICS_FILE", "");
+        config.setProperty("CLUSTER_NODES", "");
+        File configFile = File.createTempFile("chat-test", ".txt");
+        configFile.deleteOnExit();
+        try (OutputStream output = new FileOutputStream(configFile)) {
+            config.store(output, null);
+        }
+
+        Thread server = new Thread(() -> ChatServer.main(new String[] {configFile.getPath()}), "embedded-server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer(port);
+
+        String room = "test-" + System.currentTimeMillis();
+        try {
+            crossRoomEditIsRefused(port, room);
+        } finally {
+            deleteTree(new File("History", room));
+        }
+
+        System.out.println(failures == 0 ? "Tous les tests sont passés." : failures + " échec(s).");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Un client du salon général ne peut ni modifier ni supprimer un message
+     * d'un autre salon, même s'il en connaît l'ID.
+     */
+    private static void crossRoomEditIsRefused(int port, String room) throws IOException {
+        String suffix = String.valueOf(System.nanoTime() % 100000);
+        try (TestClient bob = new TestClient(port, "bob" + suffix);
+             TestClient alice = new TestClient(port, "alice" + suffix)) {
+            bob.send("JOIN:" + room);
+            bob.send("confidentiel");
+            String posted = bob.expect(line -> line.startsWith(bob.name + " (ID: ") && line.endsWith(") : confidentiel"));
+            if (posted == null) {
+                throw new IOException("Le message de bob n'a pas été diffusé");
+            }
+            String id = posted.substring((bob.name + " (ID: ").length(), posted.length() - ") : confidentiel".length());
+
+            alice.send("MODIFY:" + id + ":pirate");
+            check("MODIFY d'un autre salon refusé", NOT_FOUND.equals(alice.expect(line -> line.startsWith("Erreur"))));
+            alice.send("DELETE:" + id);
+            check("DELETE d'un autre salon refusé", NOT_FOUND.equals(alice.expect(line -> line.startsWith("Erreur"))));
+
+            // La modification de bob lui-même passe après les commandes d'alice :
+            // les lignes reçues avant elle disent si celles-ci ont touché le salon
+            bob.send("MODIFY:" + id + ":corrige");
+            List<String> seen = new ArrayList<>();
+            String own = bob.expect(line -> {
+                seen.add(line);
+                return line.startsWith(bob.name + " a modifi") && line.endsWith("(ID: " + id + "):corrige");
+            });
+            check("le salon de bob n'a reçu que sa propre modification", own != null && seen.stream()
+                .noneMatch(line -> line.contains("pirate") || line.contains(alice.name)));
+        }
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "OK     " : "ÉCHEC  ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Le serveur ne répond pas sur le port " + port);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void deleteTree(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /** Client texte : envoie des lignes et lit celles du serveur avec un délai maximal. */
+    private static class TestClient implements Closeable {
+        final String name;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        TestClient(int port, String name) throws IOException {
+            this.name = name;
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(TIMEOUT_MS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            in.readLine(); // invite du nom
+            send(name);
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        /** Lit jusqu'à la première ligne acceptée par match et la retourne ; null si elle n'arrive pas à temps. */
+        String expect(Predicate<String> match) throws IOException {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (match.test(line)) {
+                        return line;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            throw new EOFException("Connexion fermée par le serveur");
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Session de chat côté client, qui survit aux coupures réseau.
+ *
+ * La session retient le salon courant et l'ID du dernier message reçu. Quand
+ * la connexion tombe, elle se reconnecte avec un délai exponentiel et envoie
+ * SYNC:<salon>:<dernier ID> avant le nom : le serveur ne renvoie alors que les
+ * messages manqués. Les messages saisis pendant la coupure sont gardés dans
+ * une file et envoyés après la reconnexion.
+ */
+public class ChatSession {
+    private static final int MAX_OFFLINE_MESSAGES = 1000;
+    private static final long INITIAL_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30000;
+    // Durée de connexion au-delà de laquelle le délai de reconnexion repart de zéro
+    private static final long STABLE_CONNECTION_MS = 10000;
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private final String name;
+    private final Consumer<String> onMessage;
+    private final Consumer<String> onStatus;
+    private final Deque<String> offlineQueue = new ArrayDeque<>();
+    private volatile ChatConnection connection;
+    private volatile boolean closed;
+    private volatile String room;
+    private volatile String lastSeenId;
+    private long backoff = INITIAL_BACKOFF_MS;
+    private long connectedAt;
+
+    /**
+     * @param onMessage reçoit chaque message du serveur
+     * @param onStatus reçoit les changements d'état de la connexion
+     */
+    public ChatSession(String host, int port, boolean binary, String name,
+                       Consumer<String> onMessage, Consumer<String> onStatus) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.name = name;
+        this.onMessage = onMessage;
+        this.onStatus = onStatus;
+    }
+
+    /** Première connexion ; lève une exception si le serveur est injoignable. */
+    public void start() throws IOException {
+        connect();
+        Thread receiver = new Thread(this::receiveLoop, "chat-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Envoie une ligne, ou la garde dans la file hors ligne si la connexion
+     * est coupée. Retourne false si la file est pleine.
+     */
+    public boolean send(String line) {
+        synchronized (offlineQueue) {
+            ChatConnection current = connection;
+            if (current != null && offlineQueue.isEmpty()) {
+                try {
+                    current.send(line);
+                    return true;
+                } catch (IOException e) {
+                    dropConnection(current);
+                }
+            }
+            if (offlineQueue.size() >= MAX_OFFLINE_MESSAGES) {
+                return false;
+            }
+            offlineQueue.addLast(line);
+            return true;
+        }
+    }
+
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    public void close() {
+        closed = true;
+        ChatConnection current = connection;
+        if (current != null) {
+            try {
+                current.send("bye");
+                current.close();
+            } catch (IOException e) {
+                // la connexion est déjà fermée
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        ChatConnection newConnection = new ChatConnection(host, port, binary);
+        try {
+            if (lastSeenId != null && room != null) {
+                newConnection.send("SYNC:" + room + ":" + lastSeenId);
+            }
+            newConnection.sendName(name);
+        } catch (IOException e) {
+            newConnection.close();
+            throw e;
+        }
+        connection = newConnection;
+        connectedAt = System.currentTimeMillis();
+    }
+
+    private void receiveLoop() {
+        while (!closed) {
+            ChatConnection current = connection;
+            try {
+                String message;
+                while ((message = current.receive()) != null) {
+                    if (!track(message)) {
+                        onMessage.accept(message);
+                    }
+                }
+            } catch (IOException e) {
+                // connexion perdue, reconnexion ci-dessous
+            }
+            dropConnection(current);
+            if (!closed) {
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * Se reconnecte avec un délai qui double à chaque tentative. Il ne repart
+     * de zéro qu'après une connexion qui a tenu STABLE_CONNECTION_MS : un
+     * serveur saturé qui accepte puis ferme aussitôt (MAX_CLIENTS) n'est pas
+     * relancé toutes les demi-secondes.
+     */
+    private void reconnect() {
+        if (System.currentTimeMillis() - connectedAt >= STABLE_CONNECTION_MS) {
+            backoff = INITIAL_BACKOFF_MS;
+        }
+        while (!closed) {
+            // Délai aléatoire de +/- 20 % pour éviter que tous les clients reviennent ensemble
+            long delay = (long) (backoff * ThreadLocalRandom.current().nextDouble(0.8, 1.2));
+            onStatus.accept("Connexion perdue, nouvelle tentative dans " + (delay / 1000.0) + " s");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            try {
+                connect();
+                flushOfflineQueue();
+                onStatus.accept("Reconnecté");
+                return;
+            } catch (IOException e) {
+                ChatConnection failed = connection;
+                if (failed != null) {
+                    dropConnection(failed);
+                }
+            }
+        }
+    }
+
+    private void flushOfflineQueue() throws IOException {
+        synchronized (offlineQueue) {
+            ChatConnection current = connection;
+            while (!offlineQueue.isEmpty()) {
+                current.send(offlineQueue.peekFirst());
+                offlineQueue.removeFirst();
+            }
+        }
+    }
+
+    private void dropConnection(ChatConnection dropped) {
+        if (connection == dropped) {
+            connection = null;
+        }
+        try {
+            dropped.close();
+        } catch (IOException e) {
+            // déjà fermée
+        }
+    }
+
+    /**
+     * Retient le salon courant et l'ID du dernier message diffusé. Retourne
+     * true pour le curseur SYNC:<salon>:<ID> envoyé par le serveur après
+     * l'historique, qui n'est pas affiché.
+     */
+    private boolean track(String message) {
+        if (message.startsWith("SYNC:")) {
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3 && MessageIdGenerator.isCompact(parts[2])) {
+                room = parts[1];
+                advanceCursor(parts[2]);
+            }
+            return true;
+        }
+        if (message.startsWith("Salon actuel : ")) {
+            room = message.substring("Salon actuel : ".length()).trim();
+        }
+        int lineStart = 0;
+        while (lineStart < message.length()) {
+            int lineEnd = message.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = message.length();
+            }
+            // Les résultats de recherche citent aussi d'anciens IDs : on garde le plus grand
+            String id = extractNewMessageId(message.substring(lineStart, lineEnd));
+            if (id != null) {
+                advanceCursor(id);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return false;
+    }
+
+    private void advanceCursor(String id) {
+        if (lastSeenId == null || MessageIdGenerator.decode(id) > MessageIdGenerator.decode(lastSeenId)) {
+            lastSeenId = id;
+        }
+    }
+
+    /** ID d'une ligne "nom (ID: xxx) : contenu", ou null. */
+    static String extractNewMessageId(String line) {
+        int start = line.indexOf(" (ID: ");
+        if (start < 0) {
+            return null;
+        }
+        int end = line.indexOf(") : ", start);
+        if (end < 0) {
+            return null;
+        }
+        String id = line.substring(start + " (ID: ".length(), end);
+        return MessageIdGenerator.isCompact(id) ? id : null;
+    }
+}
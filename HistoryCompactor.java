@@ -0,0 +1,489 @@
+import java.io.*;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compaction de l'historique des jours terminés.
+ *
+ * Chaque jour produit trois fichiers en ajout seul (base, modifications,
+ * suppressions) que loadHistory fusionne à chaque lecture. Un jour passé ne
+ * recevant plus de nouveaux messages, la compaction le fusionne une fois pour
+ * toutes dans un instantané history_snapshot_<date>.txt (ou .txt.gz) puis
+ * supprime les trois fichiers. Une ligne d'instantané :
+ *
+ *   id:horodatage:état:dernièreModification:expéditeur:contenu
+ *
+ * avec état = normal, modified ou deleted (contenu vide) et les lignes dans
+ * l'ordre du fichier de base. La lecture d'un jour passe ainsi de trois
+ * fichiers et deux tables intermédiaires à un seul parcours. Une modification
+ * ultérieure d'un message de ce jour est écrite dans un nouveau fichier de
+ * modifications, appliqué par-dessus l'instantané et repris à la compaction
+ * suivante.
+ *
+ * Un instantané non compressé a un index history_snapshot_<date>.idx : des
+ * paires (ID compact, position de la ligne) de 8 octets chacune, triées par
+ * ID, où findEntry trouve un message par dichotomie sans lire le jour entier.
+ * Un instantané compressé n'a pas d'index (une position n'y permet pas de
+ * sauter à la ligne) et se lit en un parcours.
+ */
+public class HistoryCompactor {
+    public static final String NORMAL = "normal";
+    public static final String MODIFIED = "modified";
+    public static final String DELETED = "deleted";
+
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final int INDEX_RECORD = 16;
+    // Tentatives de compaction d'un jour qui reçoit des écritures pendant la fusion
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Un verrou par répertoire de salon (voir lockFor) : compacter un salon ne
+     * bloque pas les écritures des autres.
+     */
+    private static final Map<String, ReadWriteLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final File historyDir;
+    private final boolean compress;
+    private final Predicate<File> compactsRoom;
+
+    /**
+     * @param compactsRoom choisit les répertoires de salon à compacter : en
+     *        cluster, un nœud ne compacte que les salons dont il écrit l'historique
+     */
+    public HistoryCompactor(File historyDir, boolean compress, Predicate<File> compactsRoom) {
+        this.historyDir = historyDir;
+        this.compress = compress;
+        this.compactsRoom = compactsRoom;
+    }
+
+    /** Une entrée d'instantané. */
+    public static class Entry {
+        public final String id;
+        public final long timestamp;
+        public String status;
+        public long editedAt;
+        public final String sender;
+        public String content;
+
+        Entry(String id, long timestamp, String status, long editedAt, String sender, String content) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.status = status;
+            this.editedAt = editedAt;
+            this.sender = sender;
+            this.content = content;
+        }
+
+        public boolean isDeleted() {
+            return DELETED.equals(status);
+        }
+
+        String format() {
+            return id + ":" + timestamp + ":" + status + ":" + editedAt + ":" + sender + ":" + (isDeleted() ? "" : content);
+        }
+
+        static Entry parse(String line) {
+            String[] parts = line.split(":", 6);
+            if (parts.length < 6) {
+                return null;
+            }
+            try {
+                return new Entry(parts[0], Long.parseLong(parts[1]), parts[2], Long.parseLong(parts[3]), parts[4], parts[5]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    public interface EntryHandler {
+        void handle(Entry entry);
+    }
+
+    /**
+     * Verrou des fichiers d'historique d'un salon. Les écritures dans les
+     * fichiers d'un jour le prennent en lecture (elles peuvent se faire en
+     * parallèle) ; la compaction le prend en écriture, brièvement, pour relever
+     * la taille des fichiers avant la fusion, puis pour vérifier que rien n'a
+     * été ajouté depuis et remplacer les fichiers par l'instantané.
+     */
+    static ReadWriteLock lockFor(File roomDir) {
+        return LOCKS.computeIfAbsent(roomDir.getAbsolutePath(), path -> new ReentrantReadWriteLock());
+    }
+
+    /** Instantané d'un jour (compressé ou non), ou null s'il n'a pas été compacté. */
+    public static File findSnapshot(File roomDir, String date) {
+        File plain = new File(roomDir, "history_snapshot_" + date + ".txt");
+        if (plain.exists()) {
+            return plain;
+        }
+        File compressed = new File(roomDir, "history_snapshot_" + date + ".txt.gz");
+        return compressed.exists() ? compressed : null;
+    }
+
+    public static boolean isCompressed(File snapshot) {
+        return snapshot.getName().endsWith(".gz");
+    }
+
+    private static File indexFile(File roomDir, String date) {
+        return new File(roomDir, "history_snapshot_" + date + INDEX_EXTENSION);
+    }
+
+    /**
+     * Entrée d'un message dans un instantané, ou null s'il n'y est pas. Si
+     * l'instantané a un index, seule la ligne du message est lue ; sinon (ou si
+     * l'index ne correspond plus à l'instantané) l'instantané est parcouru.
+     */
+    public static Entry findEntry(File snapshot, String id) throws IOException {
+        long compactId = MessageIdGenerator.decode(id);
+        String name = snapshot.getName();
+        File index = new File(snapshot.getParentFile(), name.substring(0, name.indexOf(".txt")) + INDEX_EXTENSION);
+        if (compactId >= 0 && !isCompressed(snapshot) && index.exists()) {
+            long offset = findIndexed(index, compactId);
+            if (offset >= 0) {
+                try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+                    file.seek(offset);
+                    Entry entry = Entry.parse(readLine(file));
+                    if (entry != null && entry.id.equals(id)) {
+                        return entry;
+                    }
+                }
+            }
+        }
+        Entry[] match = new Entry[1];
+        readSnapshot(snapshot, entry -> {
+            if (match[0] == null && entry.id.equals(id)) {
+                match[0] = entry;
+            }
+        });
+        return match[0];
+    }
+
+    /** Position de la ligne d'un ID dans l'index, ou -1. */
+    private static long findIndexed(File index, long id) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+            long low = 0;
+            long high = file.length() / INDEX_RECORD - 1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                file.seek(middle * INDEX_RECORD);
+                long candidate = file.readLong();
+                if (candidate < id) {
+                    low = middle + 1;
+                } else if (candidate > id) {
+                    high = middle - 1;
+                } else {
+                    return file.readLong();
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** Ligne à la position courante, décodée comme readSnapshot la décoderait. */
+    private static String readLine(RandomAccessFile file) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = file.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString();
+    }
+
+    /** Lecture séquentielle d'un instantané, compressé ou non. */
+    public static void readSnapshot(File snapshot, EntryHandler handler) throws IOException {
+        InputStream input = new FileInputStream(snapshot);
+        try {
+            if (isCompressed(snapshot)) {
+                input = new GZIPInputStream(input, 65536);
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(input), 65536)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = Entry.parse(line);
+                    if (entry != null) {
+                        handler.handle(entry);
+                    }
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /** Dates ayant des fichiers de base ou un instantané dans le répertoire d'un salon. */
+    public static SortedSet<String> listDates(File roomDir) {
+        SortedSet<String> dates = new TreeSet<>();
+        String[] names = roomDir.list();
+        if (names == null) {
+            return dates;
+        }
+        for (String name : names) {
+            if (name.matches("history_\\d{4}-\\d{2}-\\d{2}\\.txt")) {
+                dates.add(name.substring("history_".length(), "history_".length() + 10));
+            } else if (name.matches("history_snapshot_\\d{4}-\\d{2}-\\d{2}\\.txt(\\.gz)?")) {
+                dates.add(name.substring("history_snapshot_".length(), "history_snapshot_".length() + 10));
+            }
+        }
+        return dates;
+    }
+
+    /** Compacte tous les jours terminés des salons choisis ; retourne le nombre de jours compactés. */
+    public int compactClosedDays() {
+        String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+        List<File> roomDirs = new ArrayList<>();
+        roomDirs.add(historyDir);
+        File[] subDirs = historyDir.listFiles(File::isDirectory);
+        if (subDirs != null) {
+            roomDirs.addAll(Arrays.asList(subDirs));
+        }
+
+        int compacted = 0;
+        for (File roomDir : roomDirs) {
+            if (!compactsRoom.test(roomDir)) {
+                continue;
+            }
+            for (String date : listDates(roomDir)) {
+                if (date.compareTo(today) >= 0 || !needsCompaction(roomDir, date)) {
+                    continue;
+                }
+                try {
+                    if (compactDay(roomDir, date)) {
+                        compacted++;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Erreur lors de la compaction du " + date + " (" + roomDir + ") : " + e.getMessage());
+                }
+            }
+        }
+        return compacted;
+    }
+
+    private static boolean needsCompaction(File roomDir, String date) {
+        return new File(roomDir, "history_" + date + ".txt").exists()
+            || new File(roomDir, "history_modified_" + date + ".txt").exists()
+            || new File(roomDir, "history_deleted_" + date + ".txt").exists();
+    }
+
+    /**
+     * Fusionne un jour (instantané précédent ou fichier de base, puis
+     * suppressions, puis modifications, comme loadHistory), écrit le nouvel
+     * instantané et son index dans des fichiers temporaires, puis les renomme
+     * et supprime les fichiers fusionnés. Retourne false si le jour recevait
+     * des écritures à chaque tentative : il sera compacté au passage suivant.
+     */
+    boolean compactDay(File roomDir, String date) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (tryCompactDay(roomDir, date)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Une tentative de compaction. La fusion, la compression et l'écriture sur
+     * disque se font sans verrou, sur les lignes présentes au début ; le verrou
+     * du salon n'est pris en écriture que pour relever la taille des fichiers,
+     * puis pour les remplacer. Si l'un d'eux a grandi entre-temps, la tentative
+     * est abandonnée plutôt que de perdre les lignes ajoutées.
+     */
+    private boolean tryCompactDay(File roomDir, String date) throws IOException {
+        ReadWriteLock lock = lockFor(roomDir);
+        File baseFile = new File(roomDir, "history_" + date + ".txt");
+        File deletedFile = new File(roomDir, "history_deleted_" + date + ".txt");
+        File modifiedFile = new File(roomDir, "history_modified_" + date + ".txt");
+        File previousSnapshot;
+        long[] lengths;
+        lock.writeLock().lock();
+        try {
+            previousSnapshot = findSnapshot(roomDir, date);
+            lengths = new long[] {baseFile.length(), deletedFile.length(), modifiedFile.length()};
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        if (previousSnapshot != null) {
+            readSnapshot(previousSnapshot, entry -> entries.put(entry.id, entry));
+        }
+        forEachLine(baseFile, lengths[0], line -> {
+            String[] parts = line.split(":", 5);
+            if (parts.length >= 5) {
+                boolean deleted = DELETED.equals(parts[3]);
+                long timestamp = parseLong(parts[1]);
+                entries.put(parts[0], new Entry(parts[0], timestamp, deleted ? DELETED : NORMAL,
+                    timestamp, parts[2], deleted ? "" : parts[4]));
+            }
+        });
+        forEachLine(deletedFile, lengths[1], line -> {
+            String[] parts = line.split(":", 4);
+            Entry entry = parts.length >= 2 ? entries.get(parts[0]) : null;
+            if (entry != null) {
+                entry.status = DELETED;
+                entry.content = "";
+                entry.editedAt = Math.max(entry.editedAt, parseLong(parts[1]));
+            }
+        });
+        forEachLine(modifiedFile, lengths[2], line -> {
+            String[] parts = line.split(":", 5);
+            Entry entry = parts.length >= 5 ? entries.get(parts[0]) : null;
+            if (entry != null && !entry.isDeleted()) {
+                entry.status = MODIFIED;
+                entry.content = parts[4];
+                entry.editedAt = Math.max(entry.editedAt, parseLong(parts[1]));
+            }
+        });
+
+        String snapshotName = "history_snapshot_" + date + (compress ? ".txt.gz" : ".txt");
+        File temporary = new File(roomDir, snapshotName + ".tmp");
+        File index = indexFile(roomDir, date);
+        File indexTemporary = new File(roomDir, index.getName() + ".tmp");
+        List<long[]> positions = new ArrayList<>();
+        try (FileOutputStream fileOutput = new FileOutputStream(temporary)) {
+            OutputStream output = compress ? new GZIPOutputStream(fileOutput, 65536) : new BufferedOutputStream(fileOutput, 65536);
+            long offset = 0;
+            for (Entry entry : entries.values()) {
+                byte[] line = (entry.format() + System.lineSeparator()).getBytes();
+                long id = MessageIdGenerator.decode(entry.id);
+                if (id >= 0) {
+                    positions.add(new long[] {id, offset});
+                }
+                output.write(line);
+                offset += line.length;
+            }
+            output.flush();
+            if (output instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) output).finish();
+            }
+            fileOutput.getFD().sync();
+        }
+        if (!compress) {
+            positions.sort(Comparator.comparingLong(position -> position[0]));
+            try (FileOutputStream fileOutput = new FileOutputStream(indexTemporary)) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, 65536));
+                for (long[] position : positions) {
+                    output.writeLong(position[0]);
+                    output.writeLong(position[1]);
+                }
+                output.flush();
+                fileOutput.getFD().sync();
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (baseFile.length() != lengths[0] || deletedFile.length() != lengths[1] || modifiedFile.length() != lengths[2]) {
+                temporary.delete();
+                indexTemporary.delete();
+                return false;
+            }
+            Files.move(temporary.toPath(), new File(roomDir, snapshotName).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (compress) {
+                index.delete();
+            } else {
+                Files.move(indexTemporary.toPath(), index.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            if (previousSnapshot != null && !previousSnapshot.getName().equals(snapshotName)) {
+                previousSnapshot.delete();
+            }
+            baseFile.delete();
+            deletedFile.delete();
+            modifiedFile.delete();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private interface LineHandler {
+        void handle(String line);
+    }
+
+    /**
+     * Parcourt les lignes des length premiers octets d'un fichier, en une lecture
+     * séquentielle à travers un tampon borné : ce qui a été ajouté au fichier après
+     * le relevé de sa taille n'est pas lu.
+     */
+    private static void forEachLine(File file, long length, LineHandler handler) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        InputStream input = new LimitedInputStream(new BufferedInputStream(new FileInputStream(file), 65536), length);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input), 65536)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handler.handle(line);
+            }
+        }
+    }
+
+    /** Flux qui s'arrête après un nombre donné d'octets. */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Index inversé en mémoire sur l'historique du chat.
+ *
+ * Il est construit au démarrage en lisant les fichiers de History/ ligne par
+ * ligne (sans charger un fichier entier), puis tenu à jour à chaque nouveau
+ * message, modification ou suppression. Les résultats sont classés par score
+ * TF-IDF puis du plus récent au plus ancien, et découpés en pages.
+ */
+public class HistorySearchIndex {
+    public static final int PAGE_SIZE = 10;
+
+    private final Map<String, Document> documents = new HashMap<>(); // ID -> message indexé
+    private final Map<String, Map<String, Integer>> postings = new HashMap<>(); // terme -> (ID -> occurrences)
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean ready;
+
+    static class Document {
+        final String id;
+        final String room;
+        final String sender;
+        final long timestamp;
+        String content;
+
+        Document(String id, String room, String sender, long timestamp, String content) {
+            this.id = id;
+            this.room = room;
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.content = content;
+        }
+    }
+
+    public static class Page {
+        public final int page;
+        public final int totalPages;
+        public final int totalHits;
+        public final List<Document> hits;
+
+        Page(int page, int totalPages, int totalHits, List<Document> hits) {
+            this.page = page;
+            this.totalPages = totalPages;
+            this.totalHits = totalHits;
+            this.hits = hits;
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Construit l'index à partir du répertoire d'historique : les fichiers du
+     * salon par défaut sont à la racine, ceux des autres salons dans un
+     * sous-répertoire portant leur nom. Seuls les salons acceptés par
+     * indexesRoom sont indexés : en cluster, ceux dont ce nœud est propriétaire,
+     * les seuls qu'il tient à jour et sur lesquels il répond à SEARCH.
+     */
+    public void build(File historyDir, String defaultRoom, Predicate<String> indexesRoom) {
+        long start = System.currentTimeMillis();
+        if (indexesRoom.test(defaultRoom)) {
+            indexRoomDirectory(historyDir, defaultRoom);
+        }
+        File[] roomDirs = historyDir.listFiles(File::isDirectory);
+        if (roomDirs != null) {
+            for (File roomDir : roomDirs) {
+                if (indexesRoom.test(roomDir.getName())) {
+                    indexRoomDirectory(roomDir, roomDir.getName());
+                }
+            }
+        }
+        ready = true;
+        System.out.println("Index de recherche construit : " + size() + " messages en "
+            + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void indexRoomDirectory(File roomDir, String room) {
+        for (String date : HistoryCompactor.listDates(roomDir)) {
+            // Verrou partagé du salon, comme loadHistory : la compaction ne remplace pas le jour pendant la lecture
+            Lock dayLock = HistoryCompactor.lockFor(roomDir).readLock();
+            dayLock.lock();
+            try {
+                // Même ordre que loadHistory : base (ou instantané), puis suppressions, puis modifications
+                File snapshot = HistoryCompactor.findSnapshot(roomDir, date);
+                if (snapshot != null) {
+                    try {
+                        HistoryCompactor.readSnapshot(snapshot, entry -> {
+                            if (!entry.isDeleted()) {
+                                add(entry.id, room, entry.sender, entry.timestamp, entry.content);
+                            }
+                        });
+                    } catch (IOException e) {
+                        System.err.println("Erreur lors de l'indexation de " + snapshot.getName() + " : " + e.getMessage());
+                    }
+                } else {
+                    streamLines(new File(roomDir, "history_" + date + ".txt"), line -> {
+                        String[] parts = line.split(":", 5);
+                        if (parts.length >= 5 && !"deleted".equals(parts[3])) {
+                            add(parts[0], room, parts[2], parseLong(parts[1]), parts[4]);
+                        }
+                    });
+                }
+                streamLines(new File(roomDir, "history_deleted_" + date + ".txt"), line -> {
+                    String[] parts = line.split(":", 2);
+                    if (parts.length >= 2) {
+                        remove(parts[0]);
+                    }
+                });
+                streamLines(new File(roomDir, "history_modified_" + date + ".txt"), line -> {
+                    String[] parts = line.split(":", 5);
+                    if (parts.length >= 5) {
+                        update(parts[0], parts[4]);
+                    }
+                });
+            } finally {
+                dayLock.unlock();
+            }
+        }
+    }
+
+    private interface LineHandler {
+        void handle(String line);
+    }
+
+    private static void streamLines(File file, LineHandler handler) {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handler.handle(line);
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur lors de l'indexation de " + file.getName() + " : " + e.getMessage());
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public void add(String id, String room, String sender, long timestamp, String content) {
+        lock.writeLock().lock();
+        try {
+            Document previous = documents.put(id, new Document(id, room, sender, timestamp, content));
+            if (previous != null) {
+                unindex(id, previous.content);
+            }
+            index(id, content);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void update(String id, String newContent) {
+        lock.writeLock().lock();
+        try {
+            Document document = documents.get(id);
+            if (document != null) {
+                unindex(id, document.content);
+                document.content = newContent;
+                index(id, newContent);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            Document document = documents.remove(id);
+            if (document != null) {
+                unindex(id, document.content);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recherche les messages d'un salon contenant au moins un terme de la
+     * requête. page commence à 1.
+     */
+    public Page search(String room, String query, int page) {
+        List<String> terms = tokenize(query);
+        lock.readLock().lock();
+        try {
+            Map<String, Double> scores = new HashMap<>();
+            int totalDocuments = Math.max(1, documents.size());
+            for (String term : new LinkedHashSet<>(terms)) {
+                Map<String, Integer> termPostings = postings.get(term);
+                if (termPostings == null) {
+                    continue;
+                }
+                double idf = Math.log(1.0 + (double) totalDocuments / termPostings.size());
+                for (Map.Entry<String, Integer> posting : termPostings.entrySet()) {
+                    Document document = documents.get(posting.getKey());
+                    if (document != null && document.room.equals(room)) {
+                        scores.merge(posting.getKey(), (1.0 + Math.log(posting.getValue())) * idf, Double::sum);
+                    }
+                }
+            }
+
+            // Seuls les page * PAGE_SIZE meilleurs résultats sont triés (tas borné)
+            int totalHits = scores.size();
+            int totalPages = Math.max(1, (totalHits + PAGE_SIZE - 1) / PAGE_SIZE);
+            int current = Math.min(Math.max(1, page), totalPages);
+            int limit = current * PAGE_SIZE;
+            Comparator<Document> ranking = (a, b) -> {
+                int byScore = Double.compare(scores.get(b.id), scores.get(a.id));
+                return byScore != 0 ? byScore : Long.compare(b.timestamp, a.timestamp);
+            };
+            PriorityQueue<Document> best = new PriorityQueue<>(limit + 1, ranking.reversed());
+            for (String id : scores.keySet()) {
+                best.add(documents.get(id));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            List<Document> ranked = new ArrayList<>(best);
+            ranked.sort(ranking);
+
+            int from = (current - 1) * PAGE_SIZE;
+            List<Document> hits = new ArrayList<>(ranked.subList(Math.min(from, ranked.size()), ranked.size()));
+            return new Page(current, totalPages, totalHits, hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void index(String id, String content) {
+        for (String term : tokenize(content)) {
+            postings.computeIfAbsent(term, key -> new HashMap<>()).merge(id, 1, Integer::sum);
+        }
+    }
+
+    private void unindex(String id, String content) {
+        for (String term : new HashSet<>(tokenize(content))) {
+            Map<String, Integer> termPostings = postings.get(term);
+            if (termPostings != null) {
+                termPostings.remove(id);
+                if (termPostings.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    /** Découpe un texte en termes : lettres et chiffres, en minuscules, au moins 2 caractères. */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                current.append(Character.toLowerCase(c));
+            } else if (current.length() > 0) {
+                if (current.length() >= 2) {
+                    terms.add(current.toString());
+                }
+                current.setLength(0);
+            }
+        }
+        return terms;
+    }
+}
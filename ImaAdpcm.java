@@ -0,0 +1,263 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.sound.sampled.*;
+
+/**
+ * IMA ADPCM codec for 16-bit PCM, in the block layout of WAV format 0x11.
+ *
+ * Each sample becomes a 4-bit code, so audio shrinks to about a quarter of its PCM
+ * size. Audio is cut into blocks of BLOCK_ALIGN bytes per channel; every block starts
+ * with the exact first sample and step index of each channel, so it decodes on its
+ * own. That lets the server store and relay blocks as they arrive, and a live
+ * listener that misses a frame loses only that audio.
+ */
+public final class ImaAdpcm {
+    /** Bytes per block and channel: 505 samples, about 11 ms at 44.1 kHz. */
+    public static final int BLOCK_ALIGN = 256;
+    public static final int WAVE_FORMAT_IMA_ADPCM = 0x11;
+
+    private static final int[] INDEX_TABLE = {
+        -1, -1, -1, -1, 2, 4, 6, 8,
+        -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+        50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+        253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+        1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+        3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+        12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private ImaAdpcm() {
+    }
+
+    /** Samples per channel held by one block of blockAlign bytes. */
+    public static int samplesPerBlock(int blockAlign, int channels) {
+        return (blockAlign - 4 * channels) * 8 / (4 * channels) + 1;
+    }
+
+    /**
+     * Encodes a stream of 16-bit PCM into whole blocks. Input can be cut anywhere,
+     * even inside a sample; what does not fill a block yet is kept for the next call.
+     */
+    public static class Encoder {
+        private final int channels;
+        private final boolean bigEndian;
+        private final int blockAlign;
+        private final int samplesPerBlock;
+        private final short[] samples; // one block, interleaved
+        private final int[] predictor;
+        private final int[] index;
+        private int sampleCount;
+        private int pendingByte = -1;
+
+        public Encoder(int channels, boolean bigEndian) {
+            this.channels = channels;
+            this.bigEndian = bigEndian;
+            this.blockAlign = BLOCK_ALIGN * channels;
+            this.samplesPerBlock = samplesPerBlock(blockAlign, channels);
+            this.samples = new short[samplesPerBlock * channels];
+            this.predictor = new int[channels];
+            this.index = new int[channels];
+        }
+
+        public int getBlockAlign() {
+            return blockAlign;
+        }
+
+        /** Encodes pcm and returns the blocks completed by it, possibly none. */
+        public byte[] encode(byte[] pcm, int offset, int length) {
+            int available = (length + (pendingByte >= 0 ? 1 : 0)) / 2 + sampleCount;
+            ByteArrayOutputStream blocks = new ByteArrayOutputStream(available / samples.length * blockAlign);
+            byte[] block = new byte[blockAlign];
+            int i = offset;
+            int end = offset + length;
+            while (i < end) {
+                int first;
+                if (pendingByte >= 0) {
+                    first = pendingByte;
+                    pendingByte = -1;
+                } else if (i + 1 < end) {
+                    first = pcm[i++] & 0xFF;
+                } else {
+                    pendingByte = pcm[i++] & 0xFF;
+                    break;
+                }
+                int second = pcm[i++] & 0xFF;
+                samples[sampleCount++] = (short) (bigEndian ? first << 8 | second : second << 8 | first);
+                if (sampleCount == samples.length) {
+                    encodeBlock(block);
+                    blocks.write(block, 0, block.length);
+                    sampleCount = 0;
+                }
+            }
+            return blocks.toByteArray();
+        }
+
+        /** Pads the last, partial block with silence; returns it, or nothing if empty. */
+        public byte[] finish() {
+            if (sampleCount == 0) {
+                return new byte[0];
+            }
+            while (sampleCount < samples.length) {
+                samples[sampleCount++] = 0;
+            }
+            byte[] block = new byte[blockAlign];
+            encodeBlock(block);
+            sampleCount = 0;
+            return block;
+        }
+
+        private void encodeBlock(byte[] block) {
+            for (int c = 0; c < channels; c++) {
+                predictor[c] = samples[c];
+                block[4 * c] = (byte) predictor[c];
+                block[4 * c + 1] = (byte) (predictor[c] >> 8);
+                block[4 * c + 2] = (byte) index[c];
+                block[4 * c + 3] = 0;
+            }
+            // After the headers, each channel in turn gets 4 bytes holding its next 8 samples
+            int out = 4 * channels;
+            for (int s = 1; s < samplesPerBlock; s += 8) {
+                for (int c = 0; c < channels; c++) {
+                    for (int k = 0; k < 8; k += 2) {
+                        int low = encodeSample(c, samples[(s + k) * channels + c]);
+                        int high = encodeSample(c, samples[(s + k + 1) * channels + c]);
+                        block[out++] = (byte) (high << 4 | low);
+                    }
+                }
+            }
+        }
+
+        private int encodeSample(int c, int sample) {
+            int step = STEP_TABLE[index[c]];
+            int diff = sample - predictor[c];
+            int code = 0;
+            if (diff < 0) {
+                code = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                code |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 1;
+                delta += step;
+            }
+            predictor[c] = clamp(predictor[c] + ((code & 8) != 0 ? -delta : delta), -32768, 32767);
+            index[c] = clamp(index[c] + INDEX_TABLE[code], 0, 88);
+            return code;
+        }
+    }
+
+    /**
+     * Decodes the whole blocks of data into 16-bit little-endian PCM; a trailing
+     * partial block is ignored.
+     */
+    public static byte[] decode(byte[] data, int offset, int length, int channels, int blockAlign) {
+        byte[] pcm = new byte[length / blockAlign * samplesPerBlock(blockAlign, channels) * channels * 2];
+        decode(data, offset, length, channels, blockAlign, pcm, 0);
+        return pcm;
+    }
+
+    /**
+     * Same as decode() into a buffer supplied by the caller, for decoding block after
+     * block without allocating; returns the number of PCM bytes written.
+     */
+    public static int decode(byte[] data, int offset, int length, int channels, int blockAlign, byte[] pcm, int pcmOffset) {
+        int samplesPerBlock = samplesPerBlock(blockAlign, channels);
+        int blocks = length / blockAlign;
+        for (int b = 0; b < blocks; b++) {
+            int in = offset + b * blockAlign;
+            int base = pcmOffset + b * samplesPerBlock * channels * 2;
+            for (int c = 0; c < channels; c++) {
+                int predictor = (short) ((data[in + 4 * c] & 0xFF) | data[in + 4 * c + 1] << 8);
+                int index = clamp(data[in + 4 * c + 2], 0, 88);
+                putSample(pcm, base + 2 * c, predictor);
+                // Channels are interleaved in runs of 8 samples (4 bytes) after the headers
+                int codeByte = in + 4 * channels + 4 * c;
+                for (int s = 1; s < samplesPerBlock; s += 8, codeByte += 4 * channels) {
+                    for (int k = 0; k < 8; k += 2) {
+                        int codes = data[codeByte + k / 2];
+                        for (int half = 0; half < 2; half++) {
+                            int code = (codes >> (4 * half)) & 0x0F;
+                            int step = STEP_TABLE[index];
+                            int delta = step >> 3;
+                            if ((code & 4) != 0) {
+                                delta += step;
+                            }
+                            if ((code & 2) != 0) {
+                                delta += step >> 1;
+                            }
+                            if ((code & 1) != 0) {
+                                delta += step >> 2;
+                            }
+                            predictor = clamp(predictor + ((code & 8) != 0 ? -delta : delta), -32768, 32767);
+                            index = clamp(index + INDEX_TABLE[code], 0, 88);
+                            putSample(pcm, base + ((s + k + half) * channels + c) * 2, predictor);
+                        }
+                    }
+                }
+            }
+        }
+        return blocks * samplesPerBlock * channels * 2;
+    }
+
+    /**
+     * Opens a WAV file for playback: PCM as is, IMA ADPCM decoded to 16-bit PCM
+     * (Java Sound cannot read the latter).
+     */
+    public static AudioInputStream openWav(byte[] wav) throws IOException, UnsupportedAudioFileException {
+        ByteBuffer buffer = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        int position = 12;
+        int formatTag = -1;
+        int channels = 0;
+        int sampleRate = 0;
+        int blockAlign = 0;
+        while (position + 8 <= wav.length) {
+            String id = new String(wav, position, 4, "US-ASCII");
+            int size = buffer.getInt(position + 4);
+            if (id.equals("fmt ")) {
+                formatTag = buffer.getShort(position + 8) & 0xFFFF;
+                channels = buffer.getShort(position + 10);
+                sampleRate = buffer.getInt(position + 12);
+                blockAlign = buffer.getShort(position + 20) & 0xFFFF;
+            } else if (id.equals("data")) {
+                if (formatTag != WAVE_FORMAT_IMA_ADPCM) {
+                    break;
+                }
+                int length = Math.min(size, wav.length - position - 8);
+                byte[] pcm = decode(wav, position + 8, length, channels, blockAlign);
+                AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+                return new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / format.getFrameSize());
+            }
+            if (size < 0) {
+                break;
+            }
+            position += 8 + size + (size & 1);
+        }
+        return AudioSystem.getAudioInputStream(new ByteArrayInputStream(wav));
+    }
+
+    private static void putSample(byte[] pcm, int offset, int sample) {
+        pcm[offset] = (byte) sample;
+        pcm[offset + 1] = (byte) (sample >> 8);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+}
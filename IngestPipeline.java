@@ -0,0 +1,288 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Staged processing of the audio that AudioServer receives into WAV files.
+ *
+ * A connection thread only reads from its socket. Each buffer it fills goes to the
+ * cpu stage (silence trimming, sample conversion and waveform summary, see
+ * WavWriter.convert) and then to the io stage (the file write, WavWriter.persist).
+ * Each stage is a fixed pool of threads shared by all uploads and streams. The
+ * buffers of one recording go through a stage one at a time and in order, while
+ * different recordings, and the two stages of one recording, run in parallel.
+ *
+ * Backpressure: a recording owns buffersPerJob buffers, and its connection waits for
+ * one to come back from the io stage before reading more. A slow disk or a busy cpu
+ * stage thus slows the sender down through TCP instead of piling audio up in memory.
+ * A recording has at most one task in each stage's queue, the others wait their turn
+ * in its own queue of at most buffersPerJob tasks, so memory stays bounded by the
+ * number of connections.
+ */
+public class IngestPipeline {
+    private final Stage cpu;
+    private final Stage io;
+    private final int buffersPerJob;
+    private final int bufferSize;
+    private final AtomicInteger jobs = new AtomicInteger();
+    private final LongAdder bytes = new LongAdder();
+    // time connections waited for a free buffer
+    private final LatencyHistogram backpressure = new LatencyHistogram();
+
+    public IngestPipeline(int cpuThreads, int ioThreads, int buffersPerJob, int bufferSize) {
+        this.cpu = new Stage("cpu", cpuThreads);
+        this.io = new Stage("io", ioThreads);
+        this.buffersPerJob = buffersPerJob;
+        this.bufferSize = bufferSize;
+    }
+
+    /** Starts feeding a recording to writer; close the job before the writer. */
+    public Job start(WavWriter writer) {
+        return new Job(writer);
+    }
+
+    /** One line per stage, "name key=value ...", for the STATS command. */
+    public List<String> stats() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("ingest recordings=%d buffers=%d bytes=%d waits=%d wait(p50/p99/max)=%s",
+            jobs.get(), buffersPerJob, bytes.sum(), backpressure.getCount(), millis(backpressure)));
+        lines.add(cpu.stats());
+        lines.add(io.stats());
+        return lines;
+    }
+
+    private static String millis(LatencyHistogram histogram) {
+        return String.format("%.2f/%.2f/%.2fms", histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+            histogram.getMax() / 1e6);
+    }
+
+    /** A buffer for the connection to fill: length bytes of data go to the stages. */
+    public static class Buffer {
+        public byte[] data;
+        int length;
+        ByteBuffer converted;
+
+        Buffer(int size) {
+            data = new byte[size];
+            converted = ByteBuffer.allocate(size + 1);
+        }
+    }
+
+    /** One recording going through the stages. */
+    public class Job implements Closeable {
+        private final WavWriter writer;
+        private final BlockingQueue<Buffer> free;
+        private final Strand cpuStrand = new Strand(cpu);
+        private final Strand ioStrand = new Strand(io);
+        private volatile Exception error; // first failure of a stage; later buffers are dropped
+        private int inFlight; // guarded by this
+        private boolean closed;
+
+        private Job(WavWriter writer) {
+            this.writer = writer;
+            this.free = new ArrayBlockingQueue<>(buffersPerJob);
+            for (int i = 0; i < buffersPerJob; i++) {
+                free.add(new Buffer(bufferSize));
+            }
+            jobs.incrementAndGet();
+        }
+
+        /**
+         * A free buffer of at least capacity bytes, waiting for one to be written if
+         * they are all in use. Throws the failure of an earlier buffer, if any.
+         */
+        public Buffer take(int capacity) throws IOException {
+            checkError();
+            Buffer buffer = free.poll();
+            if (buffer == null) {
+                long start = System.nanoTime();
+                try {
+                    buffer = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the disk");
+                }
+                backpressure.record(System.nanoTime() - start);
+                checkError();
+            }
+            if (buffer.data.length < capacity) {
+                buffer.data = new byte[capacity];
+            }
+            return buffer;
+        }
+
+        /** Hands the first length bytes of a buffer from take() to the stages. */
+        public void submit(Buffer buffer, int length) {
+            buffer.length = length;
+            bytes.add(length);
+            process(buffer, false);
+        }
+
+        /** Ends the audio (see WavWriter.finish) and waits until all of it is written. */
+        public void finish() throws IOException {
+            process(take(0), true);
+            await();
+            checkError();
+        }
+
+        /** Waits for the buffers still in the stages; the writer may be closed afterwards. */
+        @Override
+        public void close() {
+            await();
+            synchronized (this) {
+                if (!closed) {
+                    closed = true;
+                    jobs.decrementAndGet();
+                }
+            }
+        }
+
+        private void process(Buffer buffer, boolean end) {
+            synchronized (this) {
+                inFlight++;
+            }
+            cpuStrand.execute(() -> {
+                if (error == null) {
+                    try {
+                        buffer.converted = end ? writer.convertEnd(buffer.converted)
+                            : writer.convert(buffer.data, 0, buffer.length, buffer.converted);
+                    } catch (IOException | RuntimeException e) {
+                        fail(e);
+                    }
+                }
+                ioStrand.execute(() -> {
+                    if (error == null) {
+                        try {
+                            writer.persist(buffer.converted);
+                        } catch (IOException | RuntimeException e) {
+                            fail(e);
+                        }
+                    }
+                    free.add(buffer);
+                    synchronized (this) {
+                        if (--inFlight == 0) {
+                            notifyAll();
+                        }
+                    }
+                });
+            });
+        }
+
+        private void fail(Exception e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        private void checkError() throws IOException {
+            Exception failure = error;
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+        }
+
+        private synchronized void await() {
+            boolean interrupted = false;
+            // Not interruptible: the stages must be done with the writer before it is closed
+            while (inFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A fixed pool of threads with its metrics. */
+    private static class Stage {
+        private final String name;
+        private final int threads;
+        private final ThreadPoolExecutor pool;
+        private final long started = System.nanoTime();
+        private final LongAdder busyNanos = new LongAdder();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+
+        Stage(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+            AtomicInteger count = new AtomicInteger();
+            this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task -> {
+                    Thread thread = new Thread(task, "ingest-" + name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        }
+
+        void execute(Runnable task) {
+            long queued = System.nanoTime();
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                queueWait.record(start - queued);
+                try {
+                    task.run();
+                } finally {
+                    long busy = System.nanoTime() - start;
+                    service.record(busy);
+                    busyNanos.add(busy);
+                }
+            });
+        }
+
+        String stats() {
+            double capacity = (double) (System.nanoTime() - started) * threads;
+            return String.format("%s threads=%d active=%d queued=%d tasks=%d busy=%.1f%% wait(p50/p99/max)=%s"
+                    + " service(p50/p99/max)=%s", name, threads, pool.getActiveCount(), pool.getQueue().size(),
+                service.getCount(), 100 * busyNanos.sum() / capacity, millis(queueWait), millis(service));
+        }
+    }
+
+    /** Runs tasks on a stage one at a time, in the order they were given. */
+    private static class Strand {
+        private final Stage stage;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        Strand(Stage stage) {
+            this.stage = stage;
+        }
+
+        synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (!running) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            Runnable task = tasks.poll();
+            running = task != null;
+            if (running) {
+                stage.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Properties;
+import javax.sound.sampled.*;
+
+/**
+ * Plays another user's live stream as it is relayed by AudioServer (LISTEN command).
+ *
+ * Frames go through a jitter buffer: playback starts once JITTER_MS of audio is
+ * queued, and starts over after an underrun. When more than three times that is
+ * queued the oldest frames are dropped so latency does not creep up. The latency of
+ * each frame, from capture on the speaker to hand-off to the sound card, is recorded.
+ *
+ * Usage: java LiveListener you user           plays user's stream on the speakers, logged
+ *                                             in as you (user must allow you, see LIVE_LISTENERS)
+ *        java LiveListener --test [seconds]   synthetic speaker and headless listener,
+ *                                             no sound hardware needed
+ */
+public class LiveListener implements Closeable {
+    private static final long LATENCY_TARGET_MS = 150;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final AudioFormat format;
+    private final int adpcmBlockAlign; // 0 when the stream is PCM
+    private final int jitterBytes;
+    private byte[] frameBuffer = new byte[0]; // reused by the receiver thread
+    private final ArrayDeque<Frame> buffer = new ArrayDeque<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private int bufferedBytes;
+    private boolean ended;
+    private long serverDropped;
+    private long lateDropped;
+    private long lostFrames;
+    private long underruns;
+
+    private static class Frame {
+        final long captureMillis;
+        final byte[] data;
+
+        Frame(long captureMillis, byte[] data) {
+            this.captureMillis = captureMillis;
+            this.data = data;
+        }
+    }
+
+    /** Listens to user's live stream, logged in as listener. */
+    public LiveListener(String host, int port, String listener, String user, int jitterMs) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        AudioProtocol.writeLine(out, AudioProtocol.USER + " " + listener);
+        AudioProtocol.writeLine(out, AudioProtocol.LISTEN + " " + user);
+        out.flush();
+        String response = AudioProtocol.readLine(in);
+        if ("OK".equals(response)) {
+            response = AudioProtocol.readLine(in); // answer to LISTEN
+        }
+        if (response == null || !response.startsWith("OK")) {
+            socket.close();
+            throw new IOException(response == null ? "Connection closed by server" : response);
+        }
+        AudioProtocol.RecordingHeader header = AudioProtocol.RecordingHeader.parse(response,
+            new AudioProtocol.RecordingHeader(-1, 44100f, 16, 1, true, true, user));
+        if ("adpcm".equals(header.format)) {
+            // Frames are whole ADPCM blocks, decoded as they arrive
+            adpcmBlockAlign = ImaAdpcm.BLOCK_ALIGN * header.channels;
+            format = new AudioFormat(header.sampleRate, 16, header.channels, true, false);
+        } else {
+            adpcmBlockAlign = 0;
+            format = new AudioFormat(header.sampleRate, header.bits, header.channels, header.signed, header.bigEndian);
+        }
+        jitterBytes = (int) (format.getFrameRate() * format.getFrameSize() * jitterMs / 1000);
+        Thread receiver = new Thread(this::receive, "live-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    private void receive() {
+        try {
+            DataInputStream data = new DataInputStream(in);
+            long expected = -1;
+            String line;
+            while ((line = AudioProtocol.readLine(in)) != null) {
+                String[] fields = line.split(" ");
+                if (fields[0].equals(AudioProtocol.END)) {
+                    synchronized (buffer) {
+                        serverDropped = Long.parseLong(fields[1]);
+                    }
+                    break;
+                }
+                long sequence = Long.parseLong(fields[1]);
+                int length = Integer.parseInt(fields[3]);
+                if (length < 0 || length > AudioProtocol.MAX_CHUNK_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (frameBuffer.length < length) {
+                    frameBuffer = new byte[length];
+                }
+                data.readFully(frameBuffer, 0, length);
+                // The jitter buffer keeps each frame: it gets a copy of exactly its size
+                byte[] audio = adpcmBlockAlign > 0
+                    ? ImaAdpcm.decode(frameBuffer, 0, length, format.getChannels(), adpcmBlockAlign)
+                    : Arrays.copyOf(frameBuffer, length);
+                synchronized (buffer) {
+                    if (expected >= 0 && sequence > expected) {
+                        lostFrames += sequence - expected;
+                    }
+                    expected = sequence + 1;
+                    buffer.addLast(new Frame(Long.parseLong(fields[2]), audio));
+                    bufferedBytes += audio.length;
+                    while (bufferedBytes > 3 * jitterBytes && buffer.size() > 1) {
+                        bufferedBytes -= buffer.removeFirst().data.length;
+                        lateDropped++;
+                    }
+                    buffer.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            synchronized (buffer) {
+                ended = true;
+                buffer.notifyAll();
+            }
+        }
+    }
+
+    /** Next frame to play, waiting for the jitter buffer to fill; null when the stream is over. */
+    private Frame nextFrame(boolean[] playing) throws InterruptedException {
+        synchronized (buffer) {
+            if (buffer.isEmpty() && playing[0] && !ended) {
+                underruns++;
+                playing[0] = false;
+            }
+            while (!ended && (buffer.isEmpty() || (!playing[0] && bufferedBytes < jitterBytes))) {
+                buffer.wait();
+            }
+            if (buffer.isEmpty()) {
+                return null;
+            }
+            playing[0] = true;
+            Frame frame = buffer.removeFirst();
+            bufferedBytes -= frame.data.length;
+            return frame;
+        }
+    }
+
+    /** Opens and starts the speakers in the stream's format. */
+    public SourceDataLine openSpeakers() throws LineUnavailableException {
+        SourceDataLine line = AudioSystem.getSourceDataLine(format);
+        // A sound card buffer the size of the jitter buffer keeps playback latency low
+        line.open(format, Math.max(jitterBytes, 2 * format.getFrameSize()));
+        line.start();
+        return line;
+    }
+
+    /**
+     * Plays the stream until it ends. With a null line nothing is played: frames are
+     * consumed in real time, as a sound card would, which is enough to measure latency.
+     */
+    public void play(SourceDataLine line) throws InterruptedException {
+        boolean[] playing = {false};
+        double bytesPerMilli = format.getFrameRate() * format.getFrameSize() / 1000.0;
+        long clock = 0;
+        Frame frame;
+        while ((frame = nextFrame(playing)) != null) {
+            latency.record((System.currentTimeMillis() - frame.captureMillis) * 1_000_000L);
+            if (line != null) {
+                line.write(frame.data, 0, frame.data.length);
+                continue;
+            }
+            long now = System.nanoTime();
+            if (clock < now) {
+                clock = now;
+            }
+            clock += (long) (frame.data.length / bytesPerMilli * 1_000_000L);
+            Thread.sleep(Math.max(0, (clock - System.nanoTime()) / 1_000_000L));
+        }
+        if (line != null) {
+            line.drain();
+        }
+    }
+
+    public String report() {
+        synchronized (buffer) {
+            return "latency " + latency.summaryMillis()
+                + "\nframes dropped by server: " + serverDropped + ", lost: " + lostFrames
+                + ", dropped late: " + lateDropped + ", underruns: " + underruns
+                + "\np99 " + (latency.getPercentile(99) <= LATENCY_TARGET_MS * 1_000_000L ? "within" : "above")
+                + " the " + LATENCY_TARGET_MS + " ms target";
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties config = new Properties();
+        try (InputStream input = new FileInputStream("audio-config.txt")) {
+            config.load(input);
+        }
+        String host = config.getProperty("SERVER_ADDRESS");
+        int port = Integer.parseInt(config.getProperty("PORT"));
+        int jitterMs = Integer.parseInt(config.getProperty("LIVE_JITTER_MS", "60"));
+
+        if (args.length > 0 && args[0].equals("--test")) {
+            int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+            selfTest(host, port, jitterMs, config.getProperty("AUDIO_CODEC", "wav"), seconds);
+            return;
+        }
+        if (args.length != 2) {
+            System.out.println("Usage: java LiveListener <you> <user> | java LiveListener --test [seconds]");
+            return;
+        }
+        try (LiveListener listener = new LiveListener(host, port, args[0], args[1], jitterMs)) {
+            SourceDataLine line = listener.openSpeakers();
+            System.out.println("Listening to " + args[1] + " (Ctrl+C to stop)");
+            listener.play(line);
+            line.close();
+            System.out.println(listener.report());
+        }
+    }
+
+    /** Streams a synthetic 440 Hz tone in 20 ms frames and listens to it headless. */
+    private static void selfTest(String host, int port, int jitterMs, String codec, int seconds) throws Exception {
+        String user = "livetest" + System.currentTimeMillis() % 100000;
+        AudioFormat format = new AudioFormat(16000f, 16, 1, true, false);
+        int frameBytes = (int) (format.getFrameRate() / 50) * format.getFrameSize();
+
+        try (AudioSession speaker = new AudioSession(host, port)) {
+            speaker.setCodec(codec);
+            speaker.setLiveListeners(user + "-listener");
+            speaker.login(user);
+            AudioSession.LiveStream stream = speaker.startStream(format);
+            LiveListener listener = new LiveListener(host, port, user + "-listener", user, jitterMs);
+            Thread player = new Thread(() -> {
+                try {
+                    listener.play(null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            player.start();
+
+            byte[] frame = new byte[frameBytes];
+            long start = System.nanoTime();
+            long sample = 0;
+            for (int n = 0; n < seconds * 50; n++) {
+                for (int i = 0; i < frame.length; i += 2) {
+                    short value = (short) (8000 * Math.sin(2 * Math.PI * 440 * sample++ / format.getSampleRate()));
+                    frame[i] = (byte) value;
+                    frame[i + 1] = (byte) (value >> 8);
+                }
+                // Pace frames like a microphone would deliver them
+                long due = start + (n + 1) * 20_000_000L;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                }
+                stream.write(frame, 0, frame.length);
+            }
+            System.out.println("Streamed " + seconds + " s as " + stream.finish());
+            player.join();
+            listener.close();
+            System.out.println(listener.report());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Générateur d'identifiants de messages croissants, inspiré de Snowflake.
+ *
+ * Un identifiant tient sur 63 bits : 41 bits de millisecondes depuis EPOCH,
+ * 12 bits de séquence, puis 10 bits de numéro de serveur. Les identifiants
+ * d'un même serveur sont strictement croissants et ordonnés dans le temps,
+ * ce qui permet de trier et de parcourir l'historique par plage d'ID.
+ * Ils sont encodés en base 36 (au plus 13 caractères au lieu des 36 d'un UUID).
+ */
+public class MessageIdGenerator {
+    private static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_STEP = 1L << NODE_BITS;
+    private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final int MAX_LENGTH = 13; // 63 bits en base 36
+    // Avance tolérée d'un identifiant sur l'horloge locale (autre nœud, séquence empruntée)
+    private static final long MAX_CLOCK_SKEW_MS = 24 * 3600 * 1000L;
+
+    private final long nodeId;
+    private final AtomicLong lastId = new AtomicLong();
+
+    public MessageIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Le numéro de serveur doit être compris entre 0 et " + MAX_NODE_ID);
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Retourne un nouvel identifiant, sans verrou. Si plus de 4096 messages sont
+     * générés dans la même milliseconde, la séquence déborde sur l'horodatage :
+     * l'identifiant reste croissant et "emprunte" la milliseconde suivante.
+     */
+    public long nextId() {
+        long candidate = ((System.currentTimeMillis() - EPOCH) << TIMESTAMP_SHIFT) | nodeId;
+        while (true) {
+            long last = lastId.get();
+            long next = Math.max(candidate, last + SEQUENCE_STEP);
+            if (lastId.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    public String nextEncodedId() {
+        return encode(nextId());
+    }
+
+    public static String encode(long id) {
+        return Long.toString(id, Character.MAX_RADIX);
+    }
+
+    /**
+     * Décode un identifiant compact. Retourne -1 pour les anciens identifiants
+     * (UUID) ou toute chaîne qui n'est pas un identifiant compact : valeur hors
+     * des 63 bits, forme non canonique (signe, zéros en tête, majuscules) ou
+     * horodatage dans le futur. Un curseur invalide vaut ainsi "pas de curseur".
+     */
+    public static long decode(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_LENGTH) {
+            return -1;
+        }
+        long value;
+        try {
+            value = Long.parseLong(id, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (value < 0 || !encode(value).equals(id)
+                || timestampOf(value) > System.currentTimeMillis() + MAX_CLOCK_SKEW_MS) {
+            return -1;
+        }
+        return value;
+    }
+
+    public static boolean isCompact(String id) {
+        return decode(id) >= 0;
+    }
+
+    /** Horodatage (ms epoch Unix) auquel l'identifiant a été généré. */
+    public static long timestampOf(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH;
+    }
+
+    public static int nodeOf(long id) {
+        return (int) (id & MAX_NODE_ID);
+    }
+}
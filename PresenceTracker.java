@@ -0,0 +1,242 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Présence des utilisateurs par salon : en ligne, absent, en train d'écrire.
+ *
+ * La vue courante est gardée en mémoire et sert directement l'instantané envoyé
+ * aux nouveaux arrivants. Les changements ne sont pas diffusés immédiatement :
+ * ils sont regroupés par salon et envoyés une fois par intervalle, si bien
+ * qu'une rafale d'événements "en train d'écrire" ne produit qu'une seule ligne.
+ * Format diffusé : PRESENCE:alice=typing,bob=away,carol=offline
+ *
+ * En cluster, la vue d'un salon n'est tenue que par son propriétaire, qui
+ * reçoit les événements des clients de tous les nœuds (voir
+ * ChatServer.executeOwned). Les autres nœuds gardent seulement, à partir des
+ * diffusions reçues, la liste des présents de chaque salon (mirror) pour
+ * la commande ROOMS.
+ *
+ * Un même nom peut être connecté plusieurs fois au même salon : chaque
+ * utilisateur compte ses connexions, et il ne passe hors ligne qu'à la
+ * fermeture de la dernière.
+ */
+public class PresenceTracker {
+    public static final String PREFIX = "PRESENCE:";
+    public static final String ONLINE = "online";
+    public static final String AWAY = "away";
+    public static final String TYPING = "typing";
+    public static final String OFFLINE = "offline";
+
+    private static final long TYPING_TIMEOUT_MS = 3000;
+
+    private final Map<String, Map<String, UserPresence>> view = new ConcurrentHashMap<>(); // salon -> utilisateur -> état
+    private final Map<String, Map<String, String>> pending = new ConcurrentHashMap<>(); // changements non diffusés
+    private final Map<String, Set<String>> mirrored = new ConcurrentHashMap<>(); // salon d'un autre nœud -> présents
+    private final BiConsumer<String, String> broadcaster;
+    private final long idleTimeoutMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class UserPresence {
+        private volatile String status = ONLINE;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean explicitAway;
+        private int connections = 1; // modifié sous compute() de la map du salon
+    }
+
+    public PresenceTracker(BiConsumer<String, String> broadcaster, long idleTimeoutMs) {
+        this.broadcaster = broadcaster;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public void start(long intervalMs) {
+        scheduler.scheduleAtFixedRate(this::flush, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::expire, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void join(String room, String user) {
+        // Sous compute() du salon, comme leave : la map ne peut pas être retirée entre-temps
+        UserPresence[] joined = new UserPresence[1];
+        boolean[] first = new boolean[1];
+        view.compute(room, (key, users) -> {
+            if (users == null) {
+                users = new ConcurrentHashMap<>();
+            }
+            joined[0] = users.compute(user, (name, existing) -> {
+                if (existing == null) {
+                    first[0] = true;
+                    return new UserPresence();
+                }
+                existing.connections++;
+                return existing;
+            });
+            return users;
+        });
+        if (first[0]) {
+            queue(room, user, ONLINE);
+        } else {
+            // Une connexion de plus compte comme une activité de l'utilisateur
+            activity(room, user, joined[0]);
+        }
+    }
+
+    /** Ferme une connexion de user ; il ne passe hors ligne qu'à la dernière. */
+    public void leave(String room, String user) {
+        boolean[] last = new boolean[1];
+        view.computeIfPresent(room, (key, users) -> {
+            users.computeIfPresent(user, (name, presence) -> {
+                if (--presence.connections > 0) {
+                    return presence;
+                }
+                last[0] = true;
+                return null;
+            });
+            return users.isEmpty() ? null : users;
+        });
+        if (last[0]) {
+            queue(room, user, OFFLINE);
+        }
+    }
+
+    /** Un message envoyé remet l'utilisateur en ligne et efface l'indicateur d'écriture. */
+    public void activity(String room, String user) {
+        UserPresence presence = get(room, user);
+        if (presence != null) {
+            activity(room, user, presence);
+        }
+    }
+
+    private void activity(String room, String user, UserPresence presence) {
+        presence.lastActivity = System.currentTimeMillis();
+        presence.explicitAway = false;
+        setStatus(room, user, presence, ONLINE);
+    }
+
+    public void typing(String room, String user) {
+        UserPresence presence = get(room, user);
+        if (presence != null) {
+            presence.lastActivity = System.currentTimeMillis();
+            presence.explicitAway = false;
+            setStatus(room, user, presence, TYPING);
+        }
+    }
+
+    public void setAway(String room, String user, boolean away) {
+        UserPresence presence = get(room, user);
+        if (presence != null) {
+            presence.lastActivity = System.currentTimeMillis();
+            presence.explicitAway = away;
+            setStatus(room, user, presence, away ? AWAY : ONLINE);
+        }
+    }
+
+    /** Instantané du salon, servi depuis la vue en mémoire. */
+    public String snapshot(String room) {
+        Map<String, UserPresence> users = view.getOrDefault(room, Collections.emptyMap());
+        StringJoiner joiner = new StringJoiner(",", PREFIX, "");
+        for (Map.Entry<String, UserPresence> entry : new TreeMap<>(users).entrySet()) {
+            joiner.add(entry.getKey() + "=" + entry.getValue().status);
+        }
+        return joiner.toString();
+    }
+
+    public List<String> online(String room) {
+        return new ArrayList<>(new TreeSet<>(view.getOrDefault(room, Collections.emptyMap()).keySet()));
+    }
+
+    /** Applique une diffusion de présence reçue du nœud propriétaire du salon. */
+    public void mirror(String room, String line) {
+        mirrored.compute(room, (key, users) -> {
+            if (users == null) {
+                users = ConcurrentHashMap.newKeySet();
+            }
+            for (String change : line.substring(PREFIX.length()).split(",")) {
+                int separator = change.lastIndexOf('=');
+                if (separator <= 0) {
+                    continue;
+                }
+                String user = change.substring(0, separator);
+                if (OFFLINE.equals(change.substring(separator + 1))) {
+                    users.remove(user);
+                } else {
+                    users.add(user);
+                }
+            }
+            return users.isEmpty() ? null : users;
+        });
+    }
+
+    /** Salons où quelqu'un est présent : ceux de ce nœud et ceux connus par mirror. */
+    public Set<String> rooms() {
+        Set<String> rooms = new TreeSet<>(view.keySet());
+        rooms.addAll(mirrored.keySet());
+        return rooms;
+    }
+
+    private UserPresence get(String room, String user) {
+        Map<String, UserPresence> users = view.get(room);
+        return users == null ? null : users.get(user);
+    }
+
+    private void setStatus(String room, String user, UserPresence presence, String status) {
+        if (!status.equals(presence.status)) {
+            presence.status = status;
+            queue(room, user, status);
+        }
+    }
+
+    /**
+     * compute() et remove() sont atomiques par salon : un changement ajouté
+     * pendant un flush est soit diffusé par ce flush, soit par le suivant.
+     */
+    private void queue(String room, String user, String status) {
+        pending.compute(room, (key, changes) -> {
+            if (changes == null) {
+                changes = new LinkedHashMap<>();
+            }
+            changes.put(user, status);
+            return changes;
+        });
+    }
+
+    private void flush() {
+        for (String room : pending.keySet()) {
+            Map<String, String> changes = pending.remove(room);
+            if (changes == null || changes.isEmpty()) {
+                continue;
+            }
+            StringJoiner joiner = new StringJoiner(",", PREFIX, "");
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                joiner.add(change.getKey() + "=" + change.getValue());
+            }
+            try {
+                broadcaster.accept(room, joiner.toString());
+            } catch (RuntimeException e) {
+                System.err.println("Erreur lors de la diffusion de présence : " + e.getMessage());
+            }
+        }
+    }
+
+    /** Fin des indicateurs d'écriture et passage en absent après inactivité. */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, UserPresence>> room : view.entrySet()) {
+            for (Map.Entry<String, UserPresence> user : room.getValue().entrySet()) {
+                UserPresence presence = user.getValue();
+                long idle = now - presence.lastActivity;
+                if (presence.explicitAway) {
+                    continue;
+                }
+                if (idleTimeoutMs > 0 && idle >= idleTimeoutMs) {
+                    setStatus(room.getKey(), user.getKey(), presence, AWAY);
+                } else if (TYPING.equals(presence.status) && idle >= TYPING_TIMEOUT_MS) {
+                    setStatus(room.getKey(), user.getKey(), presence, ONLINE);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Client-side disk cache of recently played recordings, evicting the least recently
+ * used ones beyond maxBytes.
+ *
+ * A file is only cached once fetched completely, and is used only while its size
+ * still matches the server's, so a recording that changed is fetched again. The
+ * use order survives restarts through the files' modification times.
+ */
+public class RecordingCache {
+    private static final String PART_SUFFIX = ".part";
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public RecordingCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        File[] files = dir.listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().endsWith(PART_SUFFIX)) {
+                // left over by a playback that was interrupted
+                file.delete();
+            } else {
+                sizes.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+        }
+    }
+
+    /** The cached copy of name if it has the expected size, or null. */
+    public synchronized File get(String name, long expectedSize) {
+        Long size = sizes.get(name);
+        if (size == null) {
+            return null;
+        }
+        File file = new File(dir, name);
+        if (size != expectedSize || !file.isFile()) {
+            remove(name);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /** A file to download into, to be handed to put() once complete. */
+    public File newPartFile() throws IOException {
+        return File.createTempFile("recording", PART_SUFFIX, dir);
+    }
+
+    /** Moves a completely downloaded file into the cache under name. */
+    public synchronized void put(String name, File part) throws IOException {
+        remove(name);
+        File file = new File(dir, name);
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        file.setLastModified(System.currentTimeMillis());
+        sizes.put(name, file.length());
+        totalBytes += file.length();
+        Iterator<Map.Entry<String, Long>> eldest = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(name)) {
+                break;
+            }
+            new File(dir, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private void remove(String name) {
+        Long size = sizes.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+            new File(dir, name).delete();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.sound.sampled.*;
+
+/**
+ * Plays a recording while it is downloaded from the server, with seeking.
+ *
+ * Only the WAV header is fetched before playback; the audio is then fetched in
+ * ranges of about RANGE_SIZE bytes by a prefetch thread that stays up to
+ * READ_AHEAD_RANGES ahead of the sound card. Ranges are cut on WAV block boundaries,
+ * so IMA ADPCM ranges decode on their own and a seek maps a time to a byte offset.
+ *
+ * A recording played from its start to its end is kept in the RecordingCache and
+ * played from disk the next time.
+ */
+public class RecordingPlayer implements Closeable {
+    private static final int HEADER_PROBE = 4096;
+    private static final int RANGE_SIZE = 64 * 1024;
+    private static final int READ_AHEAD_RANGES = 16;
+    private static final byte[] END = new byte[0];
+
+    private final AudioSession session;
+    private final RecordingCache cache;
+    private final String name;
+    private final byte[] header;
+    private final long total;
+    private final File cached;
+    private final int formatTag;
+    private final int channels;
+    private final float sampleRate;
+    private final int blockAlign;
+    private final int framesPerBlock;
+    private final long dataOffset;
+    private final long dataLength;
+    private final AudioFormat format;
+
+    private volatile Prefetch current;
+    private volatile SourceDataLine line;
+    private volatile boolean stopped;
+    private volatile long seekTo = -1;
+    private volatile long underruns;
+    private volatile long position;
+
+    public RecordingPlayer(AudioSession session, RecordingCache cache, String name) throws IOException {
+        this.session = session;
+        this.cache = cache;
+        this.name = name;
+        AudioSession.Range probe = session.fetchRange(name, 0, HEADER_PROBE);
+        header = probe.data;
+        total = probe.total;
+        cached = cache != null ? cache.get(name, total) : null;
+
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.length < 12 || !new String(header, 0, 4, "US-ASCII").equals("RIFF")) {
+            throw new IOException(name + " is not a WAV file");
+        }
+        int tag = -1;
+        int channelCount = 0;
+        float rate = 0;
+        int align = 0;
+        int bits = 0;
+        long offset = -1;
+        long length = 0;
+        int chunk = 12;
+        while (chunk + 8 <= header.length) {
+            String id = new String(header, chunk, 4, "US-ASCII");
+            long size = buffer.getInt(chunk + 4) & 0xFFFFFFFFL;
+            if (id.equals("fmt ") && chunk + 24 <= header.length) {
+                tag = buffer.getShort(chunk + 8) & 0xFFFF;
+                channelCount = buffer.getShort(chunk + 10);
+                rate = buffer.getInt(chunk + 12);
+                align = buffer.getShort(chunk + 20) & 0xFFFF;
+                bits = buffer.getShort(chunk + 22);
+            } else if (id.equals("data")) {
+                offset = chunk + 8;
+                // 0 while a stream is still being written: use what is there
+                length = size == 0 ? total - offset : Math.min(size, total - offset);
+                break;
+            }
+            if (chunk + 8 + size > header.length) {
+                break;
+            }
+            chunk += 8 + size + (size & 1);
+        }
+        if (offset < 0 || align <= 0 || rate <= 0 || (tag != 1 && tag != ImaAdpcm.WAVE_FORMAT_IMA_ADPCM)) {
+            throw new IOException("Unsupported WAV file: " + name);
+        }
+        formatTag = tag;
+        channels = channelCount;
+        sampleRate = rate;
+        blockAlign = align;
+        dataOffset = offset;
+        dataLength = length - length % align;
+        if (tag == ImaAdpcm.WAVE_FORMAT_IMA_ADPCM) {
+            framesPerBlock = ImaAdpcm.samplesPerBlock(align, channelCount);
+            format = new AudioFormat(rate, 16, channelCount, true, false);
+        } else {
+            framesPerBlock = 1;
+            format = new AudioFormat(rate, bits, channelCount, bits > 8, false);
+        }
+    }
+
+    /** Format of the PCM handed to the sound card. */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public long getDurationMillis() {
+        return (long) (dataLength / blockAlign * framesPerBlock * 1000 / sampleRate);
+    }
+
+    /** Position reached by the audio handed to the sound card so far. */
+    public long getPositionMillis() {
+        return (long) (position * framesPerBlock * 1000 / sampleRate);
+    }
+
+    /** Times the sound card ran dry because the download fell behind. */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    public boolean isCached() {
+        return cached != null;
+    }
+
+    /**
+     * Plays from startMillis to the end or until stop(), following seek() calls from
+     * other threads. Returns true if the end was reached. With a null line the audio
+     * is consumed in real time without being played, which is how playback is
+     * exercised without sound hardware.
+     */
+    public boolean play(SourceDataLine line, long startMillis) throws InterruptedException {
+        this.line = line;
+        stopped = false;
+        seekTo = -1;
+        Prefetch prefetch = start(blockAt(startMillis));
+        long clock = 0;
+        double nanosPerBlock = framesPerBlock * 1e9 / sampleRate;
+        boolean started = false;
+        try {
+            while (true) {
+                byte[] chunk = prefetch.chunks.take();
+                long target = seekTo;
+                if (target >= 0 && !stopped) {
+                    seekTo = -1;
+                    prefetch.cancel();
+                    if (line != null) {
+                        line.flush();
+                    }
+                    prefetch = start(blockAt(target));
+                    started = false;
+                    continue;
+                }
+                if (stopped) {
+                    return false;
+                }
+                if (chunk == END) {
+                    if (line != null) {
+                        line.drain();
+                    }
+                    return true;
+                }
+                byte[] pcm = formatTag == ImaAdpcm.WAVE_FORMAT_IMA_ADPCM
+                    ? ImaAdpcm.decode(chunk, 0, chunk.length, channels, blockAlign) : chunk;
+                int blocks = chunk.length / blockAlign;
+                position += blocks;
+                if (line != null) {
+                    if (started && line.available() >= line.getBufferSize()) {
+                        underruns++;
+                    }
+                    line.write(pcm, 0, pcm.length);
+                } else {
+                    long now = System.nanoTime();
+                    if (started && clock < now) {
+                        underruns++;
+                    }
+                    clock = Math.max(clock, now) + (long) (blocks * nanosPerBlock);
+                    long wakeUp = now + (clock - now) / 2;
+                    while (System.nanoTime() < wakeUp && seekTo < 0 && !stopped) {
+                        Thread.sleep(10);
+                    }
+                }
+                started = true;
+            }
+        } finally {
+            prefetch.cancel();
+        }
+    }
+
+    /** Moves playback to millis; the read-ahead is thrown away and refetched from there. */
+    public void seek(long millis) {
+        seekTo = Math.max(0, millis);
+        wake();
+    }
+
+    /** Stops playback; play() returns false. */
+    public void stop() {
+        stopped = true;
+        wake();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void wake() {
+        Prefetch prefetch = current;
+        if (prefetch != null) {
+            prefetch.chunks.clear();
+            prefetch.chunks.offer(END);
+        }
+        SourceDataLine playing = line;
+        if (playing != null) {
+            // unblocks a write() waiting for room in the line
+            playing.flush();
+        }
+    }
+
+    private long blockAt(long millis) {
+        long frame = (long) (millis * sampleRate / 1000);
+        return Math.max(0, Math.min(frame / framesPerBlock, dataLength / blockAlign));
+    }
+
+    private Prefetch start(long block) {
+        position = block;
+        Prefetch prefetch = new Prefetch(block);
+        current = prefetch;
+        prefetch.thread.start();
+        return prefetch;
+    }
+
+    /** One run of the prefetch thread, from a block to the end; a seek starts a new one. */
+    private class Prefetch implements Runnable {
+        final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(READ_AHEAD_RANGES);
+        final long block;
+        final Thread thread;
+        volatile boolean cancelled;
+
+        Prefetch(long block) {
+            this.block = block;
+            this.thread = new Thread(this, "prefetch-" + name);
+            thread.setDaemon(true);
+        }
+
+        void cancel() {
+            cancelled = true;
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            int rangeBytes = Math.max(1, RANGE_SIZE / blockAlign) * blockAlign;
+            long offset = dataOffset + block * blockAlign;
+            long end = dataOffset + dataLength;
+            // Only a download of the whole file can go into the cache
+            File part = null;
+            OutputStream partOut = null;
+            try (RandomAccessFile local = cached != null ? new RandomAccessFile(cached, "r") : null) {
+                if (cached == null && block == 0 && cache != null && dataOffset <= header.length) {
+                    part = cache.newPartFile();
+                    partOut = new BufferedOutputStream(new FileOutputStream(part));
+                    partOut.write(header, 0, (int) dataOffset);
+                }
+                while (offset < end && !cancelled) {
+                    int length = (int) Math.min(rangeBytes, end - offset);
+                    byte[] chunk;
+                    if (local != null) {
+                        chunk = new byte[length];
+                        local.seek(offset);
+                        local.readFully(chunk);
+                    } else {
+                        chunk = session.fetchRange(name, offset, length).data;
+                        if (chunk.length < length) {
+                            throw new EOFException(name + " is shorter than announced");
+                        }
+                    }
+                    if (partOut != null) {
+                        partOut.write(chunk);
+                    }
+                    chunks.put(chunk);
+                    offset += length;
+                }
+                if (partOut != null && !cancelled && end == total) {
+                    partOut.close();
+                    partOut = null;
+                    cache.put(name, part);
+                    part = null;
+                }
+            } catch (IOException e) {
+                if (!cancelled) {
+                    System.err.println("Playback of " + name + " interrupted: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                // cancelled by a seek or stop
+            } finally {
+                if (partOut != null) {
+                    try {
+                        partOut.close();
+                    } catch (IOException ignored) {
+                        // the part file is deleted anyway
+                    }
+                }
+                if (part != null) {
+                    part.delete();
+                }
+                if (!cancelled) {
+                    try {
+                        chunks.put(END);
+                    } catch (InterruptedException e) {
+                        // cancelled meanwhile
+                    }
+                }
+            }
+        }
+    }
+}
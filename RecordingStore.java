@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Where AudioServer keeps recording files: a hot tier, served directly, and an archive
+ * tier of gzip-compressed files for recordings nobody played for a while.
+ *
+ * Both tiers are split into SHARDS subdirectories named after a hash of the recording
+ * name (recordings/3f/recording_bob_1700000000000.wav), so no directory grows with the
+ * whole collection and a name maps to its path without listing anything. The waveform
+ * summary of a recording stays next to its hot path in both tiers: it is small and
+ * lets the GUI draw archived recordings without bringing them back.
+ *
+ * An archived recording is brought back to the hot tier when it is asked for. When it
+ * was last asked for, in either tier, is kept by the catalog (AudioCatalog.Entry
+ * lastPlayed) for the archiving policy of AudioServer. restore() and the end of
+ * archive() hold the store's lock: a caller that opens a hot file while holding it
+ * too cannot see the file move away in between.
+ */
+public class RecordingStore {
+    public static final String ARCHIVE_EXTENSION = ".gz";
+    private static final int SHARDS = 256;
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final File hotDir;
+    private final File archiveDir;
+
+    public RecordingStore(File hotDir, File archiveDir) {
+        this.hotDir = hotDir;
+        this.archiveDir = archiveDir;
+    }
+
+    /** Two hex digits of the name's hash. */
+    static String shard(String name) {
+        return String.format("%02x", name.hashCode() & (SHARDS - 1));
+    }
+
+    /** Path of a recording in the hot tier, whether or not it is there. */
+    public File hotFile(String name) {
+        return new File(new File(hotDir, shard(name)), name);
+    }
+
+    private File archiveFile(String name) {
+        return new File(new File(archiveDir, shard(name)), name + ARCHIVE_EXTENSION);
+    }
+
+    /** Creates an empty file in the hot tier, named base.extension or base_N.extension if taken. */
+    public File newFile(String base, String extension) throws IOException {
+        String name = base + "." + extension;
+        for (int i = 1; ; i++) {
+            File file = hotFile(name);
+            file.getParentFile().mkdirs();
+            if (!archiveFile(name).exists() && file.createNewFile()) {
+                return file;
+            }
+            name = base + "_" + i + "." + extension;
+        }
+    }
+
+    /**
+     * Prepares the tiers after a restart: recordings of the older flat directory move
+     * to their shard, files left half-written by an interrupted archive or restore are
+     * deleted, and so is the archive copy of a recording that is also hot (the archive
+     * did not finish).
+     */
+    public void recover() throws IOException {
+        hotDir.mkdirs();
+        File[] flat = hotDir.listFiles(File::isFile);
+        for (File file : flat != null ? flat : new File[0]) {
+            String name = file.getName();
+            String recording = name.endsWith(WaveformSummary.EXTENSION)
+                ? name.substring(0, name.length() - WaveformSummary.EXTENSION.length()) : name;
+            File target = new File(hotFile(recording).getParentFile(), name);
+            target.getParentFile().mkdirs();
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (File file : shardFiles(hotDir)) {
+            if (file.getName().endsWith(TMP_EXTENSION)) {
+                file.delete();
+            }
+        }
+        for (File file : shardFiles(archiveDir)) {
+            String name = file.getName();
+            if (name.endsWith(TMP_EXTENSION) || (name.endsWith(ARCHIVE_EXTENSION)
+                && hotFile(name.substring(0, name.length() - ARCHIVE_EXTENSION.length())).isFile())) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Recording files of the hot tier, without their waveform summaries. */
+    public List<File> hotFiles() {
+        List<File> files = new ArrayList<>();
+        for (File file : shardFiles(hotDir)) {
+            String name = file.getName();
+            if (!name.endsWith(WaveformSummary.EXTENSION) && !name.endsWith(TMP_EXTENSION)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /** Names of the recordings in the archive tier. */
+    public List<String> archivedNames() {
+        List<String> names = new ArrayList<>();
+        for (File file : shardFiles(archiveDir)) {
+            String name = file.getName();
+            if (name.endsWith(ARCHIVE_EXTENSION)) {
+                names.add(name.substring(0, name.length() - ARCHIVE_EXTENSION.length()));
+            }
+        }
+        return names;
+    }
+
+    private static List<File> shardFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        File[] shards = dir.listFiles(File::isDirectory);
+        for (File shard : shards != null ? shards : new File[0]) {
+            File[] inShard = shard.listFiles(File::isFile);
+            if (inShard != null) {
+                files.addAll(List.of(inShard));
+            }
+        }
+        return files;
+    }
+
+    /** The recording's hot file, brought back from the archive if needed; null if it is in neither tier. */
+    public synchronized File restore(String name) throws IOException {
+        File hot = hotFile(name);
+        if (hot.isFile()) {
+            return hot;
+        }
+        File archived = archiveFile(name);
+        if (!archived.isFile()) {
+            return null;
+        }
+        File tmp = new File(hot.getPath() + TMP_EXTENSION);
+        hot.getParentFile().mkdirs();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(archived), COPY_BUFFER);
+             OutputStream out = new FileOutputStream(tmp)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), hot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        archived.delete();
+        // The summary must not look older than the recording, or it would be rebuilt
+        WaveformSummary.fileFor(hot).setLastModified(hot.lastModified());
+        return hot;
+    }
+
+    public boolean isArchived(String name) {
+        return !hotFile(name).isFile() && archiveFile(name).isFile();
+    }
+
+    /**
+     * Compresses a hot recording into the archive tier. The compression runs without
+     * the lock; the hot file is then swapped for the archive copy, unless it was
+     * replaced meanwhile. Returns false if the recording was not archived.
+     */
+    public boolean archive(String name) throws IOException {
+        File hot = hotFile(name);
+        long lastModified = hot.lastModified();
+        if (lastModified == 0) {
+            return false;
+        }
+        File archived = archiveFile(name);
+        File tmp = new File(archived.getPath() + TMP_EXTENSION);
+        archived.getParentFile().mkdirs();
+        try (InputStream in = new FileInputStream(hot);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), COPY_BUFFER)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        synchronized (this) {
+            if (hot.lastModified() != lastModified) {
+                tmp.delete();
+                return false;
+            }
+            Files.move(tmp.toPath(), archived.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (!hot.delete()) {
+                archived.delete();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Deletes a recording from whichever tier it is in, and its waveform summary. */
+    public synchronized boolean delete(String name) {
+        File hot = hotFile(name);
+        boolean deleted = hot.delete() | archiveFile(name).delete();
+        WaveformSummary.fileFor(hot).delete();
+        return deleted;
+    }
+}
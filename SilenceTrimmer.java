@@ -0,0 +1,268 @@
+import java.io.IOException;
+
+/**
+ * Streaming stage that shortens long silences in audio on its way to a Sink.
+ *
+ * Audio is judged in windows of about 10 ms (one block for IMA ADPCM): a window whose
+ * RMS level is under the threshold is silent. A run of silent windows longer than
+ * minSilenceMs is cut down to keepMs at each end, so pauses stay audible but short;
+ * shorter runs pass unchanged. Each cut is recorded in the original timeline, see
+ * getSilences().
+ *
+ * The audio is looked at once, as it passes: speech goes straight to the sink, and
+ * a silent run is held in a ring buffer sized for minSilenceMs until it is known to
+ * be short (sent as it is) or long (only its last keepMs is sent). All buffers are
+ * allocated up front, so a long stream does not allocate per window.
+ */
+public class SilenceTrimmer {
+    /** Where the kept audio goes. */
+    public interface Sink {
+        void write(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /** Detection settings, from the SILENCE_* configuration keys. */
+    public static class Settings {
+        public final double thresholdDb;
+        public final int minSilenceMs;
+        public final int keepMs;
+
+        public Settings(double thresholdDb, int minSilenceMs, int keepMs) {
+            this.thresholdDb = thresholdDb;
+            this.minSilenceMs = minSilenceMs;
+            this.keepMs = keepMs;
+        }
+    }
+
+    private final Sink sink;
+    private final float sampleRate;
+    private final int bits;
+    private final int channels;
+    private final boolean signed;
+    private final boolean bigEndian;
+    private final int adpcmBlockAlign; // 0 for PCM
+    private final int windowBytes;
+    private final int windowFrames;
+    private final double thresholdSquares; // sum of squares of a window at the threshold
+    private final int keepWindows;
+
+    private final byte[] window; // a window split across two writes
+    private int windowLength;
+    private final byte[] pcm; // decoded ADPCM window
+    private final byte[] ring; // held silent windows
+    private final int ringWindows;
+    private int ringStart;
+    private int ringCount;
+
+    private long frames; // frames seen, in the original timeline
+    private int silentRun; // windows in the current silent run
+    private long runStart; // its first frame
+    private long cutStart;
+    private long cutFrames;
+    private long removedFrames;
+    private final StringBuilder silences = new StringBuilder();
+
+    // write() sends consecutive speech windows of its input to the sink as one piece
+    private byte[] pendingData;
+    private int pendingOffset;
+    private int pendingLength;
+
+    /**
+     * Stage for PCM (bits 8 or 16) or, with adpcmBlockAlign > 0, for IMA ADPCM blocks
+     * of that size.
+     */
+    public SilenceTrimmer(Settings settings, float sampleRate, int bits, int channels, boolean signed,
+                          boolean bigEndian, int adpcmBlockAlign, Sink sink) {
+        this.sink = sink;
+        this.sampleRate = sampleRate;
+        this.bits = bits;
+        this.channels = channels;
+        this.signed = signed;
+        this.bigEndian = bigEndian;
+        this.adpcmBlockAlign = adpcmBlockAlign;
+        if (adpcmBlockAlign > 0) {
+            windowFrames = ImaAdpcm.samplesPerBlock(adpcmBlockAlign, channels);
+            windowBytes = adpcmBlockAlign;
+            pcm = new byte[windowFrames * channels * 2];
+        } else {
+            windowFrames = Math.max(1, Math.round(sampleRate / 100));
+            windowBytes = windowFrames * channels * bits / 8;
+            pcm = null;
+        }
+        double threshold = 32768 * Math.pow(10, settings.thresholdDb / 20);
+        thresholdSquares = threshold * threshold * windowFrames * channels;
+        double windowMs = windowFrames * 1000.0 / sampleRate;
+        keepWindows = (int) Math.ceil(settings.keepMs / windowMs);
+        int minWindows = Math.max(2 * keepWindows + 1, (int) Math.ceil(settings.minSilenceMs / windowMs));
+        ringWindows = minWindows - keepWindows;
+        ring = new byte[ringWindows * windowBytes];
+        window = new byte[windowBytes];
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        if (windowLength > 0) {
+            int n = Math.min(windowBytes - windowLength, length);
+            System.arraycopy(data, offset, window, windowLength, n);
+            windowLength += n;
+            offset += n;
+            if (windowLength < windowBytes) {
+                return;
+            }
+            process(window, 0, windowBytes);
+            windowLength = 0;
+        }
+        for (; offset + windowBytes <= end; offset += windowBytes) {
+            process(data, offset, windowBytes);
+        }
+        flushPending();
+        windowLength = end - offset;
+        System.arraycopy(data, offset, window, 0, windowLength);
+    }
+
+    /**
+     * Ends the audio: a last partial window is kept, and so is a silent run still held,
+     * unless it is long enough to be cut (trailing silence).
+     */
+    public void finish() throws IOException {
+        // An incomplete ADPCM block cannot be decoded: it counts as silent and empty
+        int tailFrames = adpcmBlockAlign > 0 ? 0 : windowLength / (channels * bits / 8);
+        boolean silentTail = windowLength == 0 || isSilent(window, 0, windowLength);
+        if (cutFrames > 0 && silentTail) {
+            cutFrames += (long) ringCount * windowFrames + tailFrames;
+            ringCount = 0;
+            endCut();
+        } else {
+            endSilentRun();
+            if (windowLength > 0) {
+                emit(window, 0, windowLength);
+            }
+        }
+        frames += tailFrames;
+        windowLength = 0;
+        flushPending();
+    }
+
+    private void process(byte[] data, int offset, int length) throws IOException {
+        if (!isSilent(data, offset, length)) {
+            endSilentRun();
+            emit(data, offset, length);
+        } else {
+            if (silentRun++ == 0) {
+                runStart = frames;
+            }
+            if (silentRun <= keepWindows) {
+                emit(data, offset, length);
+            } else {
+                flushPending();
+                if (ringCount == ringWindows) {
+                    // The run is long: the oldest held window is cut
+                    if (cutFrames == 0) {
+                        cutStart = runStart + (long) keepWindows * windowFrames;
+                    }
+                    cutFrames += windowFrames;
+                    ringStart = (ringStart + 1) % ringWindows;
+                    ringCount--;
+                }
+                int slot = (ringStart + ringCount) % ringWindows;
+                System.arraycopy(data, offset, ring, slot * windowBytes, length);
+                ringCount++;
+            }
+        }
+        frames += windowFrames;
+    }
+
+    /** Speech resumes (or the audio ends): sends what is kept of the held silence. */
+    private void endSilentRun() throws IOException {
+        if (ringCount > 0) {
+            flushPending();
+            // After a cut only the last keepWindows lead into the speech
+            int skip = cutFrames > 0 ? ringCount - keepWindows : 0;
+            cutFrames += (long) skip * windowFrames;
+            // The held windows are at most two pieces of the ring, before and after it wraps
+            int first = (ringStart + skip) % ringWindows;
+            int count = ringCount - skip;
+            int beforeWrap = Math.min(count, ringWindows - first);
+            if (beforeWrap > 0) {
+                sink.write(ring, first * windowBytes, beforeWrap * windowBytes);
+            }
+            if (count > beforeWrap) {
+                sink.write(ring, 0, (count - beforeWrap) * windowBytes);
+            }
+        }
+        ringStart = 0;
+        ringCount = 0;
+        silentRun = 0;
+        endCut();
+    }
+
+    private void endCut() {
+        if (cutFrames > 0) {
+            if (silences.length() > 0) {
+                silences.append(';');
+            }
+            silences.append(Math.round(cutStart * 1000.0 / sampleRate)).append('+')
+                .append(Math.round(cutFrames * 1000.0 / sampleRate));
+            removedFrames += cutFrames;
+            cutFrames = 0;
+        }
+    }
+
+    private boolean isSilent(byte[] data, int offset, int length) {
+        double squares = 0;
+        int samples;
+        if (adpcmBlockAlign > 0) {
+            int pcmLength = ImaAdpcm.decode(data, offset, length, channels, adpcmBlockAlign, pcm, 0);
+            samples = pcmLength / 2;
+            for (int i = 0; i < pcmLength; i += 2) {
+                int sample = (short) ((pcm[i] & 0xFF) | pcm[i + 1] << 8);
+                squares += sample * sample;
+            }
+        } else if (bits == 16) {
+            samples = length / 2;
+            for (int i = offset; i + 1 < offset + length; i += 2) {
+                int sample = bigEndian ? (short) (data[i] << 8 | (data[i + 1] & 0xFF))
+                    : (short) ((data[i] & 0xFF) | data[i + 1] << 8);
+                squares += sample * sample;
+            }
+        } else {
+            samples = length;
+            for (int i = offset; i < offset + length; i++) {
+                int sample = (signed ? data[i] : (data[i] & 0xFF) - 128) << 8;
+                squares += sample * sample;
+            }
+        }
+        // compared as sums of squares, scaled to this window's size
+        return samples == 0 || squares * windowFrames * channels < thresholdSquares * samples;
+    }
+
+    private void emit(byte[] data, int offset, int length) throws IOException {
+        if (data == pendingData && offset == pendingOffset + pendingLength) {
+            pendingLength += length;
+            return;
+        }
+        flushPending();
+        pendingData = data;
+        pendingOffset = offset;
+        pendingLength = length;
+    }
+
+    private void flushPending() throws IOException {
+        if (pendingLength > 0) {
+            sink.write(pendingData, pendingOffset, pendingLength);
+        }
+        pendingData = null;
+        pendingLength = 0;
+    }
+
+    /**
+     * Silences cut so far, "startMs+lengthMs" separated by ';', where startMs is a
+     * position in the original audio; empty if nothing was cut.
+     */
+    public String getSilences() {
+        return silences.toString();
+    }
+
+    public long getRemovedMillis() {
+        return Math.round(removedFrames * 1000.0 / sampleRate);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Seau à jetons : un débit moyen avec une rafale autorisée.
+ *
+ * Le seau se remplit de ratePerSecond jetons par seconde jusqu'à burst jetons.
+ * acquire() prend un jeton et, si le seau est vide, bloque le thread appelant
+ * le temps qu'il faut pour le regagner : appelé avant de lire la commande
+ * suivante d'un client, il cesse de lire son socket et la file TCP du client
+ * se remplit, ce qui le ralentit sans rien rejeter.
+ */
+public class TokenBucket {
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /** Un débit nul ou négatif désactive la limite. */
+    public TokenBucket(double ratePerSecond, double burst) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public boolean isUnlimited() {
+        return ratePerNano <= 0;
+    }
+
+    /**
+     * Réserve un jeton et retourne l'attente nécessaire en nanosecondes (0 si
+     * un jeton était disponible). Le solde peut devenir négatif : les appelants
+     * suivants attendent alors chacun leur tour.
+     */
+    public synchronized long reserve() {
+        if (isUnlimited()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / ratePerNano);
+    }
+
+    /** Prend un jeton, en attendant si nécessaire ; retourne l'attente en nanosecondes. */
+    public long acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+        return wait;
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes PCM audio to a WAV file as it arrives, without holding the recording in memory.
+ *
+ * The 44-byte header is written first with empty sizes and patched in place every
+ * HEADER_UPDATE_BYTES of audio and on close, so a partially written file is always a
+ * playable WAV up to the last update. WAV PCM is little-endian (and unsigned for 8-bit),
+ * so big-endian or signed 8-bit input is converted on the fly. IMA ADPCM blocks (see
+ * ImaAdpcm) are written as they are, in a WAV of format 0x11.
+ *
+ * The audio also goes through a WaveformSummary on its way to disk, saved next to the
+ * file on close, and optionally through a SilenceTrimmer before anything else.
+ *
+ * write() is convert() followed by persist(): the first is CPU work, the second disk
+ * work, and IngestPipeline runs them on different threads. Each must be called in
+ * the order of the audio, but convert() of one buffer may run while persist() of the
+ * previous one does.
+ */
+public class WavWriter implements Closeable {
+    public static final int HEADER_SIZE = 44;
+    private static final int ADPCM_HEADER_SIZE = 60;
+    private static final long HEADER_UPDATE_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final WaveformSummary summary;
+    private final int bits;
+    private final int channels;
+    private final boolean signed;
+    private final boolean bigEndian;
+    private final int adpcmBlockAlign;
+    private final boolean swapBytes;
+    private final boolean flipSign;
+    private final int headerSize;
+    private final int samplesPerBlock; // 0 for PCM
+    private final int blockAlign;
+    private final float sampleRate;
+    private ByteBuffer scratch = ByteBuffer.allocate(8192);
+    private SilenceTrimmer trimmer;
+    private ByteBuffer target; // where convert() puts the audio kept by the trimmer
+    private int pendingByte = -1; // first half of a 16-bit sample split across two writes
+    private long dataLength;
+    private long lastHeaderUpdate;
+
+    public WavWriter(File file, float sampleRate, int bits, int channels, boolean signed, boolean bigEndian) throws IOException {
+        this(file, sampleRate, bits, channels, signed, bigEndian, 0);
+    }
+
+    /** Writer for IMA ADPCM blocks of ImaAdpcm.BLOCK_ALIGN bytes per channel. */
+    public static WavWriter imaAdpcm(File file, float sampleRate, int channels) throws IOException {
+        return new WavWriter(file, sampleRate, 4, channels, false, false, ImaAdpcm.BLOCK_ALIGN * channels);
+    }
+
+    private WavWriter(File file, float sampleRate, int bits, int channels, boolean signed, boolean bigEndian,
+                      int adpcmBlockAlign) throws IOException {
+        if (adpcmBlockAlign == 0 && bits != 8 && bits != 16) {
+            throw new IOException("Unsupported sample size: " + bits + " bits");
+        }
+        if (channels < 1 || channels > 8) {
+            throw new IOException("Unsupported channel count: " + channels);
+        }
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        this.summary = new WaveformSummary(sampleRate, bits, channels, adpcmBlockAlign);
+        this.bits = bits;
+        this.channels = channels;
+        this.signed = signed;
+        this.bigEndian = bigEndian;
+        this.adpcmBlockAlign = adpcmBlockAlign;
+        this.swapBytes = bits == 16 && bigEndian;
+        this.flipSign = bits == 8 && signed;
+        this.sampleRate = sampleRate;
+        this.headerSize = adpcmBlockAlign == 0 ? HEADER_SIZE : ADPCM_HEADER_SIZE;
+        this.blockAlign = adpcmBlockAlign == 0 ? channels * bits / 8 : adpcmBlockAlign;
+        this.samplesPerBlock = adpcmBlockAlign == 0 ? 0 : ImaAdpcm.samplesPerBlock(adpcmBlockAlign, channels);
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes("US-ASCII")).putInt(headerSize - 8)
+            .put("WAVE".getBytes("US-ASCII"));
+        if (samplesPerBlock == 0) {
+            header.put("fmt ".getBytes("US-ASCII")).putInt(16)
+                .putShort((short) 1) // PCM
+                .putShort((short) channels)
+                .putInt((int) sampleRate)
+                .putInt((int) sampleRate * blockAlign)
+                .putShort((short) blockAlign)
+                .putShort((short) bits);
+        } else {
+            header.put("fmt ".getBytes("US-ASCII")).putInt(20)
+                .putShort((short) ImaAdpcm.WAVE_FORMAT_IMA_ADPCM)
+                .putShort((short) channels)
+                .putInt((int) sampleRate)
+                .putInt((int) ((long) sampleRate * blockAlign / samplesPerBlock))
+                .putShort((short) blockAlign)
+                .putShort((short) 4)
+                .putShort((short) 2).putShort((short) samplesPerBlock)
+                .put("fact".getBytes("US-ASCII")).putInt(4).putInt(0);
+        }
+        header.put("data".getBytes("US-ASCII")).putInt(0);
+        header.flip();
+        channel.write(header, 0);
+        channel.position(headerSize);
+    }
+
+    /** Cuts long silences from the audio before it is written; call before the first write. */
+    public void trimSilences(SilenceTrimmer.Settings settings) {
+        trimmer = new SilenceTrimmer(settings, sampleRate, bits, channels, signed, bigEndian, adpcmBlockAlign,
+            this::normalize);
+    }
+
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        scratch = convert(buffer, offset, length, scratch);
+        persist(scratch);
+    }
+
+    /** Ends the audio: sends what the silence trimmer still holds to the file. */
+    public void finish() throws IOException {
+        scratch = convertEnd(scratch);
+        persist(scratch);
+    }
+
+    /**
+     * First half of write(): converts the audio to what goes in the file, in the given
+     * buffer (or a larger one if it does not fit), and returns that buffer ready for
+     * persist().
+     */
+    public ByteBuffer convert(byte[] buffer, int offset, int length, ByteBuffer into) throws IOException {
+        target = into;
+        target.clear();
+        if (trimmer != null) {
+            trimmer.write(buffer, offset, length);
+        } else {
+            normalize(buffer, offset, length);
+        }
+        return converted();
+    }
+
+    /** convert() for the end of the audio; empty unless silences are trimmed. */
+    public ByteBuffer convertEnd(ByteBuffer into) throws IOException {
+        target = into;
+        target.clear();
+        if (trimmer != null) {
+            trimmer.finish();
+        }
+        return converted();
+    }
+
+    private ByteBuffer converted() {
+        ByteBuffer result = target;
+        target = null;
+        result.flip();
+        summary.add(result.array(), 0, result.limit());
+        return result;
+    }
+
+    private void normalize(byte[] buffer, int offset, int length) {
+        if (target.remaining() < length + 1) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(target.capacity() * 2, target.position() + length + 1));
+            target.flip();
+            target = larger.put(target);
+        }
+        if (swapBytes) {
+            int i = offset;
+            int end = offset + length;
+            if (pendingByte >= 0 && i < end) {
+                target.put(buffer[i++]).put((byte) pendingByte);
+                pendingByte = -1;
+            }
+            for (; i + 1 < end; i += 2) {
+                target.put(buffer[i + 1]).put(buffer[i]);
+            }
+            if (i < end) {
+                pendingByte = buffer[i] & 0xFF;
+            }
+        } else if (flipSign) {
+            for (int i = offset; i < offset + length; i++) {
+                target.put((byte) (buffer[i] ^ 0x80));
+            }
+        } else {
+            target.put(buffer, offset, length);
+        }
+    }
+
+    /** Second half of write(): appends audio returned by convert() to the file. */
+    public void persist(ByteBuffer data) throws IOException {
+        dataLength += data.remaining();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        if (dataLength - lastHeaderUpdate >= HEADER_UPDATE_BYTES) {
+            updateHeader();
+        }
+    }
+
+    /** Silences cut by trimSilences(), as SilenceTrimmer.getSilences(); empty without trimming. */
+    public String getSilences() {
+        return trimmer != null ? trimmer.getSilences() : "";
+    }
+
+    /** Number of audio bytes written so far, excluding the header. */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /** Duration of the audio written so far. */
+    public long getDurationMillis() {
+        long frames = samplesPerBlock == 0 ? dataLength / blockAlign : dataLength / blockAlign * samplesPerBlock;
+        return (long) (frames * 1000 / sampleRate);
+    }
+
+    /** Size of the file once closed: header and audio. */
+    public long getFileLength() {
+        return headerSize + dataLength;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    private void updateHeader() throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        size.putInt(0, (int) (headerSize - 8 + dataLength));
+        channel.write(size, 4);
+        if (samplesPerBlock > 0) {
+            // fact chunk: samples per channel in the complete blocks
+            size.clear();
+            size.putInt(0, (int) (dataLength / blockAlign * samplesPerBlock));
+            channel.write(size, 48);
+        }
+        size.clear();
+        size.putInt(0, (int) dataLength);
+        channel.write(size, headerSize - 4);
+        lastHeaderUpdate = dataLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            updateHeader();
+        } finally {
+            channel.close();
+        }
+        try {
+            summary.save(file);
+        } catch (IOException e) {
+            // The recording is fine; its summary is rebuilt from it when first asked for
+            System.err.println("Cannot save waveform summary of " + file.getName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.*;
+
+/**
+ * Peak and RMS outline of a recording at several resolutions, so waveforms can be drawn
+ * without the audio.
+ *
+ * Level 0 has one bucket per BASE_FRAMES frames, and each further level merges pairs of
+ * buckets of the one below, down to a single bucket. A bucket is three bytes: lowest and
+ * highest sample as signed 8-bit values and RMS level from 0 to 255, channels mixed.
+ *
+ * The summary is built in one pass while a recording is written (WavWriter feeds it the
+ * WAV data as it goes) and saved next to it as "file.peaks":
+ * <pre>
+ * "PEAK" version sampleRate BASE_FRAMES frames levels count[levels]   (little-endian)
+ * then the buckets of each level, level 0 first
+ * </pre>
+ * About 0.6% of a 16-bit mono recording, and a client picks the level that fits the
+ * width it draws, so a whole list of waveforms costs less than a second of audio.
+ */
+public class WaveformSummary {
+    public static final String EXTENSION = ".peaks";
+    public static final int BASE_FRAMES = 256;
+    private static final int VERSION = 1;
+    private static final int MAX_LEVELS = 40;
+    private static final int MAX_SKIPPED_CHUNK = 1024 * 1024;
+
+    private final float sampleRate;
+    private final int bits;
+    private final int channels;
+    private final int adpcmBlockAlign; // 0 for PCM
+    private final int unit; // bytes fed at a time: one frame, or one ADPCM block
+    private final byte[] partial;
+    private int partialLength;
+    private long frames;
+
+    // level 0 bucket being filled
+    private int bucketMin = Integer.MAX_VALUE;
+    private int bucketMax = Integer.MIN_VALUE;
+    private double bucketSquares;
+    private int bucketFrames;
+
+    private final ByteArrayOutputStream[] levels = new ByteArrayOutputStream[MAX_LEVELS];
+    private int levelCount = 1;
+    // first bucket of a pair waiting for its second, per level
+    private final boolean[] pending = new boolean[MAX_LEVELS];
+    private final int[] pendingMin = new int[MAX_LEVELS];
+    private final int[] pendingMax = new int[MAX_LEVELS];
+    private final int[] pendingRms = new int[MAX_LEVELS];
+
+    /** One level of a summary, as read back for drawing. */
+    public static class Level {
+        public final int framesPerBucket;
+        public final byte[] buckets;
+
+        public Level(int framesPerBucket, byte[] buckets) {
+            this.framesPerBucket = framesPerBucket;
+            this.buckets = buckets;
+        }
+
+        public int count() {
+            return buckets.length / 3;
+        }
+
+        /** Lowest sample in bucket i, -128 to 127. */
+        public int min(int i) {
+            return buckets[3 * i];
+        }
+
+        public int max(int i) {
+            return buckets[3 * i + 1];
+        }
+
+        /** RMS level of bucket i, 0 to 255. */
+        public int rms(int i) {
+            return buckets[3 * i + 2] & 0xFF;
+        }
+    }
+
+    /** Summary of WAV data: 8 or 16-bit PCM, or IMA ADPCM blocks of adpcmBlockAlign bytes. */
+    public WaveformSummary(float sampleRate, int bits, int channels, int adpcmBlockAlign) {
+        this.sampleRate = sampleRate;
+        this.bits = bits;
+        this.channels = channels;
+        this.adpcmBlockAlign = adpcmBlockAlign;
+        this.unit = adpcmBlockAlign > 0 ? adpcmBlockAlign : channels * bits / 8;
+        this.partial = new byte[unit];
+        levels[0] = new ByteArrayOutputStream();
+    }
+
+    /** The summary file of a recording. */
+    public static File fileFor(File recording) {
+        return new File(recording.getPath() + EXTENSION);
+    }
+
+    /** Adds WAV data as written to the file; it can be cut anywhere. */
+    public void add(byte[] data, int offset, int length) {
+        int end = offset + length;
+        if (partialLength > 0) {
+            int n = Math.min(unit - partialLength, length);
+            System.arraycopy(data, offset, partial, partialLength, n);
+            partialLength += n;
+            offset += n;
+            if (partialLength < unit) {
+                return;
+            }
+            addUnits(partial, 0, unit);
+            partialLength = 0;
+        }
+        int whole = (end - offset) / unit * unit;
+        if (whole > 0) {
+            addUnits(data, offset, whole);
+            offset += whole;
+        }
+        partialLength = end - offset;
+        System.arraycopy(data, offset, partial, 0, partialLength);
+    }
+
+    private void addUnits(byte[] data, int offset, int length) {
+        if (adpcmBlockAlign > 0) {
+            byte[] pcm = ImaAdpcm.decode(data, offset, length, channels, adpcmBlockAlign);
+            addPcm16(pcm, 0, pcm.length);
+        } else if (bits == 16) {
+            addPcm16(data, offset, length);
+        } else {
+            for (int i = offset; i < offset + length; i += channels) {
+                for (int c = 0; c < channels; c++) {
+                    addSample(((data[i + c] & 0xFF) - 128) << 8);
+                }
+                endFrame();
+            }
+        }
+    }
+
+    private void addPcm16(byte[] pcm, int offset, int length) {
+        for (int i = offset; i + 2 * channels <= offset + length; i += 2 * channels) {
+            for (int c = 0; c < channels; c++) {
+                addSample((short) ((pcm[i + 2 * c] & 0xFF) | pcm[i + 2 * c + 1] << 8));
+            }
+            endFrame();
+        }
+    }
+
+    private void addSample(int sample) {
+        if (sample < bucketMin) {
+            bucketMin = sample;
+        }
+        if (sample > bucketMax) {
+            bucketMax = sample;
+        }
+        bucketSquares += (double) sample * sample;
+    }
+
+    private void endFrame() {
+        frames++;
+        if (++bucketFrames == BASE_FRAMES) {
+            endBucket();
+        }
+    }
+
+    private void endBucket() {
+        int rms = (int) Math.min(255, Math.round(Math.sqrt(bucketSquares / ((double) bucketFrames * channels)) / 128));
+        push(0, bucketMin >> 8, bucketMax >> 8, rms);
+        bucketMin = Integer.MAX_VALUE;
+        bucketMax = Integer.MIN_VALUE;
+        bucketSquares = 0;
+        bucketFrames = 0;
+    }
+
+    /** Appends a bucket to a level and merges it upwards once it completes a pair. */
+    private void push(int level, int min, int max, int rms) {
+        levels[level].write(min);
+        levels[level].write(max);
+        levels[level].write(rms);
+        if (level + 1 == MAX_LEVELS) {
+            return;
+        }
+        if (!pending[level]) {
+            pending[level] = true;
+            pendingMin[level] = min;
+            pendingMax[level] = max;
+            pendingRms[level] = rms;
+            return;
+        }
+        pending[level] = false;
+        int mergedRms = (int) Math.round(Math.sqrt((pendingRms[level] * pendingRms[level] + rms * rms) / 2.0));
+        pushUp(level, Math.min(pendingMin[level], min), Math.max(pendingMax[level], max), mergedRms);
+    }
+
+    private void pushUp(int level, int min, int max, int rms) {
+        if (levels[level + 1] == null) {
+            levels[level + 1] = new ByteArrayOutputStream();
+            levelCount = level + 2;
+        }
+        push(level + 1, min, max, rms);
+    }
+
+    /** Closes the last buckets; every level then covers the whole recording. */
+    private void finish() {
+        if (bucketFrames > 0) {
+            endBucket();
+        }
+        // A bucket left without a pair goes up alone, until the top level has one bucket
+        for (int level = 0; level < levelCount && levels[level].size() > 3; level++) {
+            if (pending[level]) {
+                pending[level] = false;
+                pushUp(level, pendingMin[level], pendingMax[level], pendingRms[level]);
+            }
+        }
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Completes the summary and writes it for recording. A new file replaces the old one
+     * atomically, so readers never see half a summary.
+     */
+    public void save(File recording) throws IOException {
+        finish();
+        File file = fileFor(recording);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            ByteBuffer header = ByteBuffer.allocate(28 + 4 * levelCount).order(ByteOrder.LITTLE_ENDIAN);
+            header.put("PEAK".getBytes("US-ASCII")).putInt(VERSION).putInt((int) sampleRate).putInt(BASE_FRAMES)
+                .putLong(frames).putInt(levelCount);
+            for (int level = 0; level < levelCount; level++) {
+                header.putInt(levels[level].size() / 3);
+            }
+            output.write(header.array());
+            for (int level = 0; level < levelCount; level++) {
+                levels[level].writeTo(output);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the finest level of a saved summary that has at most width buckets (or the
+     * coarsest one if none is that small): a single read of at most 3 * width bytes.
+     */
+    public static Level read(File file, int width) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            byte[] start = new byte[28];
+            input.readFully(start);
+            ByteBuffer header = ByteBuffer.wrap(start).order(ByteOrder.LITTLE_ENDIAN);
+            if (!new String(start, 0, 4, "US-ASCII").equals("PEAK") || header.getInt(4) != VERSION) {
+                throw new IOException("Not a waveform summary: " + file);
+            }
+            int levelCount = header.getInt(24);
+            if (levelCount < 1 || levelCount > MAX_LEVELS) {
+                throw new IOException("Corrupt waveform summary: " + file);
+            }
+            byte[] countBytes = new byte[4 * levelCount];
+            input.readFully(countBytes);
+            ByteBuffer counts = ByteBuffer.wrap(countBytes).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = start.length + countBytes.length;
+            int level = 0;
+            while (level + 1 < levelCount && counts.getInt(4 * level) > width) {
+                offset += 3L * counts.getInt(4 * level);
+                level++;
+            }
+            byte[] buckets = new byte[3 * counts.getInt(4 * level)];
+            input.seek(offset);
+            input.readFully(buckets);
+            return new Level(BASE_FRAMES << level, buckets);
+        }
+    }
+
+    /**
+     * Summary of recording, computed from the WAV file if it has none or the recording
+     * changed since (recordings from before summaries existed, streams in progress).
+     */
+    public static Level forRecording(File recording, int width) throws IOException {
+        File file = fileFor(recording);
+        if (!file.isFile() || file.lastModified() < recording.lastModified()) {
+            build(recording);
+        }
+        return read(file, width);
+    }
+
+    /** Builds and saves the summary of a WAV file, reading it once. */
+    public static void build(File recording) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(recording))) {
+            DataInputStream data = new DataInputStream(input);
+            byte[] riff = new byte[12];
+            data.readFully(riff);
+            if (!new String(riff, 0, 4, "US-ASCII").equals("RIFF") || !new String(riff, 8, 4, "US-ASCII").equals("WAVE")) {
+                throw new IOException("Not a WAV file: " + recording.getName());
+            }
+            WaveformSummary summary = null;
+            byte[] chunkHeader = new byte[8];
+            while (true) {
+                data.readFully(chunkHeader);
+                ByteBuffer chunk = ByteBuffer.wrap(chunkHeader).order(ByteOrder.LITTLE_ENDIAN);
+                String id = new String(chunkHeader, 0, 4, "US-ASCII");
+                long size = chunk.getInt(4) & 0xFFFFFFFFL;
+                if (id.equals("fmt ") && size >= 16) {
+                    byte[] fmt = new byte[(int) size];
+                    data.readFully(fmt);
+                    ByteBuffer format = ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN);
+                    int tag = format.getShort(0) & 0xFFFF;
+                    int channels = format.getShort(2);
+                    int rate = format.getInt(4);
+                    int blockAlign = format.getShort(12) & 0xFFFF;
+                    int bits = format.getShort(14);
+                    if (channels < 1 || (tag == 1 ? bits != 8 && bits != 16 : tag != ImaAdpcm.WAVE_FORMAT_IMA_ADPCM || blockAlign <= 4 * channels)) {
+                        throw new IOException("Unsupported WAV format in " + recording.getName());
+                    }
+                    summary = new WaveformSummary(rate, bits, channels, tag == 1 ? 0 : blockAlign);
+                    if ((size & 1) != 0) {
+                        data.skipBytes(1);
+                    }
+                } else if (id.equals("data")) {
+                    if (summary == null) {
+                        throw new IOException("No format before the audio in " + recording.getName());
+                    }
+                    // A size of 0 is a header not patched yet: read to the end of the file
+                    long remaining = size == 0 ? Long.MAX_VALUE : size;
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    while (remaining > 0 && (bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                        summary.add(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                    summary.save(recording);
+                    return;
+                } else {
+                    long skip = size + (size & 1);
+                    if (skip > MAX_SKIPPED_CHUNK) {
+                        throw new IOException("Corrupt WAV file: " + recording.getName());
+                    }
+                    data.readFully(new byte[(int) skip]);
+                }
+            }
+        }
+    }
+}